@@ -0,0 +1,113 @@
+package io.imaravic.log4j.stackdriver;
+
+import io.imaravic.log4j.util.AsyncSettings;
+import io.imaravic.log4j.util.BatchSettings;
+import io.imaravic.log4j.util.BenchmarkFixtures;
+import io.imaravic.log4j.util.PublishSettings;
+import io.imaravic.log4j.util.SpoolSettings;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link GoogleCloudStackdriverAppender#append} publishing to a transport which
+ * discards the requests, so the numbers are those of the appender and its
+ * manager rather than of the network.
+ *
+ * append measures async appends, which publish in the background and are
+ * held up once the queue is full. flush appends a whole batch synchronously,
+ * publishing it on the benchmark thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class GoogleCloudStackdriverAppenderBenchmark {
+  @Param({"128", "1024"})
+  int messageSize;
+
+  @Param({BenchmarkFixtures.MESSAGE_LAYOUT, BenchmarkFixtures.PATTERN_LAYOUT})
+  String layout;
+
+  @Param({"100", "1000"})
+  int maxBatchMessages;
+
+  @Param({"TEXT", "JSON"})
+  StackdriverPayload payload;
+
+  private GoogleCloudStackdriverAppender asyncAppender;
+  private GoogleCloudStackdriverAppender syncAppender;
+  private LogEvent event;
+  private LogEvent endOfBatchEvent;
+
+  @Setup
+  public void setup() throws Exception {
+    final Layout<? extends Serializable> eventLayout = BenchmarkFixtures.layout(layout);
+    asyncAppender = createAppender("benchmark-async", eventLayout, true);
+    syncAppender = createAppender("benchmark-sync", eventLayout, false);
+    event = BenchmarkFixtures.event(messageSize, false);
+    endOfBatchEvent = BenchmarkFixtures.event(messageSize, true);
+  }
+
+  @TearDown
+  public void tearDown() {
+    asyncAppender.stop(10, TimeUnit.SECONDS);
+    syncAppender.stop(10, TimeUnit.SECONDS);
+  }
+
+  @Benchmark
+  public void append() {
+    asyncAppender.append(event);
+  }
+
+  @Benchmark
+  public void flush() {
+    for (int i = 1; i < maxBatchMessages; ++i) {
+      syncAppender.append(event);
+    }
+    syncAppender.append(endOfBatchEvent);
+  }
+
+  private GoogleCloudStackdriverAppender createAppender(final String name,
+                                                        final Layout<? extends Serializable> eventLayout,
+                                                        final boolean async) throws Exception {
+    final GoogleCloudStackdriverManager manager =
+        new GoogleCloudStackdriverManager(name,
+                                          BenchmarkFixtures.transport(),
+                                          BenchmarkFixtures.credentials(),
+                                          "global",
+                                          null,
+                                          "projects/project/logs/benchmark",
+                                          Collections.<String, String>emptyMap(),
+                                          payload,
+                                          BatchSettings.newBuilder()
+                                              .withMaxBatchMessages(maxBatchMessages)
+                                              .build(),
+                                          AsyncSettings.newBuilder()
+                                              .withAsync(async)
+                                              .build(),
+                                          PublishSettings.newBuilder().build(),
+                                          SpoolSettings.newBuilder().build());
+    final GoogleCloudStackdriverAppender appender =
+        new GoogleCloudStackdriverAppender(name, null, eventLayout, false, manager);
+    appender.start();
+    return appender;
+  }
+}
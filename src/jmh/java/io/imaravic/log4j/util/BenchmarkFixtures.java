@@ -0,0 +1,108 @@
+package io.imaravic.log4j.util;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collection;
+
+/**
+ * Events, layouts, credentials and an HTTP transport for the benchmarks,
+ * none of which touch the network.
+ */
+public final class BenchmarkFixtures {
+  /**
+   * Layout writing just the message.
+   */
+  public static final String MESSAGE_LAYOUT = "message";
+
+  /**
+   * Layout with a timestamp, level, logger and thread, like most
+   * configurations use.
+   */
+  public static final String PATTERN_LAYOUT = "pattern";
+
+  private BenchmarkFixtures() {
+  }
+
+  public static Layout<? extends Serializable> layout(final String name) {
+    if (MESSAGE_LAYOUT.equals(name)) {
+      return PatternLayout.newBuilder().withPattern("%m").build();
+    }
+    if (PATTERN_LAYOUT.equals(name)) {
+      return PatternLayout.newBuilder().withPattern("%d{ISO8601} %-5p %c [%t] %m%n").build();
+    }
+    throw new IllegalArgumentException("Unknown layout " + name);
+  }
+
+  public static LogEvent event(final int messageSize, final boolean endOfBatch) {
+    return Log4jLogEvent.newBuilder()
+        .setLoggerName("io.imaravic.log4j.Benchmark")
+        .setLevel(Level.INFO)
+        .setThreadName("benchmark")
+        .setMessage(new SimpleMessage(Strings.repeat("x", messageSize)))
+        .setEndOfBatch(endOfBatch)
+        .build();
+  }
+
+  /**
+   * @return credentials with a token that never expires
+   */
+  public static GoogleCloudCredentials credentials() {
+    return new StaticCredentials();
+  }
+
+  /**
+   * @return transport writing every request body to nowhere and answering
+   *         with an empty 200 response
+   */
+  public static HttpTransport transport() {
+    return new NoopHttpTransport();
+  }
+
+  private static class StaticCredentials extends GoogleCloudCredentials {
+    StaticCredentials() {
+      super(false, null, null);
+    }
+
+    @Override
+    public Credential acquireCredential(final Collection<String> serviceAccountScopes) {
+      return new Credential(BearerToken.authorizationHeaderAccessMethod()).setAccessToken("token");
+    }
+
+    @Override
+    public void releaseCredential(final Credential credential) {
+    }
+  }
+
+  private static class NoopHttpTransport extends MockHttpTransport {
+    @Override
+    public LowLevelHttpRequest buildRequest(final String method, final String url) {
+      return new MockLowLevelHttpRequest(url) {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          // Streams the body like a real transport would.
+          if (getStreamingContent() != null) {
+            getStreamingContent().writeTo(ByteStreams.nullOutputStream());
+          }
+          return new MockLowLevelHttpResponse();
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package io.imaravic.log4j.util;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization path of the managers: the garbage-free encode into a
+ * {@link ReusableByteBufferDestination} the appenders use, against the
+ * toByteArray they fall back to without thread locals.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LayoutSerializationBenchmark {
+  @Param({"128", "1024"})
+  int messageSize;
+
+  @Param({BenchmarkFixtures.MESSAGE_LAYOUT, BenchmarkFixtures.PATTERN_LAYOUT})
+  String layout;
+
+  private Layout<? extends Serializable> eventLayout;
+  private LogEvent event;
+  private ReusableByteBufferDestination destination;
+
+  @Setup
+  public void setup() {
+    eventLayout = BenchmarkFixtures.layout(layout);
+    event = BenchmarkFixtures.event(messageSize, false);
+    destination = new ReusableByteBufferDestination(1024, 64 * 1024);
+  }
+
+  @Benchmark
+  public int encode() {
+    destination.encode(event, eventLayout);
+    final int length = destination.getLength();
+    destination.reset();
+    return length;
+  }
+
+  @Benchmark
+  public byte[] toByteArray() {
+    return eventLayout.toByteArray(event);
+  }
+}
@@ -16,7 +16,15 @@
 
 package io.imaravic.log4j.pubsub;
 
+import io.imaravic.log4j.util.AsyncSettings;
+import io.imaravic.log4j.util.BatchSettings;
 import io.imaravic.log4j.util.GoogleCloudCredentials;
+import io.imaravic.log4j.util.HttpTransportFactories;
+import io.imaravic.log4j.util.OverflowPolicy;
+import io.imaravic.log4j.util.PublishSettings;
+import io.imaravic.log4j.util.SpoolSettings;
+import io.imaravic.log4j.util.TransportSettings;
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
@@ -30,6 +38,7 @@ import org.apache.logging.log4j.core.config.plugins.validation.constraints.Requi
 import org.apache.logging.log4j.core.layout.PatternLayout;
 
 import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
 
 import static io.imaravic.log4j.pubsub.GoogleCloudPubsubManager.getManager;
 
@@ -53,6 +62,15 @@ public class GoogleCloudPubsubAppender extends AbstractAppender {
     googleCloudPubsubManager.write(event, getLayout());
   }
 
+  @Override
+  public boolean stop(final long timeout, final TimeUnit timeUnit) {
+    setStopping();
+    boolean stopped = super.stop(timeout, timeUnit, false);
+    stopped &= googleCloudPubsubManager.stop(timeout, timeUnit);
+    setStopped();
+    return stopped;
+  }
+
   @PluginBuilderFactory
   public static Builder newBuilder() {
     return new Builder();
@@ -86,7 +104,34 @@ public class GoogleCloudPubsubAppender extends AbstractAppender {
     private boolean ignoreExceptions = true;
 
     @PluginBuilderAttribute
-    private int maxRetryTimeMillis = 500;
+    private int maxRetryTimeMillis = PublishSettings.DEFAULT_MAX_RETRY_TIME_MILLIS;
+
+    @PluginBuilderAttribute
+    private int initialRetryDelayMillis = PublishSettings.DEFAULT_INITIAL_RETRY_DELAY_MILLIS;
+
+    @PluginBuilderAttribute
+    private int maxRetryDelayMillis = PublishSettings.DEFAULT_MAX_RETRY_DELAY_MILLIS;
+
+    @PluginBuilderAttribute
+    private double retryBudgetRatio = PublishSettings.DEFAULT_RETRY_BUDGET_RATIO;
+
+    @PluginBuilderAttribute
+    private int minRetriesPerSecond = PublishSettings.DEFAULT_MIN_RETRIES_PER_SECOND;
+
+    @PluginBuilderAttribute
+    private double circuitBreakerFailureRate = PublishSettings.DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE;
+
+    @PluginBuilderAttribute
+    private int circuitBreakerWindowSize = PublishSettings.DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE;
+
+    @PluginBuilderAttribute
+    private int circuitBreakerOpenMillis = PublishSettings.DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS;
+
+    @PluginBuilderAttribute
+    private int maxRequestsPerSecond = PublishSettings.DEFAULT_MAX_REQUESTS_PER_SECOND;
+
+    @PluginBuilderAttribute
+    private long maxBytesPerSecond = PublishSettings.DEFAULT_MAX_BYTES_PER_SECOND;
 
     @PluginBuilderAttribute
     private String projectId;
@@ -98,6 +143,87 @@ public class GoogleCloudPubsubAppender extends AbstractAppender {
     @PluginBuilderAttribute
     private boolean autoCreateTopic = false;
 
+    @PluginBuilderAttribute
+    private PubsubTransport transport = PubsubTransport.HTTP;
+
+    @PluginBuilderAttribute
+    private PubsubPacking packing = PubsubPacking.NONE;
+
+    @PluginBuilderAttribute
+    private int maxBatchMessages = BatchSettings.DEFAULT_MAX_BATCH_MESSAGES;
+
+    @PluginBuilderAttribute
+    private int maxBatchBytes = BatchSettings.DEFAULT_MAX_BATCH_BYTES;
+
+    @PluginBuilderAttribute
+    private int maxLingerMillis = BatchSettings.DEFAULT_MAX_LINGER_MILLIS;
+
+    @PluginBuilderAttribute
+    private boolean adaptiveBatching = false;
+
+    @PluginBuilderAttribute
+    private int minBatchMessages = BatchSettings.DEFAULT_MIN_BATCH_MESSAGES;
+
+    @PluginBuilderAttribute
+    private int minLingerMillis = BatchSettings.DEFAULT_MIN_LINGER_MILLIS;
+
+    @PluginBuilderAttribute
+    private int targetPublishLatencyMillis = BatchSettings.DEFAULT_TARGET_PUBLISH_LATENCY_MILLIS;
+
+    @PluginBuilderAttribute
+    private boolean async = false;
+
+    @PluginBuilderAttribute
+    private int queueCapacity = AsyncSettings.DEFAULT_QUEUE_CAPACITY;
+
+    @PluginBuilderAttribute
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    @PluginBuilderAttribute
+    private long blockTimeoutMillis = 0;
+
+    @PluginBuilderAttribute
+    private Level dropLevel = Level.INFO;
+
+    @PluginBuilderAttribute
+    private int maxInFlightRequests = PublishSettings.DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+
+    @PluginBuilderAttribute
+    private boolean preserveLoggerOrder = false;
+
+    @PluginBuilderAttribute
+    private boolean compressRequests = true;
+
+    @PluginBuilderAttribute
+    private int compressionLevel = PublishSettings.DEFAULT_COMPRESSION_LEVEL;
+
+    @PluginBuilderAttribute
+    private int compressionThresholdBytes = PublishSettings.DEFAULT_COMPRESSION_THRESHOLD_BYTES;
+
+    @PluginBuilderAttribute
+    private String spoolDirectory;
+
+    @PluginBuilderAttribute
+    private int maxSpoolSegmentBytes = SpoolSettings.DEFAULT_MAX_SEGMENT_BYTES;
+
+    @PluginBuilderAttribute
+    private long maxSpoolBytes = SpoolSettings.DEFAULT_MAX_SPOOL_BYTES;
+
+    @PluginBuilderAttribute
+    private int spoolReplayBytesPerSecond = SpoolSettings.DEFAULT_REPLAY_BYTES_PER_SECOND;
+
+    @PluginBuilderAttribute
+    private int maxConnectionsPerRoute = TransportSettings.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+
+    @PluginBuilderAttribute
+    private long keepAliveMillis = TransportSettings.DEFAULT_KEEP_ALIVE_MILLIS;
+
+    @PluginBuilderAttribute
+    private long idleConnectionTimeoutMillis = TransportSettings.DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLIS;
+
+    @PluginBuilderAttribute
+    private String transportFactory = HttpTransportFactories.JAVA_NET;
+
     @Override
     public GoogleCloudPubsubAppender build() {
       try {
@@ -106,6 +232,56 @@ public class GoogleCloudPubsubAppender extends AbstractAppender {
             serviceAccountId == null
                 ? GoogleCloudCredentials.newBuilder().withComputeCredentials(true).build()
                 : GoogleCloudCredentials.createGoogleCloudCredentials(serviceAccountId,serviceAccountPrivateKeyP12FileName);
+
+        final BatchSettings batchSettings = BatchSettings.newBuilder()
+            .withMaxBatchMessages(maxBatchMessages)
+            .withMaxBatchBytes(maxBatchBytes)
+            .withMaxLingerMillis(maxLingerMillis)
+            .withAdaptive(adaptiveBatching)
+            .withMinBatchMessages(minBatchMessages)
+            .withMinLingerMillis(minLingerMillis)
+            .withTargetPublishLatencyMillis(targetPublishLatencyMillis)
+            .build();
+
+        final AsyncSettings asyncSettings = AsyncSettings.newBuilder()
+            .withAsync(async)
+            .withQueueCapacity(queueCapacity)
+            .withOverflowPolicy(overflowPolicy)
+            .withBlockTimeoutMillis(blockTimeoutMillis)
+            .withDropLevel(dropLevel)
+            .build();
+
+        final PublishSettings publishSettings = PublishSettings.newBuilder()
+            .withMaxInFlightRequests(maxInFlightRequests)
+            .withPreserveLoggerOrder(preserveLoggerOrder)
+            .withCompressRequests(compressRequests)
+            .withCompressionLevel(compressionLevel)
+            .withCompressionThresholdBytes(compressionThresholdBytes)
+            .withMaxRetryTimeMillis(maxRetryTimeMillis)
+            .withInitialRetryDelayMillis(initialRetryDelayMillis)
+            .withMaxRetryDelayMillis(maxRetryDelayMillis)
+            .withRetryBudgetRatio(retryBudgetRatio)
+            .withMinRetriesPerSecond(minRetriesPerSecond)
+            .withCircuitBreakerFailureRate(circuitBreakerFailureRate)
+            .withCircuitBreakerWindowSize(circuitBreakerWindowSize)
+            .withCircuitBreakerOpenMillis(circuitBreakerOpenMillis)
+            .withMaxRequestsPerSecond(maxRequestsPerSecond)
+            .withMaxBytesPerSecond(maxBytesPerSecond)
+            .build();
+
+        final SpoolSettings spoolSettings = SpoolSettings.newBuilder()
+            .withDirectory(spoolDirectory)
+            .withMaxSegmentBytes(maxSpoolSegmentBytes)
+            .withMaxSpoolBytes(maxSpoolBytes)
+            .withReplayBytesPerSecond(spoolReplayBytesPerSecond)
+            .build();
+
+        final TransportSettings transportSettings = TransportSettings.newBuilder()
+            .withMaxConnectionsPerRoute(maxConnectionsPerRoute)
+            .withKeepAliveMillis(keepAliveMillis)
+            .withIdleConnectionTimeoutMillis(idleConnectionTimeoutMillis)
+            .withTransportFactory(HttpTransportFactories.forName(transportFactory))
+            .build();
         
         return new GoogleCloudPubsubAppender(name,
                                               filter,
@@ -116,7 +292,13 @@ public class GoogleCloudPubsubAppender extends AbstractAppender {
                                                          projectId,
                                                          topic,
                                                          autoCreateTopic,
-                                                         maxRetryTimeMillis));
+                                                         transport,
+                                                         packing,
+                                                         batchSettings,
+                                                         asyncSettings,
+                                                         publishSettings,
+                                                         spoolSettings,
+                                                         transportSettings));
       } catch (final Throwable e) {
         LOGGER.error("Error creating GoogleCloudPubsubAppender [{}]", name, e);
         return null;
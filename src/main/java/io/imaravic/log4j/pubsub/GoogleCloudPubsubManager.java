@@ -17,40 +17,52 @@
 package io.imaravic.log4j.pubsub;
 
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.client.util.Lists;
 import com.google.api.services.pubsub.Pubsub;
 import com.google.api.services.pubsub.PubsubScopes;
-import com.google.api.services.pubsub.model.PublishRequest;
-import com.google.api.services.pubsub.model.PubsubMessage;
 import com.google.api.services.pubsub.model.Topic;
 import com.google.common.annotations.VisibleForTesting;
 
+import io.imaravic.log4j.util.AbstractGoogleCloudManager;
 import io.imaravic.log4j.util.GoogleCloudCredentials;
-import org.apache.logging.log4j.core.Layout;
+import io.imaravic.log4j.util.PartialPublishException;
+import io.imaravic.log4j.util.PublishSettings;
+import io.imaravic.log4j.util.QueuedEvent;
+import io.imaravic.log4j.util.SharedHttpTransports;
+import io.imaravic.log4j.util.SpoolSettings;
+import io.imaravic.log4j.util.TransportSettings;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AbstractManager;
-import org.apache.logging.log4j.core.appender.AppenderLoggingException;
 import org.apache.logging.log4j.core.appender.ManagerFactory;
 
 import java.io.IOException;
-import java.io.Serializable;
 import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import io.imaravic.log4j.util.AsyncSettings;
+import io.imaravic.log4j.util.BatchSettings;
 import io.imaravic.log4j.util.GoogleCloudMetadata;
 import io.imaravic.log4j.util.RetryHttpInitializerWrapper;
 
-public class GoogleCloudPubsubManager extends AbstractManager {
+public class GoogleCloudPubsubManager extends AbstractGoogleCloudManager<byte[]> {
   private static final String APPLICATION_NAME = "GoogleCloudPubsub-Log4j2Appender";
 
-  private List<PubsubMessage> pubsubMessagesBuffer = Lists.newArrayList();
+  private final HttpTransport transport;
+  private final GoogleCloudCredentials googleCloudCredentials;
+  private final Credential credential;
   private final String fullyDefinedTopicName;
   private final Pubsub pubsubClient;
+  // Publishes instead of the REST client when using the gRPC transport.
+  private final GrpcPubsubPublisher grpcPublisher;
+  private final PubsubPacking packing;
 
   @VisibleForTesting
   GoogleCloudPubsubManager(final String name,
@@ -60,18 +72,46 @@ public class GoogleCloudPubsubManager extends AbstractManager {
                            final String googleCloudProjectId,
                            final String topic,
                            final boolean autoCreateTopic,
-                           final int maxRetryTimeMillis)
+                           final PubsubTransport pubsubTransport,
+                           final PubsubPacking packing,
+                           final BatchSettings batchSettings,
+                           final AsyncSettings asyncSettings,
+                           final PublishSettings publishSettings,
+                           final SpoolSettings spoolSettings)
       throws GeneralSecurityException, IOException {
-    super(null, name);
-    fullyDefinedTopicName =
-        createFullyDefinedTopicName(
-            getGoogleCloudProjectId(googleCloudProjectId, googleCloudMetadata),
-            topic);
-    this.pubsubClient = createPubsubClient(transport,
-                                           googleCloudCredentials,
-                                           maxRetryTimeMillis);
-    if (autoCreateTopic) {
-      createTopic();
+    super(name, batchSettings, asyncSettings, publishSettings, spoolSettings);
+    this.transport = transport;
+    this.googleCloudCredentials = googleCloudCredentials;
+    Credential acquiredCredential = null;
+    GrpcPubsubPublisher createdPublisher = null;
+    boolean created = false;
+    try {
+      acquiredCredential = googleCloudCredentials.acquireCredential(PubsubScopes.all());
+      this.credential = acquiredCredential;
+      fullyDefinedTopicName =
+          createFullyDefinedTopicName(
+              getGoogleCloudProjectId(googleCloudProjectId, googleCloudMetadata),
+              topic);
+      this.pubsubClient = createPubsubClient(transport, credential);
+      createdPublisher = pubsubTransport == PubsubTransport.GRPC
+          ? createGrpcPublisher(credential, fullyDefinedTopicName)
+          : null;
+      this.grpcPublisher = createdPublisher;
+      this.packing = packing;
+      if (autoCreateTopic) {
+        createTopic();
+      }
+      created = true;
+    } finally {
+      if (!created) {
+        if (createdPublisher != null) {
+          createdPublisher.close(0, TimeUnit.SECONDS);
+        }
+        if (acquiredCredential != null) {
+          googleCloudCredentials.releaseCredential(acquiredCredential);
+        }
+        closeOnFailure();
+      }
     }
   }
   
@@ -94,60 +134,118 @@ public class GoogleCloudPubsubManager extends AbstractManager {
     }
   }
 
-  public synchronized void write(final LogEvent event) {
+  public void write(final LogEvent event) {
     final String logMsg = event.getMessage().getFormattedMessage();
+    append(logMsg.getBytes(Charset.forName("UTF-8")), event);
+  }
 
-    final PubsubMessage pubsubMessage = new PubsubMessage();
-    pubsubMessage.encodeData(logMsg.getBytes(Charset.forName("UTF-8")));
-
-    pubsubMessagesBuffer.add(pubsubMessage);
+  /**
+   * Batches keep the raw message data, it is packed and encoded for the
+   * wire at publish time.
+   */
+  @Override
+  protected byte[] toBatchEntry(final QueuedEvent event) {
+    return event.copyData();
+  }
 
-    if (event.isEndOfBatch()) {
-      final List<PubsubMessage> entriesToWrite = pubsubMessagesBuffer;
-      pubsubMessagesBuffer = Lists.newArrayList();
+  @Override
+  protected void publish(final List<byte[]> batch) throws IOException {
+    if (packing == PubsubPacking.NONE) {
+      publishMessages(batch, null);
+      return;
+    }
+    final List<byte[]> messages = new ArrayList<byte[]>();
+    final List<Map<String, String>> attributes = new ArrayList<Map<String, String>>();
+    PackedMessages.pack(packing, batch, messages, attributes);
 
-      final PublishRequest publishRequest =
-          new PublishRequest().setMessages(entriesToWrite);
+    // Escaped events can take several times the bytes of the batch, so the
+    // packed messages are sent in requests of at most
+    // MAX_PACKED_MESSAGE_BYTES, which the request limit allows for.
+    int first = 0;
+    int firstEvent = 0;
+    while (first < messages.size()) {
+      int end = first + 1;
+      long bytes = messages.get(first).length;
+      while (end < messages.size() &&
+             bytes + messages.get(end).length <= PackedMessages.MAX_PACKED_MESSAGE_BYTES) {
+        bytes += messages.get(end).length;
+        ++end;
+      }
+      if (first > 0) {
+        // The batch was let through the rate limits as a single request.
+        chargeRequests(1);
+      }
       try {
-        writeToGoogleCloudLogging(publishRequest);
+        publishMessages(messages.subList(first, end), attributes.subList(first, end));
       } catch (final IOException e) {
-        throw new AppenderLoggingException("Publishing message to topic " +
-                                           "\"" + fullyDefinedTopicName + "\" failed", e);
+        if (firstEvent == 0) {
+          throw e;
+        }
+        // Only the events which weren't sent yet are published again or
+        // dropped, the earlier requests went through.
+        throw new PartialPublishException("Publishing to " + getDestination() + " failed part way",
+                                          batch.subList(firstEvent, batch.size()),
+                                          e,
+                                          isRetryable(e));
+      }
+      for (int i = first; i < end; ++i) {
+        firstEvent += Integer.parseInt(attributes.get(i).get(PackedMessages.COUNT_ATTRIBUTE));
       }
+      first = end;
     }
   }
-  
-  public synchronized void write(final LogEvent event, Layout<? extends Serializable> layout) {
-    final String logMsg = event.getMessage().getFormattedMessage();
-    
-    final PubsubMessage pubsubMessage = new PubsubMessage();
-    pubsubMessage.encodeData(layout.toByteArray(event));
-    
-    pubsubMessagesBuffer.add(pubsubMessage);
-    
-    if (event.isEndOfBatch()) {
-      final List<PubsubMessage> entriesToWrite = pubsubMessagesBuffer;
-      pubsubMessagesBuffer = Lists.newArrayList();
-      
-      final PublishRequest publishRequest =
-          new PublishRequest().setMessages(entriesToWrite);
-      try {
-        writeToGoogleCloudLogging(publishRequest);
-      } catch (final IOException e) {
-        throw new AppenderLoggingException("Publishing message to topic " +
-            "\"" + fullyDefinedTopicName + "\" failed", e);
-      }
+
+  private void publishMessages(final List<byte[]> messages,
+                               final List<Map<String, String>> attributes) throws IOException {
+    if (grpcPublisher != null) {
+      grpcPublisher.publish(messages, attributes);
+      return;
+    }
+    writeToGoogleCloudLogging(new PublishRequestContent(messages, attributes));
+  }
+
+  @Override
+  protected byte[] toSpoolRecord(final byte[] entry) {
+    return entry;
+  }
+
+  @Override
+  protected byte[] fromSpoolRecord(final byte[] record) {
+    return record;
+  }
+
+  @Override
+  protected boolean releaseSub(final long timeout, final TimeUnit timeUnit) {
+    boolean released = super.releaseSub(timeout, timeUnit);
+    if (grpcPublisher != null) {
+      released &= grpcPublisher.close(timeout, timeUnit);
     }
+    googleCloudCredentials.releaseCredential(credential);
+    SharedHttpTransports.release(transport);
+    return released;
+  }
+
+  @Override
+  protected String getDestination() {
+    return "topic \"" + fullyDefinedTopicName + "\"";
   }
 
+  /**
+   * Sends the publish request through the request factory of the REST
+   * client, so it's authorized and retried the same way, but with the
+   * body streamed by {@link PublishRequestContent} and gzipped depending
+   * on its size.
+   */
   @VisibleForTesting
-  void writeToGoogleCloudLogging(final PublishRequest publishRequest)
+  void writeToGoogleCloudLogging(final PublishRequestContent publishRequestContent)
       throws IOException {
-    pubsubClient.projects()
-        .topics()
-        .publish(fullyDefinedTopicName,
-                 publishRequest)
-        .execute();
+    final HttpRequest request = pubsubClient.getRequestFactory()
+        .buildPostRequest(new GenericUrl(pubsubClient.getBaseUrl() + "v1/" +
+                                         fullyDefinedTopicName + ":publish"),
+                          publishRequestContent);
+    request.getHeaders().setUserAgent(APPLICATION_NAME);
+    request.setEncoding(getRequestEncoding(publishRequestContent.getLength()));
+    request.execute().ignore();
   }
 
   public static GoogleCloudPubsubManager getManager(final String name,
@@ -155,15 +253,22 @@ public class GoogleCloudPubsubManager extends AbstractManager {
                                                      final String googleCloudProjectId,
                                                      final String topic,
                                                      final boolean autoCreateTopic,
-                                                     final int maxRetryTimeMillis) {
+                                                     final PubsubTransport pubsubTransport,
+                                                     final PubsubPacking packing,
+                                                     final BatchSettings batchSettings,
+                                                     final AsyncSettings asyncSettings,
+                                                     final PublishSettings publishSettings,
+                                                     final SpoolSettings spoolSettings,
+                                                     final TransportSettings transportSettings) {
     return AbstractManager.getManager(
         name,
         new ManagerFactory<GoogleCloudPubsubManager, Object>() {
           @Override
           public GoogleCloudPubsubManager createManager(String name,
                                                          Object data) {
+            HttpTransport transport = null;
             try {
-              final HttpTransport transport = GoogleNetHttpTransport.newTrustedTransport();
+              transport = SharedHttpTransports.acquire(Pubsub.DEFAULT_ROOT_URL, transportSettings);
               final GoogleCloudMetadata googleCloudMetadata = new GoogleCloudMetadata(transport);
               return new GoogleCloudPubsubManager(name,
                                                    transport,
@@ -172,9 +277,15 @@ public class GoogleCloudPubsubManager extends AbstractManager {
                                                    googleCloudProjectId,
                                                    topic,
                                                    autoCreateTopic,
-                                                   maxRetryTimeMillis);
+                                                   pubsubTransport,
+                                                   packing,
+                                                   batchSettings,
+                                                   asyncSettings,
+                                                   publishSettings,
+                                                   spoolSettings);
             } catch (final Throwable e) {
               LOGGER.error("Failed to initialize GoogleCloudLoggingManager", e);
+              SharedHttpTransports.release(transport);
             }
             return null;
           }
@@ -193,22 +304,20 @@ public class GoogleCloudPubsubManager extends AbstractManager {
   }
   
   private static Pubsub createPubsubClient(final HttpTransport transport,
-                                            final GoogleCloudCredentials credentials,
-                                            final int maxRetryTimeMillis)
-      throws GeneralSecurityException, IOException {
-    final JacksonFactory jacksonFactory = JacksonFactory.getDefaultInstance();
-    Credential credential = credentials.getCredential(transport,
-        jacksonFactory,
-        PubsubScopes.all());
+                                            final Credential credential) {
     return new Pubsub.Builder(transport,
-                               jacksonFactory,
-                               new RetryHttpInitializerWrapper(
-                                   credential,
-                                   maxRetryTimeMillis))
+                               JacksonFactory.getDefaultInstance(),
+                               new RetryHttpInitializerWrapper(credential))
         .setApplicationName(APPLICATION_NAME)
         .build();
   }
 
+  private static GrpcPubsubPublisher createGrpcPublisher(final Credential credential,
+                                                         final String fullyDefinedTopicName)
+      throws IOException {
+    return GrpcPubsubPublisher.create(credential, fullyDefinedTopicName);
+  }
+
   @VisibleForTesting
   String getFullyDefinedTopicName() {
     return fullyDefinedTopicName;
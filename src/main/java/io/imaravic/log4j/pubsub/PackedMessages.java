@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.imaravic.log4j.pubsub;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import com.google.api.client.json.jackson2.JacksonFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Envelope putting many log events into one Pub/Sub message.
+ *
+ * A packed message carries the "codec" attribute naming its
+ * {@link PubsubPacking} and the "count" attribute giving the number of
+ * events in it. Subscribers get the events back with
+ * {@link #unpack(Map, byte[])}, which passes messages without a codec
+ * attribute through as a single event, so it works whether packing is on
+ * or not.
+ *
+ * NDJSON carries events as JSON strings, so it expects them to be UTF-8
+ * text; length prefixing carries any bytes.
+ */
+public final class PackedMessages {
+  public static final String CODEC_ATTRIBUTE = "codec";
+  public static final String COUNT_ATTRIBUTE = "count";
+
+  // Stays under the 10MB request limit of Pub/Sub once base64 encoded.
+  // Escaping can make the packed messages several times the size of a
+  // batch, so requests are bounded by this as well.
+  static final int MAX_PACKED_MESSAGE_BYTES = 4 * 1024 * 1024;
+
+  private static final int LENGTH_PREFIX_BYTES = 4;
+  private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(Charset.forName("US-ASCII"));
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+  private PackedMessages() {
+  }
+
+  /**
+   * Packs the events into as few messages as MAX_PACKED_MESSAGE_BYTES
+   * allows, adding every message and its attributes to the given lists.
+   */
+  static void pack(final PubsubPacking packing,
+                   final List<byte[]> events,
+                   final List<byte[]> messages,
+                   final List<Map<String, String>> attributes) {
+    int first = 0;
+    while (first < events.size()) {
+      int end = first;
+      int size = 0;
+      while (end < events.size()) {
+        final int eventSize = encodedSize(packing, events.get(end));
+        if (end > first && size + eventSize > MAX_PACKED_MESSAGE_BYTES) {
+          break;
+        }
+        size += eventSize;
+        ++end;
+      }
+
+      final byte[] message = new byte[size];
+      int position = 0;
+      for (int i = first; i < end; ++i) {
+        position = encode(packing, events.get(i), message, position);
+      }
+      messages.add(message);
+
+      final Map<String, String> messageAttributes = new HashMap<String, String>(4);
+      messageAttributes.put(CODEC_ATTRIBUTE, packing.getCodec());
+      messageAttributes.put(COUNT_ATTRIBUTE, String.valueOf(end - first));
+      attributes.add(messageAttributes);
+      first = end;
+    }
+  }
+
+  /**
+   * @param attributes attributes of the received message, may be null
+   * @param data data of the received message
+   * @return the events in the message
+   * @throws IOException if the message is malformed or uses an unknown codec
+   */
+  public static List<byte[]> unpack(final Map<String, String> attributes,
+                                    final byte[] data) throws IOException {
+    final String codec = attributes != null ? attributes.get(CODEC_ATTRIBUTE) : null;
+    if (codec == null) {
+      return Collections.singletonList(data);
+    }
+
+    final List<byte[]> events;
+    if (PubsubPacking.LENGTH_PREFIXED.getCodec().equals(codec)) {
+      events = unpackLengthPrefixed(data);
+    } else if (PubsubPacking.NDJSON.getCodec().equals(codec)) {
+      events = unpackNdjson(data);
+    } else {
+      throw new IOException("Unknown codec " + codec);
+    }
+
+    final String count = attributes.get(COUNT_ATTRIBUTE);
+    if (count != null && !count.equals(String.valueOf(events.size()))) {
+      throw new IOException("Expected " + count + " events, found " + events.size());
+    }
+    return events;
+  }
+
+  private static int encodedSize(final PubsubPacking packing, final byte[] event) {
+    if (packing == PubsubPacking.LENGTH_PREFIXED) {
+      return LENGTH_PREFIX_BYTES + event.length;
+    }
+    // Quotes and the newline.
+    int size = 3;
+    for (final byte b : event) {
+      size += escapedSize(b);
+    }
+    return size;
+  }
+
+  private static int encode(final PubsubPacking packing,
+                            final byte[] event,
+                            final byte[] message,
+                            int position) {
+    if (packing == PubsubPacking.LENGTH_PREFIXED) {
+      message[position++] = (byte) (event.length >>> 24);
+      message[position++] = (byte) (event.length >>> 16);
+      message[position++] = (byte) (event.length >>> 8);
+      message[position++] = (byte) event.length;
+      System.arraycopy(event, 0, message, position, event.length);
+      return position + event.length;
+    }
+
+    message[position++] = '"';
+    for (final byte b : event) {
+      switch (escapedSize(b)) {
+        case 1:
+          message[position++] = b;
+          break;
+        case 2:
+          message[position++] = '\\';
+          message[position++] = shortEscape(b);
+          break;
+        default:
+          message[position++] = '\\';
+          message[position++] = 'u';
+          message[position++] = '0';
+          message[position++] = '0';
+          message[position++] = HEX_DIGITS[b >>> 4];
+          message[position++] = HEX_DIGITS[b & 0xf];
+      }
+    }
+    message[position++] = '"';
+    message[position++] = '\n';
+    return position;
+  }
+
+  private static int escapedSize(final byte b) {
+    if (shortEscape(b) != 0) {
+      return 2;
+    }
+    // Bytes of multi-byte UTF-8 sequences are negative and go as they are.
+    return b >= 0 && b < 0x20 ? 6 : 1;
+  }
+
+  private static byte shortEscape(final byte b) {
+    switch (b) {
+      case '"':
+        return '"';
+      case '\\':
+        return '\\';
+      case '\n':
+        return 'n';
+      case '\r':
+        return 'r';
+      case '\t':
+        return 't';
+      default:
+        return 0;
+    }
+  }
+
+  private static List<byte[]> unpackLengthPrefixed(final byte[] data) throws IOException {
+    final List<byte[]> events = new ArrayList<byte[]>();
+    final ByteBuffer buffer = ByteBuffer.wrap(data);
+    while (buffer.hasRemaining()) {
+      if (buffer.remaining() < LENGTH_PREFIX_BYTES) {
+        throw new IOException("Truncated length prefix");
+      }
+      final int length = buffer.getInt();
+      if (length < 0 || length > buffer.remaining()) {
+        throw new IOException("Event length " + length + " exceeds the message");
+      }
+      final byte[] event = new byte[length];
+      buffer.get(event);
+      events.add(event);
+    }
+    return events;
+  }
+
+  private static List<byte[]> unpackNdjson(final byte[] data) throws IOException {
+    final List<byte[]> events = new ArrayList<byte[]>();
+    int start = 0;
+    while (start < data.length) {
+      int end = start;
+      while (end < data.length && data[end] != '\n') {
+        ++end;
+      }
+      final JsonParser parser =
+          JSON_FACTORY.createJsonParser(new String(data, start, end - start, UTF_8));
+      try {
+        if (parser.nextToken() != JsonToken.VALUE_STRING) {
+          throw new IOException("Expected a JSON string at offset " + start);
+        }
+        events.add(parser.getText().getBytes(UTF_8));
+      } finally {
+        parser.close();
+      }
+      start = end + 1;
+    }
+    return events;
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.imaravic.log4j.pubsub;
+
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.json.Json;
+import io.imaravic.log4j.util.BufferPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Body of a Pub/Sub publish request, streamed straight into the request
+ * output stream.
+ *
+ * The message data is base64 encoded on the fly into a pooled buffer, so
+ * publishing a batch doesn't build a PubsubMessage, a base64 String or a
+ * JSON tree per message. The length is known upfront, so the body is sent
+ * with a Content-Length, and it can be written again when the request is
+ * retried.
+ *
+ * Messages may carry attributes, which are rendered upfront as there are
+ * few of them, see {@link PackedMessages}.
+ */
+class PublishRequestContent implements HttpContent {
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+  private static final byte[] REQUEST_PREFIX = "{\"messages\":[".getBytes(US_ASCII);
+  private static final byte[] MESSAGE_PREFIX = "{\"data\":\"".getBytes(US_ASCII);
+  private static final byte[] MESSAGE_SUFFIX = "\"}".getBytes(US_ASCII);
+  private static final byte[] ATTRIBUTES_PREFIX = "\",\"attributes\":{".getBytes(US_ASCII);
+  private static final byte[] MESSAGE_SEPARATOR = ",".getBytes(US_ASCII);
+  private static final byte[] REQUEST_SUFFIX = "]}".getBytes(US_ASCII);
+
+  private static final byte[] BASE64_ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(US_ASCII);
+  private static final byte BASE64_PAD = '=';
+
+  // Enough buffers for a few concurrent publishes, see maxInFlightRequests.
+  private static final BufferPool BUFFER_POOL = new BufferPool(8192, 16);
+
+  private final List<byte[]> messages;
+  private final List<Map<String, String>> attributes;
+  // What follows the data of every message, null for the plain suffix.
+  private final byte[][] messageSuffixes;
+  private final long length;
+
+  PublishRequestContent(final List<byte[]> messages) {
+    this(messages, null);
+  }
+
+  /**
+   * @param attributes attributes of every message, or null if there are none
+   */
+  PublishRequestContent(final List<byte[]> messages,
+                        final List<Map<String, String>> attributes) {
+    this.messages = messages;
+    this.attributes = attributes;
+    this.messageSuffixes = new byte[messages.size()][];
+    if (attributes != null) {
+      for (int i = 0; i < messageSuffixes.length; ++i) {
+        messageSuffixes[i] = renderAttributes(attributes.get(i));
+      }
+    }
+    this.length = computeLength(messages, messageSuffixes);
+  }
+
+  List<byte[]> getMessages() {
+    return messages;
+  }
+
+  List<Map<String, String>> getAttributes() {
+    return attributes;
+  }
+
+  @Override
+  public long getLength() {
+    return length;
+  }
+
+  @Override
+  public String getType() {
+    return Json.MEDIA_TYPE;
+  }
+
+  @Override
+  public boolean retrySupported() {
+    return true;
+  }
+
+  @Override
+  public void writeTo(final OutputStream out) throws IOException {
+    final byte[] buffer = BUFFER_POOL.acquire();
+    try {
+      final ChunkWriter writer = new ChunkWriter(buffer, out);
+      writer.write(REQUEST_PREFIX);
+      for (int i = 0; i < messageSuffixes.length; ++i) {
+        if (i > 0) {
+          writer.write(MESSAGE_SEPARATOR);
+        }
+        writer.write(MESSAGE_PREFIX);
+        writer.writeBase64(messages.get(i));
+        writer.write(messageSuffixes[i] != null ? messageSuffixes[i] : MESSAGE_SUFFIX);
+      }
+      writer.write(REQUEST_SUFFIX);
+      writer.flush();
+    } finally {
+      BUFFER_POOL.release(buffer);
+    }
+  }
+
+  private static long computeLength(final List<byte[]> messages, final byte[][] messageSuffixes) {
+    long length = REQUEST_PREFIX.length + REQUEST_SUFFIX.length;
+    for (int i = 0; i < messageSuffixes.length; ++i) {
+      length += MESSAGE_PREFIX.length + base64Length(messages.get(i).length) +
+          (messageSuffixes[i] != null ? messageSuffixes[i].length : MESSAGE_SUFFIX.length);
+    }
+    if (messages.size() > 1) {
+      length += (messages.size() - 1) * MESSAGE_SEPARATOR.length;
+    }
+    return length;
+  }
+
+  static long base64Length(final int dataLength) {
+    return 4L * ((dataLength + 2) / 3);
+  }
+
+  /**
+   * @return the end of a message with the given attributes, null if it has none
+   */
+  private static byte[] renderAttributes(final Map<String, String> attributes) {
+    if (attributes == null || attributes.isEmpty()) {
+      return null;
+    }
+    final StringBuilder json = new StringBuilder(new String(ATTRIBUTES_PREFIX, US_ASCII));
+    boolean first = true;
+    for (final Map.Entry<String, String> attribute : attributes.entrySet()) {
+      if (!first) {
+        json.append(',');
+      }
+      first = false;
+      appendJsonString(json, attribute.getKey()).append(':');
+      appendJsonString(json, attribute.getValue());
+    }
+    return json.append("}}").toString().getBytes(Charset.forName("UTF-8"));
+  }
+
+  private static StringBuilder appendJsonString(final StringBuilder json, final String value) {
+    json.append('"');
+    for (int i = 0; i < value.length(); ++i) {
+      final char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      } else if (c < 0x20) {
+        json.append(String.format("\\u%04x", (int) c));
+      } else {
+        json.append(c);
+      }
+    }
+    return json.append('"');
+  }
+
+  /**
+   * Fills the buffer and hands it to the output stream whenever it's full.
+   */
+  private static class ChunkWriter {
+    private final byte[] buffer;
+    private final OutputStream out;
+    private int position = 0;
+
+    ChunkWriter(final byte[] buffer, final OutputStream out) {
+      this.buffer = buffer;
+      this.out = out;
+    }
+
+    void write(final byte[] bytes) throws IOException {
+      if (buffer.length - position < bytes.length) {
+        flush();
+        if (buffer.length < bytes.length) {
+          out.write(bytes);
+          return;
+        }
+      }
+      System.arraycopy(bytes, 0, buffer, position, bytes.length);
+      position += bytes.length;
+    }
+
+    void writeBase64(final byte[] data) throws IOException {
+      final int fullGroupsEnd = data.length - data.length % 3;
+      int i = 0;
+      while (i < fullGroupsEnd) {
+        if (buffer.length - position < 4) {
+          flush();
+        }
+        final int bits = (data[i++] & 0xff) << 16 | (data[i++] & 0xff) << 8 | (data[i++] & 0xff);
+        buffer[position++] = BASE64_ALPHABET[bits >>> 18];
+        buffer[position++] = BASE64_ALPHABET[(bits >>> 12) & 0x3f];
+        buffer[position++] = BASE64_ALPHABET[(bits >>> 6) & 0x3f];
+        buffer[position++] = BASE64_ALPHABET[bits & 0x3f];
+      }
+
+      final int remaining = data.length - fullGroupsEnd;
+      if (remaining == 0) {
+        return;
+      }
+      if (buffer.length - position < 4) {
+        flush();
+      }
+      final int bits = (data[i] & 0xff) << 16 | (remaining == 2 ? (data[i + 1] & 0xff) << 8 : 0);
+      buffer[position++] = BASE64_ALPHABET[bits >>> 18];
+      buffer[position++] = BASE64_ALPHABET[(bits >>> 12) & 0x3f];
+      buffer[position++] = remaining == 2 ? BASE64_ALPHABET[(bits >>> 6) & 0x3f] : BASE64_PAD;
+      buffer[position++] = BASE64_PAD;
+    }
+
+    void flush() throws IOException {
+      if (position > 0) {
+        out.write(buffer, 0, position);
+        position = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.imaravic.log4j.pubsub;
+
+/**
+ * How log events are mapped to Pub/Sub messages, see {@link PackedMessages}.
+ */
+public enum PubsubPacking {
+  /**
+   * Every event is its own message.
+   */
+  NONE(null),
+
+  /**
+   * Many events per message, each one prefixed by its length as a
+   * big-endian 32 bit integer.
+   */
+  LENGTH_PREFIXED("length-prefixed"),
+
+  /**
+   * Many events per message, each one a JSON string on its own line.
+   */
+  NDJSON("ndjson");
+
+  private final String codec;
+
+  PubsubPacking(final String codec) {
+    this.codec = codec;
+  }
+
+  /**
+   * @return value of the codec attribute of packed messages
+   */
+  public String getCodec() {
+    return codec;
+  }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.pubsub;
+
+/**
+ * Wire protocol used to publish messages.
+ */
+public enum PubsubTransport {
+  /**
+   * JSON over HTTP/1.1 with the REST client, message data base64 encoded.
+   */
+  HTTP,
+
+  /**
+   * Protobuf over a multiplexed HTTP/2 channel, see {@link GrpcPubsubPublisher}.
+   */
+  GRPC
+}
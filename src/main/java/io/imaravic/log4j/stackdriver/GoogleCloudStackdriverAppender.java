@@ -16,12 +16,21 @@
 
 package io.imaravic.log4j.stackdriver;
 
+import io.imaravic.log4j.util.AsyncSettings;
+import io.imaravic.log4j.util.BatchSettings;
 import io.imaravic.log4j.util.GoogleCloudCredentials;
+import io.imaravic.log4j.util.HttpTransportFactories;
+import io.imaravic.log4j.util.OverflowPolicy;
+import io.imaravic.log4j.util.PublishSettings;
+import io.imaravic.log4j.util.SpoolSettings;
+import io.imaravic.log4j.util.TransportSettings;
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AbstractAppender;
 import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.Property;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
@@ -30,6 +39,9 @@ import org.apache.logging.log4j.core.config.plugins.validation.constraints.Requi
 import org.apache.logging.log4j.core.layout.PatternLayout;
 
 import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by josep on 3/5/2017.
@@ -56,6 +68,15 @@ public class GoogleCloudStackdriverAppender extends AbstractAppender {
     googleCloudStackdriverManager.write(event, getLayout());
   }
 
+  @Override
+  public boolean stop(final long timeout, final TimeUnit timeUnit) {
+    setStopping();
+    boolean stopped = super.stop(timeout, timeUnit, false);
+    stopped &= googleCloudStackdriverManager.stop(timeout, timeUnit);
+    setStopped();
+    return stopped;
+  }
+
   @PluginBuilderFactory
   public static GoogleCloudStackdriverAppender.Builder newBuilder() {
     return new Builder();
@@ -69,6 +90,9 @@ public class GoogleCloudStackdriverAppender extends AbstractAppender {
     @PluginElement("Filter")
     private Filter filter;
 
+    @PluginElement("Labels")
+    private Property[] labels;
+
     @PluginBuilderAttribute
     private String serviceAccountId;
 
@@ -83,7 +107,34 @@ public class GoogleCloudStackdriverAppender extends AbstractAppender {
     private boolean ignoreExceptions = true;
 
     @PluginBuilderAttribute
-    private int maxRetryTimeMillis = 500;
+    private int maxRetryTimeMillis = PublishSettings.DEFAULT_MAX_RETRY_TIME_MILLIS;
+
+    @PluginBuilderAttribute
+    private int initialRetryDelayMillis = PublishSettings.DEFAULT_INITIAL_RETRY_DELAY_MILLIS;
+
+    @PluginBuilderAttribute
+    private int maxRetryDelayMillis = PublishSettings.DEFAULT_MAX_RETRY_DELAY_MILLIS;
+
+    @PluginBuilderAttribute
+    private double retryBudgetRatio = PublishSettings.DEFAULT_RETRY_BUDGET_RATIO;
+
+    @PluginBuilderAttribute
+    private int minRetriesPerSecond = PublishSettings.DEFAULT_MIN_RETRIES_PER_SECOND;
+
+    @PluginBuilderAttribute
+    private double circuitBreakerFailureRate = PublishSettings.DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE;
+
+    @PluginBuilderAttribute
+    private int circuitBreakerWindowSize = PublishSettings.DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE;
+
+    @PluginBuilderAttribute
+    private int circuitBreakerOpenMillis = PublishSettings.DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS;
+
+    @PluginBuilderAttribute
+    private int maxRequestsPerSecond = PublishSettings.DEFAULT_MAX_REQUESTS_PER_SECOND;
+
+    @PluginBuilderAttribute
+    private long maxBytesPerSecond = PublishSettings.DEFAULT_MAX_BYTES_PER_SECOND;
 
 //    @PluginBuilderAttribute
 //    private String projectId;
@@ -96,6 +147,84 @@ public class GoogleCloudStackdriverAppender extends AbstractAppender {
     @Required
     private String logName;
 
+    @PluginBuilderAttribute
+    private StackdriverPayload payload = StackdriverPayload.TEXT;
+
+    @PluginBuilderAttribute
+    private int maxBatchMessages = BatchSettings.DEFAULT_MAX_BATCH_MESSAGES;
+
+    @PluginBuilderAttribute
+    private int maxBatchBytes = BatchSettings.DEFAULT_MAX_BATCH_BYTES;
+
+    @PluginBuilderAttribute
+    private int maxLingerMillis = BatchSettings.DEFAULT_MAX_LINGER_MILLIS;
+
+    @PluginBuilderAttribute
+    private boolean adaptiveBatching = false;
+
+    @PluginBuilderAttribute
+    private int minBatchMessages = BatchSettings.DEFAULT_MIN_BATCH_MESSAGES;
+
+    @PluginBuilderAttribute
+    private int minLingerMillis = BatchSettings.DEFAULT_MIN_LINGER_MILLIS;
+
+    @PluginBuilderAttribute
+    private int targetPublishLatencyMillis = BatchSettings.DEFAULT_TARGET_PUBLISH_LATENCY_MILLIS;
+
+    @PluginBuilderAttribute
+    private boolean async = false;
+
+    @PluginBuilderAttribute
+    private int queueCapacity = AsyncSettings.DEFAULT_QUEUE_CAPACITY;
+
+    @PluginBuilderAttribute
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    @PluginBuilderAttribute
+    private long blockTimeoutMillis = 0;
+
+    @PluginBuilderAttribute
+    private Level dropLevel = Level.INFO;
+
+    @PluginBuilderAttribute
+    private int maxInFlightRequests = PublishSettings.DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+
+    @PluginBuilderAttribute
+    private boolean preserveLoggerOrder = false;
+
+    @PluginBuilderAttribute
+    private boolean compressRequests = true;
+
+    @PluginBuilderAttribute
+    private int compressionLevel = PublishSettings.DEFAULT_COMPRESSION_LEVEL;
+
+    @PluginBuilderAttribute
+    private int compressionThresholdBytes = PublishSettings.DEFAULT_COMPRESSION_THRESHOLD_BYTES;
+
+    @PluginBuilderAttribute
+    private String spoolDirectory;
+
+    @PluginBuilderAttribute
+    private int maxSpoolSegmentBytes = SpoolSettings.DEFAULT_MAX_SEGMENT_BYTES;
+
+    @PluginBuilderAttribute
+    private long maxSpoolBytes = SpoolSettings.DEFAULT_MAX_SPOOL_BYTES;
+
+    @PluginBuilderAttribute
+    private int spoolReplayBytesPerSecond = SpoolSettings.DEFAULT_REPLAY_BYTES_PER_SECOND;
+
+    @PluginBuilderAttribute
+    private int maxConnectionsPerRoute = TransportSettings.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+
+    @PluginBuilderAttribute
+    private long keepAliveMillis = TransportSettings.DEFAULT_KEEP_ALIVE_MILLIS;
+
+    @PluginBuilderAttribute
+    private long idleConnectionTimeoutMillis = TransportSettings.DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLIS;
+
+    @PluginBuilderAttribute
+    private String transportFactory = HttpTransportFactories.JAVA_NET;
+
 
     @Override
     public GoogleCloudStackdriverAppender build() {
@@ -106,6 +235,63 @@ public class GoogleCloudStackdriverAppender extends AbstractAppender {
                 ? GoogleCloudCredentials.newBuilder().withComputeCredentials(true).build()
                 : GoogleCloudCredentials.createGoogleCloudCredentials(serviceAccountId, serviceAccountPrivateKeyP12FileName);
 
+        final BatchSettings batchSettings = BatchSettings.newBuilder()
+            .withMaxBatchMessages(maxBatchMessages)
+            .withMaxBatchBytes(maxBatchBytes)
+            .withMaxLingerMillis(maxLingerMillis)
+            .withAdaptive(adaptiveBatching)
+            .withMinBatchMessages(minBatchMessages)
+            .withMinLingerMillis(minLingerMillis)
+            .withTargetPublishLatencyMillis(targetPublishLatencyMillis)
+            .build();
+
+        final AsyncSettings asyncSettings = AsyncSettings.newBuilder()
+            .withAsync(async)
+            .withQueueCapacity(queueCapacity)
+            .withOverflowPolicy(overflowPolicy)
+            .withBlockTimeoutMillis(blockTimeoutMillis)
+            .withDropLevel(dropLevel)
+            .build();
+
+        final PublishSettings publishSettings = PublishSettings.newBuilder()
+            .withMaxInFlightRequests(maxInFlightRequests)
+            .withPreserveLoggerOrder(preserveLoggerOrder)
+            .withCompressRequests(compressRequests)
+            .withCompressionLevel(compressionLevel)
+            .withCompressionThresholdBytes(compressionThresholdBytes)
+            .withMaxRetryTimeMillis(maxRetryTimeMillis)
+            .withInitialRetryDelayMillis(initialRetryDelayMillis)
+            .withMaxRetryDelayMillis(maxRetryDelayMillis)
+            .withRetryBudgetRatio(retryBudgetRatio)
+            .withMinRetriesPerSecond(minRetriesPerSecond)
+            .withCircuitBreakerFailureRate(circuitBreakerFailureRate)
+            .withCircuitBreakerWindowSize(circuitBreakerWindowSize)
+            .withCircuitBreakerOpenMillis(circuitBreakerOpenMillis)
+            .withMaxRequestsPerSecond(maxRequestsPerSecond)
+            .withMaxBytesPerSecond(maxBytesPerSecond)
+            .build();
+
+        final SpoolSettings spoolSettings = SpoolSettings.newBuilder()
+            .withDirectory(spoolDirectory)
+            .withMaxSegmentBytes(maxSpoolSegmentBytes)
+            .withMaxSpoolBytes(maxSpoolBytes)
+            .withReplayBytesPerSecond(spoolReplayBytesPerSecond)
+            .build();
+
+        final TransportSettings transportSettings = TransportSettings.newBuilder()
+            .withMaxConnectionsPerRoute(maxConnectionsPerRoute)
+            .withKeepAliveMillis(keepAliveMillis)
+            .withIdleConnectionTimeoutMillis(idleConnectionTimeoutMillis)
+            .withTransportFactory(HttpTransportFactories.forName(transportFactory))
+            .build();
+
+        final Map<String, String> commonLabels = new LinkedHashMap<String, String>();
+        if (labels != null) {
+          for (final Property label : labels) {
+            commonLabels.put(label.getName(), label.getValue());
+          }
+        }
+
         return new GoogleCloudStackdriverAppender(name,
             filter,
             layout,
@@ -114,7 +300,13 @@ public class GoogleCloudStackdriverAppender extends AbstractAppender {
                 googleCloudCredentials,
                 resourceName,
                 logName,
-                maxRetryTimeMillis));
+                commonLabels,
+                payload,
+                batchSettings,
+                asyncSettings,
+                publishSettings,
+                spoolSettings,
+                transportSettings));
       } catch (final Throwable e) {
         LOGGER.error("Error creating GoogleCloudStackdriverAppender [{}]", name, e);
         return null;
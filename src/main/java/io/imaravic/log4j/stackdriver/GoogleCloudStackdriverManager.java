@@ -18,29 +18,50 @@ package io.imaravic.log4j.stackdriver;
 
 
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.Json;
 import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.client.util.Lists;
+import com.google.api.client.util.ArrayMap;
 import com.google.api.services.logging.v2.Logging;
 import com.google.api.services.logging.v2.LoggingScopes;
 import com.google.api.services.logging.v2.model.LogEntry;
 import com.google.api.services.logging.v2.model.MonitoredResource;
 import com.google.api.services.logging.v2.model.WriteLogEntriesRequest;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import io.imaravic.log4j.util.AbstractGoogleCloudManager;
+import io.imaravic.log4j.util.AsyncSettings;
+import io.imaravic.log4j.util.BatchSettings;
 import io.imaravic.log4j.util.GoogleCloudCredentials;
+import io.imaravic.log4j.util.GoogleCloudMetadata;
+import io.imaravic.log4j.util.PartialPublishException;
+import io.imaravic.log4j.util.PublishSettings;
+import io.imaravic.log4j.util.QueuedEvent;
+import io.imaravic.log4j.util.SharedHttpTransports;
+import io.imaravic.log4j.util.SpoolSettings;
+import io.imaravic.log4j.util.TransportSettings;
 import io.imaravic.log4j.util.RetryHttpInitializerWrapper;
 import org.apache.logging.log4j.Level;
-import org.apache.logging.log4j.core.Layout;
-import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AbstractManager;
-import org.apache.logging.log4j.core.appender.AppenderLoggingException;
 import org.apache.logging.log4j.core.appender.ManagerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.Serializable;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -49,31 +70,85 @@ import java.util.List;
 
 
 
-public class GoogleCloudStackdriverManager extends AbstractManager {
+public class GoogleCloudStackdriverManager extends AbstractGoogleCloudManager<LogEntry> {
   private static final String APPLICATION_NAME = "GoogleCloudStackdriver-Log4j2Appender";
 
+  // Fields of the jsonPayload with StackdriverPayload.JSON.
+  static final String MESSAGE_FIELD = "message";
+  static final String LOGGER_FIELD = "logger";
+  static final String THREAD_FIELD = "thread";
+  static final String EXCEPTION_FIELD = "exception";
+  static final String CONTEXT_FIELD = "context";
+  static final String PARAMETERS_FIELD = "parameters";
+  private static final int MAX_PAYLOAD_FIELDS = 6;
 
+  // Indexed by intLevel / 100, from OFF and FATAL up to DEBUG and TRACE, so
+  // a custom level gets the severity of the next more specific standard level.
+  private static final String[] SEVERITIES =
+      {"CRITICAL", "CRITICAL", "ERROR", "WARNING", "INFO", "DEBUG"};
+
+  // gRPC codes of entry errors which may go away, DEADLINE_EXCEEDED,
+  // RESOURCE_EXHAUSTED, ABORTED, INTERNAL and UNAVAILABLE. Entries failing
+  // with any other code are rejected for good.
+  private static final Set<Integer> RETRYABLE_ENTRY_CODES = ImmutableSet.of(4, 8, 10, 13, 14);
+  private static final int UNKNOWN_CODE = 2;
+
+  private static final String GCE_INSTANCE = "gce_instance";
+  private static final String GKE_CONTAINER = "gke_container";
+
+  private final HttpTransport transport;
+  private final GoogleCloudCredentials googleCloudCredentials;
+  private final Credential credential;
   private Logging stackdriverLoggingClient;
-  private String monitoredResource;
-  private String logName;
-  private List<LogEntry> logsBuffer = Lists.newArrayList();
+  // Shared by every request, only the entries change from batch to batch.
+  private final MonitoredResource monitoredResource;
+  private final String logName;
+  private final Map<String, String> labels;
+  private final StackdriverPayload payload;
   
   @VisibleForTesting
   GoogleCloudStackdriverManager(final String name,
                                 final HttpTransport transport,
                                 final GoogleCloudCredentials googleCloudCredentials,
                                 final String resourceName,
+                                final Map<String, String> resourceLabels,
                                 final String logName,
-                                final int maxRetryTimeMillis)
+                                final Map<String, String> labels,
+                                final StackdriverPayload payload,
+                                final BatchSettings batchSettings,
+                                final AsyncSettings asyncSettings,
+                                final PublishSettings publishSettings,
+                                final SpoolSettings spoolSettings)
       throws GeneralSecurityException, IOException
   {
-    super(null, name);
-    
-    this.monitoredResource = resourceName;
-    this.logName = logName;
-    
-    this.stackdriverLoggingClient = createStackdriverLoggingClient(transport,googleCloudCredentials,maxRetryTimeMillis);
+    super(name, batchSettings, asyncSettings, publishSettings, spoolSettings);
     
+    this.transport = transport;
+    this.googleCloudCredentials = googleCloudCredentials;
+    Credential acquiredCredential = null;
+    boolean created = false;
+    try {
+      acquiredCredential = googleCloudCredentials.acquireCredential(LoggingScopes.all());
+      this.credential = acquiredCredential;
+      this.monitoredResource = new MonitoredResource()
+          .setType(resourceName)
+          .setLabels(resourceLabels == null || resourceLabels.isEmpty() ? null : resourceLabels);
+      this.logName = logName;
+      this.labels = labels == null || labels.isEmpty()
+          ? null
+          : Collections.unmodifiableMap(new LinkedHashMap<String, String>(labels));
+      this.payload = payload;
+
+      this.stackdriverLoggingClient = createStackdriverLoggingClient(transport,credential);
+      created = true;
+    } finally {
+      if (!created) {
+        if (acquiredCredential != null) {
+          googleCloudCredentials.releaseCredential(acquiredCredential);
+        }
+        closeOnFailure();
+      }
+    }
   }
   
   private static String testInterception() {
@@ -81,93 +156,293 @@ public class GoogleCloudStackdriverManager extends AbstractManager {
   }
 
   private static Logging createStackdriverLoggingClient(final HttpTransport transport,
-                                                 final GoogleCloudCredentials googleCloudCredentials,
-                                                 final int maxRetryTimeMillis)
-      throws GeneralSecurityException, IOException {
-    final JacksonFactory jacksonFactory = JacksonFactory.getDefaultInstance();
-    Credential credential = googleCloudCredentials.getCredential(transport,
-        jacksonFactory,
-        LoggingScopes.all());
-    
+                                                 final Credential credential) {
     return new Logging.Builder(transport,
-        jacksonFactory,
-        new RetryHttpInitializerWrapper(
-            credential,
-            maxRetryTimeMillis
-        )).setApplicationName(APPLICATION_NAME).build();
+        JacksonFactory.getDefaultInstance(),
+        new RetryHttpInitializerWrapper(credential)).setApplicationName(APPLICATION_NAME).build();
   }
 
 
-  public synchronized void write(final LogEvent event, Layout<? extends Serializable> layout) {
-    final String logMsg = event.getMessage().getFormattedMessage();
-    byte[] bytes = layout.toByteArray(event);
+  @Override
+  protected boolean capturesEventDetails() {
+    return payload == StackdriverPayload.JSON;
+  }
 
+  @Override
+  protected LogEntry toBatchEntry(final QueuedEvent event) {
     LogEntry logEntry = new LogEntry();
-    logEntry.setTextPayload(new String(bytes));
-    Level level = event.getLevel();
-    logEntry.setSeverity(translate(level));
+    final String message = new String(event.getData(), 0, event.getLength());
+    if (payload == StackdriverPayload.JSON) {
+      logEntry.setJsonPayload(toJsonPayload(message, event));
+    } else {
+      logEntry.setTextPayload(message);
+    }
+    logEntry.setSeverity(toSeverity(event.getLevel()));
+    return logEntry;
+  }
+
+  /**
+   * Builds the payload straight from the captured event, sized upfront
+   * so the maps never rehash.
+   */
+  private static Map<String, Object> toJsonPayload(final String message, final QueuedEvent event) {
+    final Map<String, Object> jsonPayload = ArrayMap.create(MAX_PAYLOAD_FIELDS);
+    jsonPayload.put(MESSAGE_FIELD, message);
+    if (event.getLoggerName() != null) {
+      jsonPayload.put(LOGGER_FIELD, event.getLoggerName());
+    }
+    if (event.getThreadName() != null) {
+      jsonPayload.put(THREAD_FIELD, event.getThreadName());
+    }
+    if (event.getThrown() != null) {
+      final StringWriter stackTrace = new StringWriter();
+      event.getThrown().printStackTrace(new PrintWriter(stackTrace));
+      jsonPayload.put(EXCEPTION_FIELD, stackTrace.toString());
+    }
+    if (event.getContextSize() > 0) {
+      final Map<String, Object> context = ArrayMap.create(event.getContextSize());
+      for (int i = 0; i < event.getContextSize(); ++i) {
+        context.put(event.getContextKey(i), toJsonValue(event.getContextValue(i)));
+      }
+      jsonPayload.put(CONTEXT_FIELD, context);
+    }
+    if (event.getParameterCount() > 0) {
+      final List<Object> parameters = new ArrayList<Object>(event.getParameterCount());
+      for (int i = 0; i < event.getParameterCount(); ++i) {
+        parameters.add(toJsonValue(event.getParameter(i)));
+      }
+      jsonPayload.put(PARAMETERS_FIELD, parameters);
+    }
+    return jsonPayload;
+  }
 
-    logsBuffer.add(logEntry);
+  /**
+   * Keeps strings, booleans and finite numbers, anything else goes as its
+   * string value.
+   */
+  private static Object toJsonValue(final Object value) {
+    if (value == null || value instanceof String || value instanceof Boolean) {
+      return value;
+    }
+    if (value instanceof Number) {
+      final double number = ((Number) value).doubleValue();
+      if (!Double.isNaN(number) && !Double.isInfinite(number)) {
+        return value;
+      }
+    }
+    return String.valueOf(value);
+  }
 
-    if (event.isEndOfBatch()){
-      List<LogEntry> logsToWrite = this.logsBuffer;
-      this.logsBuffer = Lists.newArrayList();
+  @Override
+  protected void publish(final List<LogEntry> batch) throws IOException {
+    WriteLogEntriesRequest writeLogEntriesRequest = new WriteLogEntriesRequest()
+        .setLogName(logName)
+        .setResource(monitoredResource)
+        .setLabels(labels)
+        .setPartialSuccess(true)
+        .setEntries(batch);
 
-      WriteLogEntriesRequest writeLogEntriesRequest = new WriteLogEntriesRequest();
-      writeLogEntriesRequest.setEntries(logsToWrite);
-      MonitoredResource monitoredResource = new MonitoredResource().setType(this.monitoredResource);
-      writeLogEntriesRequest.setLogName(this.logName).setResource(monitoredResource);
+    try {
+      writeToGoogleCloudLogging(writeLogEntriesRequest);
+    } catch (final HttpResponseException e) {
+      final Map<Integer, EntryError> entryErrors = parseEntryErrors(e.getContent());
+      if (entryErrors.isEmpty()) {
+        throw e;
+      }
+      handleEntryErrors(batch, entryErrors, e);
+    }
+  }
+
+  /**
+   * With partialSuccess the valid entries of a batch are written even when
+   * others fail. Rejected entries are dropped, and only the ones which may
+   * succeed later are handed back to be spooled, both through a
+   * {@link PartialPublishException}.
+   */
+  private void handleEntryErrors(final List<LogEntry> batch,
+                                 final Map<Integer, EntryError> entryErrors,
+                                 final HttpResponseException cause) throws PartialPublishException {
+    final List<LogEntry> failed = new ArrayList<LogEntry>();
+    final List<LogEntry> rejected = new ArrayList<LogEntry>();
+    String rejection = null;
+    for (final Map.Entry<Integer, EntryError> entryError : entryErrors.entrySet()) {
+      final int index = entryError.getKey();
+      if (index < 0 || index >= batch.size()) {
+        continue;
+      }
+      if (RETRYABLE_ENTRY_CODES.contains(entryError.getValue().getCode())) {
+        failed.add(batch.get(index));
+      } else {
+        if (rejected.isEmpty()) {
+          rejection = entryError.getValue().getMessage();
+        }
+        rejected.add(batch.get(index));
+      }
+    }
+    if (!rejected.isEmpty()) {
+      LOGGER.error("{} rejected {} of {} messages, dropping them: {}",
+                   getDestination(), rejected.size(), batch.size(), rejection);
+    }
+    if (!failed.isEmpty() || !rejected.isEmpty()) {
+      throw new PartialPublishException("Publishing " + (failed.size() + rejected.size()) + " of " +
+                                        batch.size() + " messages to " + getDestination() + " failed",
+                                        failed,
+                                        rejected,
+                                        cause);
+    }
+  }
 
-      try {
-        writeToGoogleCloudLogging(writeLogEntriesRequest);
+  /**
+   * @return errors of single entries keyed by their index in the batch,
+   * from the WriteLogEntriesPartialErrors detail of a failed write
+   */
+  @VisibleForTesting
+  static Map<Integer, EntryError> parseEntryErrors(final String errorContent) {
+    final Map<Integer, EntryError> entryErrors = new TreeMap<Integer, EntryError>();
+    if (errorContent == null) {
+      return entryErrors;
+    }
+    try {
+      final Object error = field(JacksonFactory.getDefaultInstance()
+                                     .fromString(errorContent, GenericJson.class), "error");
+      final Object details = field(error, "details");
+      if (!(details instanceof List)) {
+        return entryErrors;
       }
-      catch (IOException e){
-        throw new AppenderLoggingException("Publishing message to Stackdriver Logging failed",e);
+      for (final Object detail : (List<?>) details) {
+        final Object logEntryErrors = field(detail, "logEntryErrors");
+        if (!(logEntryErrors instanceof Map)) {
+          continue;
+        }
+        for (final Map.Entry<?, ?> logEntryError : ((Map<?, ?>) logEntryErrors).entrySet()) {
+          final Object code = field(logEntryError.getValue(), "code");
+          final Object message = field(logEntryError.getValue(), "message");
+          entryErrors.put(Integer.valueOf(String.valueOf(logEntryError.getKey())),
+                          new EntryError(code instanceof Number ? ((Number) code).intValue() : UNKNOWN_CODE,
+                                         message == null ? null : String.valueOf(message)));
+        }
       }
+    } catch (final IOException e) {
+      entryErrors.clear();
+    } catch (final IllegalArgumentException e) {
+      // Not JSON, or an index which isn't a number.
+      entryErrors.clear();
     }
+    return entryErrors;
+  }
+
+  private static Object field(final Object json, final String name) {
+    return json instanceof Map ? ((Map<?, ?>) json).get(name) : null;
+  }
+
+  @Override
+  protected byte[] toSpoolRecord(final LogEntry entry) throws IOException {
+    return JacksonFactory.getDefaultInstance().toByteArray(entry);
+  }
+
+  @Override
+  protected LogEntry fromSpoolRecord(final byte[] record) throws IOException {
+    return JacksonFactory.getDefaultInstance()
+        .fromInputStream(new ByteArrayInputStream(record), LogEntry.class);
+  }
+
+  @Override
+  protected String getDestination() {
+    return "Stackdriver Logging";
+  }
+
+  @Override
+  protected boolean releaseSub(final long timeout, final TimeUnit timeUnit) {
+    final boolean released = super.releaseSub(timeout, timeUnit);
+    googleCloudCredentials.releaseCredential(credential);
+    SharedHttpTransports.release(transport);
+    return released;
   }
   
+  /**
+   * The request is serialized upfront, so its size decides whether it's
+   * gzipped, instead of the client always gzipping at the default level.
+   */
   @VisibleForTesting
   void writeToGoogleCloudLogging(WriteLogEntriesRequest writeLogEntriesRequest) throws IOException {
-    stackdriverLoggingClient.entries().write(writeLogEntriesRequest).execute();
+    final byte[] body = JacksonFactory.getDefaultInstance().toByteArray(writeLogEntriesRequest);
+    final Logging.Entries.Write write = stackdriverLoggingClient.entries().write(writeLogEntriesRequest);
+    write.setDisableGZipContent(true);
+    final HttpRequest request = write.buildHttpRequest();
+    request.setContent(new ByteArrayContent(Json.MEDIA_TYPE, body));
+    request.setEncoding(getRequestEncoding(body.length));
+    request.execute().ignore();
   }
   
-  private String translate(Level level){
-    if (level.isLessSpecificThan(Level.DEBUG)){
-      return "DEBUG";
-    }
-    if (level.isLessSpecificThan(Level.INFO)){
-      return "INFO";
+  /**
+   * Labels of the Compute Engine and Kubernetes Engine resources, as far
+   * as the metadata server knows them. Other resources get none.
+   */
+  @VisibleForTesting
+  static Map<String, String> getResourceLabels(final String resourceName,
+                                               final GoogleCloudMetadata metadata) {
+    final Map<String, String> labels = new LinkedHashMap<String, String>();
+    if (!GCE_INSTANCE.equals(resourceName) && !GKE_CONTAINER.equals(resourceName)) {
+      return labels;
     }
-    if (level.isLessSpecificThan(Level.WARN)){
-      return "WARNING";
+    putIfPresent(labels, "project_id", metadata.getIfPresent(GoogleCloudMetadata.PROJECT_ID));
+    putIfPresent(labels, "instance_id", metadata.getIfPresent(GoogleCloudMetadata.INSTANCE_ID));
+    final String zone = metadata.getIfPresent(GoogleCloudMetadata.ZONE);
+    // The zone comes as projects/[NUMERIC_PROJECT_ID]/zones/[ZONE].
+    putIfPresent(labels, "zone", zone != null ? zone.substring(zone.lastIndexOf('/') + 1) : null);
+    if (GKE_CONTAINER.equals(resourceName)) {
+      putIfPresent(labels, "cluster_name", metadata.getIfPresent(GoogleCloudMetadata.CLUSTER_NAME));
     }
-    if (level.isLessSpecificThan(Level.ERROR)){
-      return "ERROR";
+    return labels;
+  }
+
+  private static void putIfPresent(final Map<String, String> labels,
+                                   final String key,
+                                   final String value) {
+    if (value != null) {
+      labels.put(key, value);
     }
-    return "CRITICAL";
+  }
+
+  @VisibleForTesting
+  static String toSeverity(final Level level) {
+    return SEVERITIES[Math.min(level.intLevel() / 100, SEVERITIES.length - 1)];
   }
 
   public static GoogleCloudStackdriverManager getManager(final String name,
                                                          final GoogleCloudCredentials googleCloudCredentials,
                                                          final String resourceName,
                                                          final String logName,
-                                                         final int maxRetryTimeMillis){
+                                                         final Map<String, String> labels,
+                                                         final StackdriverPayload payload,
+                                                         final BatchSettings batchSettings,
+                                                         final AsyncSettings asyncSettings,
+                                                         final PublishSettings publishSettings,
+                                                         final SpoolSettings spoolSettings,
+                                                         final TransportSettings transportSettings){
     return AbstractManager.getManager(
         name,
         new ManagerFactory<GoogleCloudStackdriverManager, Object>() {
           @Override
           public GoogleCloudStackdriverManager createManager(String name, Object data) {
+            HttpTransport transport = null;
             try{
-              final HttpTransport transport = GoogleNetHttpTransport.newTrustedTransport();
+              transport = SharedHttpTransports.acquire(Logging.DEFAULT_ROOT_URL, transportSettings);
               return new GoogleCloudStackdriverManager(name,
                   transport,
                   googleCloudCredentials,
                   resourceName,
+                  getResourceLabels(resourceName, new GoogleCloudMetadata(transport)),
                   logName,
-                  maxRetryTimeMillis);
+                  labels,
+                  payload,
+                  batchSettings,
+                  asyncSettings,
+                  publishSettings,
+                  spoolSettings);
             } catch (Throwable e){
               LOGGER.error("Failed to initialize GoogleCloudLoggingManager", e);
+              SharedHttpTransports.release(transport);
             }
             return null;
           }
@@ -175,5 +450,27 @@ public class GoogleCloudStackdriverManager extends AbstractManager {
         },null);
   }
 
+  /**
+   * Status of a single entry which failed to be written.
+   */
+  static class EntryError {
+    private final int code;
+    private final String message;
+
+    EntryError(final int code, final String message) {
+      this.code = code;
+      this.message = message;
+    }
 
+    /**
+     * @return gRPC status code
+     */
+    int getCode() {
+      return code;
+    }
+
+    String getMessage() {
+      return message;
+    }
+  }
 }
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.imaravic.log4j.stackdriver;
+
+/**
+ * Payload of the log entries written to Stackdriver Logging.
+ */
+public enum StackdriverPayload {
+  /**
+   * The event rendered by the layout, as textPayload.
+   */
+  TEXT,
+
+  /**
+   * jsonPayload with the event rendered by the layout as its message,
+   * plus the logger, thread, throwable, context data and message
+   * parameters of the event as separate fields.
+   */
+  JSON
+}
@@ -0,0 +1,1490 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.api.client.http.HttpEncoding;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.Lists;
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractManager;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.util.Constants;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+import org.apache.logging.log4j.util.PropertiesUtil;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Batching engine shared by the Google Cloud managers.
+ *
+ * Appending threads publish serialized events into a lock-free ring buffer.
+ * Whoever holds the flush lock - the sender thread, or in synchronous mode
+ * the appending thread that completed a batch - drains the ring buffer into
+ * batches and hands them to {@link #publish(List)}, either directly or through
+ * a bounded window of concurrent publisher threads.
+ *
+ * Batches failing with a transient error are published again from a retry
+ * thread after a randomized delay, within a retry budget, so a failing
+ * request never holds up the thread that sent it. Only when preserving the
+ * logger order does the publisher thread of the lane wait for the retries,
+ * as later batches must not overtake the failed one.
+ *
+ * With adaptive batching a {@link BatchSizeController} picks the message
+ * limit and the linger time of batches from the latency of publishes.
+ *
+ * A {@link CircuitBreaker} stops calling a destination which keeps failing.
+ * While it's open, batches fail at once and go to the spool or are dropped.
+ * Fresh batches which don't fit into the rate limits of a
+ * {@link PublishRateLimiter} go to the spool or are dropped, rather than
+ * holding up the flushing thread, which is the logging thread in sync mode.
+ *
+ * What the manager does is counted in its {@link ManagerMetrics}, which
+ * are registered as an MBean. {@link LatencyHistogram}s follow how long
+ * events take to serialize, wait in the queue, and get acknowledged after
+ * they were logged, and how long publish requests take.
+ *
+ * With a spool configured, batches which still fail, and in async mode
+ * events that don't fit into the ring buffer, are written to disk and
+ * replayed by a background thread at a throttled rate. When publish throws
+ * a {@link PartialPublishException}, only the entries it names are retried
+ * or spooled.
+ *
+ * @param <E> type of a single entry in a published batch
+ */
+public abstract class AbstractGoogleCloudManager<E> extends AbstractManager {
+  private static final long SENDER_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long PRODUCER_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+  private static final long REPLAY_POLL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long MIN_REPLAY_BACKOFF_MILLIS = 1000;
+  private static final long MAX_REPLAY_BACKOFF_MILLIS = 60000;
+  // Metrics currently registered under each MBean name.
+  private static final ConcurrentMap<ObjectName, ManagerMetrics> REGISTERED_METRICS =
+      new ConcurrentHashMap<ObjectName, ManagerMetrics>();
+  // Encoder buffers grown past this by a large event shrink back after it.
+  private static final int MAX_RETAINED_ENCODER_BYTES = 256 * 1024;
+
+  private final BatchSettings batchSettings;
+  // Null unless batches are sized adaptively.
+  private final BatchSizeController batchSizeController;
+  private final boolean async;
+  private final RingBuffer<QueuedEvent> ringBuffer;
+  // Bytes published into the ring buffer and not drained yet.
+  private final AtomicLong ringBufferBytes = new AtomicLong();
+  private final ThreadFactory threadFactory;
+
+  private final OverflowPolicy overflowPolicy;
+  private final long blockTimeoutNanos;
+  private final Level dropLevel;
+  // Queue size from which DROP_BY_LEVEL discards less severe events.
+  private final int levelDropMark;
+  private final AtomicLongArray droppedEvents = new AtomicLongArray(DropReason.values().length);
+  private final AtomicBoolean dropWarningLogged = new AtomicBoolean();
+
+  private final ThreadLocal<ReusableByteBufferDestination> destinations =
+      new ThreadLocal<ReusableByteBufferDestination>() {
+        @Override
+        protected ReusableByteBufferDestination initialValue() {
+          return new ReusableByteBufferDestination(Constants.ENCODER_BYTE_BUFFER_SIZE,
+                                                   MAX_RETAINED_ENCODER_BYTES);
+        }
+      };
+
+  // Guards the consuming side of the ring buffer, so producers can evict
+  // events while the sender is busy publishing.
+  private final ReentrantLock consumeLock = new ReentrantLock();
+  private final RingBuffer.Handler<QueuedEvent> evictor = new RingBuffer.Handler<QueuedEvent>() {
+    @Override
+    public boolean onEvent(final QueuedEvent event) {
+      ringBufferBytes.addAndGet(-event.getLength());
+      event.clear();
+      return true;
+    }
+  };
+
+  // Batch under construction, guarded by flushLock.
+  private final ReentrantLock flushLock = new ReentrantLock();
+  private final PendingBatch<E> pendingBatch;
+
+  private final int maxInFlightRequests;
+  private final boolean preserveLoggerOrder;
+  private final Semaphore inFlightRequests;
+  // One single threaded publisher per logger lane when preserving the
+  // order, otherwise one shared pool. Unused with a window of one.
+  private final ExecutorService[] publishers;
+
+  private final int maxRetryTimeMillis;
+  private final int initialRetryDelayMillis;
+  private final int maxRetryDelayMillis;
+  private final RetryBudget retryBudget;
+  private final Random retryJitter = new Random();
+  // Publishes failed batches again once their delay is over, null when
+  // retries are turned off.
+  private final ScheduledThreadPoolExecutor retrier;
+  private final Set<Retry> pendingRetries = Collections.newSetFromMap(new ConcurrentHashMap<Retry, Boolean>());
+  // Null when the circuit breaker is turned off.
+  private final CircuitBreaker circuitBreaker;
+  // Null when requests aren't rate limited.
+  private final PublishRateLimiter rateLimiter;
+
+  // Null when requests are sent uncompressed.
+  private final HttpEncoding requestEncoding;
+  private final int compressionThresholdBytes;
+
+  private final DiskSpool spool;
+  private final int replayBytesPerSecond;
+
+  private final AtomicLong eventsAppended = new AtomicLong();
+  private final AtomicLong bytesSerialized = new AtomicLong();
+  private final AtomicLong eventsPublished = new AtomicLong();
+  private final AtomicLong batchesSent = new AtomicLong();
+  // Batches sent by the power of two below their size.
+  private final AtomicLongArray batchSizeCounts = new AtomicLongArray(Integer.SIZE);
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong publishFailures = new AtomicLong();
+  private final AtomicInteger requestsInFlight = new AtomicInteger();
+  private final LatencyHistogram serializationMicros = new LatencyHistogram();
+  private final LatencyHistogram queueWaitMicros = new LatencyHistogram();
+  private final LatencyHistogram roundTripMicros = new LatencyHistogram();
+  private final LatencyHistogram ackLagMillis = new LatencyHistogram();
+  private final ManagerMetrics metrics = new Metrics();
+  // Null unless the metrics are registered.
+  private final ObjectName metricsName;
+
+  private final Object senderLock = new Object();
+  private volatile Thread sender;
+  private volatile Thread replayer;
+  private volatile boolean senderParked = false;
+  private volatile boolean stopping = false;
+
+  protected AbstractGoogleCloudManager(final String name,
+                                       final BatchSettings batchSettings,
+                                       final AsyncSettings asyncSettings,
+                                       final PublishSettings publishSettings,
+                                       final SpoolSettings spoolSettings) throws IOException {
+    super(null, name);
+    this.batchSettings = batchSettings;
+    this.batchSizeController = batchSettings.isAdaptive()
+        ? new BatchSizeController(batchSettings)
+        : null;
+    this.async = asyncSettings.isAsync();
+    this.ringBuffer = new RingBuffer<QueuedEvent>(
+        RingBuffer.capacityFor(asyncSettings.getQueueCapacity()),
+        QueuedEvent.FACTORY);
+    this.threadFactory = Log4jThreadFactory.createDaemonThreadFactory("GoogleCloud-" + name);
+    this.overflowPolicy = asyncSettings.getOverflowPolicy();
+    this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(asyncSettings.getBlockTimeoutMillis());
+    this.dropLevel = asyncSettings.getDropLevel();
+    this.levelDropMark = ringBuffer.getCapacity() - ringBuffer.getCapacity() / 4;
+    this.pendingBatch = new PendingBatch<E>(batchSettings.getMaxBatchMessages());
+
+    this.maxInFlightRequests = publishSettings.getMaxInFlightRequests();
+    this.preserveLoggerOrder = publishSettings.isPreserveLoggerOrder() && maxInFlightRequests > 1;
+    this.inFlightRequests = new Semaphore(maxInFlightRequests);
+    if (maxInFlightRequests == 1) {
+      this.publishers = new ExecutorService[0];
+    } else if (preserveLoggerOrder) {
+      this.publishers = new ExecutorService[maxInFlightRequests];
+      for (int i = 0; i < maxInFlightRequests; ++i) {
+        publishers[i] = Executors.newSingleThreadExecutor(threadFactory);
+      }
+    } else {
+      this.publishers = new ExecutorService[] {
+          Executors.newFixedThreadPool(maxInFlightRequests, threadFactory)
+      };
+    }
+    this.maxRetryTimeMillis = publishSettings.getMaxRetryTimeMillis();
+    this.initialRetryDelayMillis = publishSettings.getInitialRetryDelayMillis();
+    this.maxRetryDelayMillis = publishSettings.getMaxRetryDelayMillis();
+    this.retryBudget = new RetryBudget(publishSettings.getRetryBudgetRatio(),
+                                       publishSettings.getMinRetriesPerSecond());
+    if (maxRetryTimeMillis > 0) {
+      this.retrier = new ScheduledThreadPoolExecutor(1, threadFactory);
+      retrier.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    } else {
+      this.retrier = null;
+    }
+    this.circuitBreaker = publishSettings.getCircuitBreakerFailureRate() > 0
+        ? new CircuitBreaker(publishSettings.getCircuitBreakerFailureRate(),
+                             publishSettings.getCircuitBreakerWindowSize(),
+                             publishSettings.getCircuitBreakerOpenMillis())
+        : null;
+    this.rateLimiter = publishSettings.getMaxRequestsPerSecond() > 0 ||
+                       publishSettings.getMaxBytesPerSecond() > 0
+        ? new PublishRateLimiter(publishSettings.getMaxRequestsPerSecond(),
+                                 publishSettings.getMaxBytesPerSecond())
+        : null;
+    this.requestEncoding = publishSettings.isCompressRequests()
+        ? new GzipEncoding(publishSettings.getCompressionLevel())
+        : null;
+    this.compressionThresholdBytes = publishSettings.getCompressionThresholdBytes();
+
+    this.spool = spoolSettings.isEnabled()
+        ? new DiskSpool(new File(spoolSettings.getDirectory(), name.replaceAll("[^A-Za-z0-9._-]", "_")),
+                        spoolSettings.getMaxSegmentBytes(),
+                        spoolSettings.getMaxSpoolBytes())
+        : null;
+    this.replayBytesPerSecond = spoolSettings.getReplayBytesPerSecond();
+    this.metricsName = registerMetrics(name);
+  }
+
+  /**
+   * Releases what this constructor acquired: the publisher threads, the
+   * spool and the metrics MBean. Subclass constructors call it when they
+   * fail after it, as releaseSub never runs for a manager which wasn't
+   * created.
+   */
+  protected void closeOnFailure() {
+    for (final ExecutorService publisher : publishers) {
+      publisher.shutdownNow();
+    }
+    if (retrier != null) {
+      retrier.shutdownNow();
+    }
+    if (spool != null) {
+      try {
+        spool.close();
+      } catch (final IOException e) {
+        LOGGER.error("Closing the spool of {} failed", getName(), e);
+      }
+    }
+    unregisterMetrics();
+  }
+
+  /**
+   * Registers the metrics as an MBean, replacing the metrics of a manager
+   * with the same name which wasn't stopped.
+   *
+   * @return null if JMX is disabled or registering failed
+   */
+  private ObjectName registerMetrics(final String name) {
+    if (PropertiesUtil.getProperties().getBooleanProperty("log4j2.disable.jmx")) {
+      return null;
+    }
+    try {
+      final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName objectName = new ObjectName(
+          "io.imaravic.log4j:type=" + getClass().getSimpleName() + ",name=" + ObjectName.quote(name));
+      synchronized (REGISTERED_METRICS) {
+        try {
+          mbeanServer.registerMBean(metrics, objectName);
+        } catch (final InstanceAlreadyExistsException e) {
+          mbeanServer.unregisterMBean(objectName);
+          mbeanServer.registerMBean(metrics, objectName);
+        }
+        REGISTERED_METRICS.put(objectName, metrics);
+      }
+      return objectName;
+    } catch (final JMException e) {
+      LOGGER.warn("Registering the metrics of {} failed", name, e);
+      return null;
+    }
+  }
+
+  private void unregisterMetrics() {
+    if (metricsName == null) {
+      return;
+    }
+    synchronized (REGISTERED_METRICS) {
+      // A newer manager with the same name unregisters its own metrics.
+      if (!REGISTERED_METRICS.remove(metricsName, metrics)) {
+        return;
+      }
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+      } catch (final JMException e) {
+        LOGGER.debug("Unregistering {} failed", metricsName, e);
+      }
+    }
+  }
+
+  /**
+   * @return what the manager has done since it started
+   */
+  public ManagerMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Encodes the event with the garbage-free Layout.encode into a buffer
+   * of the calling thread, unless thread locals are disabled.
+   */
+  public void write(final LogEvent event, final Layout<? extends Serializable> layout) {
+    final long startNanos = System.nanoTime();
+    if (!Constants.ENABLE_THREADLOCALS) {
+      final byte[] data = layout.toByteArray(event);
+      recordSerialization(startNanos);
+      append(data, event);
+      return;
+    }
+    final ReusableByteBufferDestination destination = destinations.get();
+    destination.encode(event, layout);
+    recordSerialization(startNanos);
+    try {
+      append(destination.getArray(), 0, destination.getLength(), event);
+    } finally {
+      destination.reset();
+    }
+  }
+
+  protected void append(final byte[] data, final LogEvent event) {
+    append(data, 0, data.length, event);
+  }
+
+  /**
+   * Queues length bytes of data starting at offset. They are copied,
+   * so data can be reused once this returns.
+   */
+  protected void append(final byte[] data, final int offset, final int length, final LogEvent event) {
+    countAppended(length);
+    if (spool != null) {
+      startReplayer();
+    }
+    final long sequence = claim(data, offset, length, event);
+    if (sequence < 0) {
+      return;
+    }
+    final QueuedEvent slot = ringBuffer.get(sequence);
+    slot.set(data,
+             offset,
+             length,
+             event.getLevel(),
+             event.getLoggerName(),
+             event.getTimeMillis(),
+             System.nanoTime());
+    if (capturesEventDetails()) {
+      slot.setDetails(event);
+    }
+    ringBuffer.publish(sequence);
+
+    final boolean batchReady =
+        ringBufferBytes.addAndGet(length) >= batchSettings.getMaxBatchBytes() ||
+        ringBuffer.size() >= batchMessageLimit();
+
+    if (async) {
+      startSender();
+      if (batchReady || batchSettings.getMaxLingerMillis() <= 0) {
+        wakeSender();
+      }
+    } else if (event.isEndOfBatch()) {
+      flush();
+    } else if (batchReady) {
+      flushLock.lock();
+      try {
+        drain(false);
+      } finally {
+        flushLock.unlock();
+      }
+    } else if (batchSettings.getMaxLingerMillis() > 0) {
+      startSender();
+    }
+  }
+
+  private void recordSerialization(final long startNanos) {
+    final long nowNanos = System.nanoTime();
+    serializationMicros.record(TimeUnit.NANOSECONDS.toMicros(nowNanos - startNanos), nowNanos);
+  }
+
+  // Out of append, which has to stay small enough to be inlined, or the
+  // garbage-free appends start allocating.
+  private void countAppended(final int length) {
+    eventsAppended.incrementAndGet();
+    bytesSerialized.addAndGet(length);
+  }
+
+  /**
+   * Claims a ring buffer slot, applying the overflow policy in async mode.
+   *
+   * @return claimed sequence, or -1 if the event was spooled or dropped
+   */
+  private long claim(final byte[] data, final int offset, final int length, final LogEvent event) {
+    final boolean droppableLevel = overflowPolicy == OverflowPolicy.DROP_BY_LEVEL &&
+                                   event.getLevel() != null &&
+                                   event.getLevel().isLessSpecificThan(dropLevel);
+    if (async && droppableLevel && ringBuffer.size() >= levelDropMark) {
+      drop(DropReason.LEVEL);
+      return -1;
+    }
+
+    long blockDeadline = 0;
+    long sequence;
+    while ((sequence = ringBuffer.tryNext()) < 0) {
+      if (!async) {
+        flush();
+        continue;
+      }
+      startSender();
+      wakeSender();
+      if (spool != null) {
+        spill(data, offset, length, event);
+        return -1;
+      } else if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+        drop(DropReason.QUEUE_FULL);
+        return -1;
+      } else if (overflowPolicy == OverflowPolicy.DROP_OLDEST && evictOldest()) {
+        continue;
+      } else if (droppableLevel) {
+        drop(DropReason.LEVEL);
+        return -1;
+      }
+      if (blockTimeoutNanos > 0) {
+        final long now = System.nanoTime();
+        if (blockDeadline == 0) {
+          blockDeadline = now + blockTimeoutNanos;
+        } else if (now - blockDeadline >= 0) {
+          drop(DropReason.BLOCK_TIMEOUT);
+          return -1;
+        }
+      }
+      LockSupport.parkNanos(PRODUCER_WAIT_NANOS);
+    }
+    return sequence;
+  }
+
+  /**
+   * Discards the oldest queued event.
+   *
+   * @return false if the oldest slot is still being written
+   */
+  private boolean evictOldest() {
+    consumeLock.lock();
+    try {
+      if (ringBuffer.drain(evictor, 1) == 0) {
+        return false;
+      }
+    } finally {
+      consumeLock.unlock();
+    }
+    drop(DropReason.EVICTED);
+    return true;
+  }
+
+  private void drop(final DropReason reason) {
+    droppedEvents.incrementAndGet(reason.ordinal());
+    if (dropWarningLogged.compareAndSet(false, true)) {
+      LOGGER.warn("Queue for {} is full, dropping events ({})", getDestination(), reason);
+    }
+  }
+
+  /**
+   * @return events discarded for the given reason since the manager started
+   */
+  public long getDroppedEvents(final DropReason reason) {
+    return droppedEvents.get(reason.ordinal());
+  }
+
+  /**
+   * @return events discarded for any reason since the manager started
+   */
+  public long getDroppedEvents() {
+    long dropped = 0;
+    for (int i = 0; i < droppedEvents.length(); ++i) {
+      dropped += droppedEvents.get(i);
+    }
+    return dropped;
+  }
+
+  /**
+   * @return messages a batch is sent with, which changes over time with
+   * adaptive batching
+   */
+  public int getBatchMessageLimit() {
+    return batchMessageLimit();
+  }
+
+  /**
+   * @return time after which a partial batch is sent, which changes over
+   * time with adaptive batching
+   */
+  public long getLingerMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(lingerNanos());
+  }
+
+  /**
+   * @return state of the circuit breaker, always CLOSED when it's turned off
+   */
+  public CircuitState getCircuitState() {
+    return circuitBreaker != null ? circuitBreaker.getState() : CircuitState.CLOSED;
+  }
+
+  /**
+   * @return how many times the circuit went into the given state since the
+   * manager started
+   */
+  public long getCircuitTransitions(final CircuitState state) {
+    return circuitBreaker != null ? circuitBreaker.getTransitions(state) : 0;
+  }
+
+  /**
+   * Publishes everything appended so far.
+   */
+  public void flush() {
+    flushLock.lock();
+    try {
+      drain(true);
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /**
+   * Moves events from the ring buffer into batches and publishes every
+   * full batch, and the last partial one if requested.
+   */
+  private void drain(final boolean includePartial) {
+    while (true) {
+      final boolean full = fillPendingBatch();
+      if (pendingBatch.entries.isEmpty() || !(full || includePartial)) {
+        return;
+      }
+      publishPendingBatch();
+      if (!full) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return true if the pending batch reached one of its limits
+   */
+  private boolean fillPendingBatch() {
+    final BatchFiller batchFiller = new BatchFiller();
+    consumeLock.lock();
+    try {
+      ringBuffer.drain(batchFiller,
+                       batchMessageLimit() - pendingBatch.entries.size());
+    } finally {
+      consumeLock.unlock();
+    }
+    return batchFiller.cut ||
+           pendingBatch.entries.size() >= batchMessageLimit() ||
+           pendingBatch.bytes >= batchSettings.getMaxBatchBytes();
+  }
+
+  private void publishPendingBatch() {
+    final TimedBatch<E> entries = pendingBatch.entries;
+    if (maxInFlightRequests == 1) {
+      final boolean allowed = tryAcquireRateLimit(1, pendingBatch.bytes);
+      pendingBatch.reset();
+      if (!allowed) {
+        shed(entries);
+        return;
+      }
+      retryBudget.deposit();
+      try {
+        send(entries);
+      } catch (final CircuitOpenException e) {
+        giveUp(entries, e);
+      } catch (final IOException e) {
+        if (!retryLater(entries, e, System.nanoTime(), 0) && !spoolFailedBatch(entries, e)) {
+          throw new AppenderLoggingException("Publishing message to " + getDestination() + " failed", e);
+        }
+      }
+    } else if (preserveLoggerOrder) {
+      final List<TimedBatch<E>> laneEntries = Lists.newArrayListWithCapacity(publishers.length);
+      for (int lane = 0; lane < publishers.length; ++lane) {
+        laneEntries.add(new TimedBatch<E>());
+      }
+      for (int i = 0; i < entries.size(); ++i) {
+        laneEntries.get(pendingBatch.lanes[i]).add(entries.get(i), entries.getTimeMillis(i));
+      }
+      int requests = 0;
+      for (final TimedBatch<E> lane : laneEntries) {
+        if (!lane.isEmpty()) {
+          ++requests;
+        }
+      }
+      final boolean allowed = tryAcquireRateLimit(requests, pendingBatch.bytes);
+      pendingBatch.reset();
+      if (!allowed) {
+        shed(entries);
+        return;
+      }
+      for (int lane = 0; lane < publishers.length; ++lane) {
+        if (!laneEntries.get(lane).isEmpty()) {
+          dispatch(laneEntries.get(lane), publishers[lane]);
+        }
+      }
+    } else {
+      final boolean allowed = tryAcquireRateLimit(1, pendingBatch.bytes);
+      pendingBatch.reset();
+      if (!allowed) {
+        shed(entries);
+        return;
+      }
+      dispatch(entries, publishers[0]);
+    }
+  }
+
+  /**
+   * Takes the tokens of the requests if they fit into the rate limits.
+   * Shutdown isn't limited, so the last batches are flushed in time.
+   */
+  private boolean tryAcquireRateLimit(final int requests, final long bytes) {
+    return rateLimiter == null || stopping || rateLimiter.tryAcquire(requests, bytes) == 0;
+  }
+
+  /**
+   * Takes the rate limit tokens of requests sent without asking the rate
+   * limiter first, such as retries, or the requests publish splits a batch
+   * into beyond the first one. They hold back later batches.
+   */
+  protected void chargeRequests(final int requests) {
+    if (rateLimiter != null) {
+      rateLimiter.charge(requests, 0);
+    }
+  }
+
+  /**
+   * Spools or drops a batch over the rate limits. Waiting for them would
+   * hold up the flushing thread, which is the logging thread in sync mode.
+   */
+  private void shed(final List<E> batch) {
+    giveUp(batch, new RateLimitedException("Publishing to " + getDestination() + " is over its rate limits"));
+  }
+
+  /**
+   * Sends the batch from a publisher thread, waiting for a free slot
+   * in the in-flight window first.
+   */
+  private void dispatch(final List<E> batch, final ExecutorService publisher) {
+    inFlightRequests.acquireUninterruptibly();
+    retryBudget.deposit();
+    try {
+      publisher.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (preserveLoggerOrder) {
+              publishInOrder(batch);
+            } else {
+              send(batch);
+            }
+          } catch (final IOException e) {
+            if (!retryLater(batch, e, System.nanoTime(), 0)) {
+              giveUp(batch, e);
+            }
+          } catch (final RuntimeException e) {
+            LOGGER.error("Publishing message to {} failed", getDestination(), e);
+          } finally {
+            inFlightRequests.release();
+          }
+        }
+      });
+    } catch (final RejectedExecutionException e) {
+      inFlightRequests.release();
+      throw new AppenderLoggingException("Publishing message to " + getDestination() + " failed", e);
+    }
+  }
+
+  /**
+   * Publishes the batch, retrying it right on the calling publisher thread,
+   * as later batches of its lane must not overtake it.
+   */
+  private void publishInOrder(final List<E> batch) {
+    List<E> entries = batch;
+    long firstFailureNanos = 0;
+    for (int attempt = 0; ; ++attempt) {
+      try {
+        send(entries);
+        return;
+      } catch (final IOException e) {
+        if (firstFailureNanos == 0) {
+          firstFailureNanos = System.nanoTime();
+        }
+        final long delayMillis = nextRetryDelayMillis(e, firstFailureNanos, attempt);
+        if (delayMillis < 0) {
+          giveUp(entries, e);
+          return;
+        }
+        entries = failedEntries(entries, e);
+        retries.incrementAndGet();
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        chargeRequests(1);
+      }
+    }
+  }
+
+  /**
+   * Publishes the batch through the circuit breaker.
+   *
+   * @throws CircuitOpenException without calling the destination while
+   *         the circuit is open
+   */
+  private void send(final List<E> batch) throws IOException {
+    if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+      throw new CircuitOpenException("Circuit to " + getDestination() + " is open");
+    }
+    // Errors the destination itself reports for some entries or requests
+    // show it's up, only transient failures of whole requests count.
+    final long sentNanos = System.nanoTime();
+    requestsInFlight.incrementAndGet();
+    boolean failed = true;
+    try {
+      publish(batch);
+      failed = false;
+      countSent(batch, null);
+    } catch (final IOException e) {
+      publishFailures.incrementAndGet();
+      failed = isRetryable(e) && !(e instanceof PartialPublishException);
+      if (!(e instanceof PartialPublishException)) {
+        throw e;
+      }
+      final List<E> failedEntries = failedEntries(batch, e);
+      final List<?> rejectedEntries = ((PartialPublishException) e).getRejectedEntries();
+      droppedEvents.addAndGet(DropReason.REJECTED.ordinal(), rejectedEntries.size());
+      final List<Object> unpublished = new ArrayList<Object>(failedEntries);
+      unpublished.addAll(rejectedEntries);
+      countSent(batch, unpublished);
+      if (!failedEntries.isEmpty()) {
+        throw e;
+      }
+      // Nothing left to publish again.
+    } catch (final RuntimeException e) {
+      publishFailures.incrementAndGet();
+      throw e;
+    } finally {
+      requestsInFlight.decrementAndGet();
+      onPublished(sentNanos, failed);
+    }
+  }
+
+  /**
+   * @param failed entries of the batch which weren't published, null if
+   *               all of them were
+   */
+  private void countSent(final List<E> batch, final List<?> failed) {
+    final int events = batch.size() - (failed != null ? failed.size() : 0);
+    eventsPublished.addAndGet(events);
+    batchesSent.incrementAndGet();
+    if (events > 0) {
+      batchSizeCounts.incrementAndGet(Integer.SIZE - 1 - Integer.numberOfLeadingZeros(events));
+    }
+    if (batch instanceof TimedBatch) {
+      recordAckLag((TimedBatch<E>) batch, failed);
+    }
+  }
+
+  /**
+   * Records how long ago the acknowledged events of the batch were logged.
+   * Replayed batches don't know when their events were logged, they aren't
+   * counted.
+   */
+  private void recordAckLag(final TimedBatch<E> batch, final List<?> failed) {
+    final long nowMillis = System.currentTimeMillis();
+    final long nowNanos = System.nanoTime();
+    final Set<Object> unacknowledged = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    if (failed != null) {
+      unacknowledged.addAll(failed);
+    }
+    for (int i = 0; i < batch.size(); ++i) {
+      if (!unacknowledged.contains(batch.get(i))) {
+        ackLagMillis.record(nowMillis - batch.getTimeMillis(i), nowNanos);
+      }
+    }
+  }
+
+  private void onPublished(final long sentNanos, final boolean failed) {
+    final long nowNanos = System.nanoTime();
+    roundTripMicros.record(TimeUnit.NANOSECONDS.toMicros(nowNanos - sentNanos), nowNanos);
+    if (batchSizeController != null) {
+      batchSizeController.onPublished(sentNanos, nowNanos - sentNanos, failed);
+    }
+    if (circuitBreaker == null) {
+      return;
+    }
+    if (failed) {
+      if (circuitBreaker.onFailure()) {
+        LOGGER.warn("Publishing to {} keeps failing, opening its circuit", getDestination());
+      }
+    } else if (circuitBreaker.onSuccess()) {
+      LOGGER.info("Publishing to {} recovered, closing its circuit", getDestination());
+    }
+  }
+
+  private int batchMessageLimit() {
+    return batchSizeController != null
+        ? batchSizeController.getBatchMessages()
+        : batchSettings.getMaxBatchMessages();
+  }
+
+  private long lingerNanos() {
+    return batchSizeController != null
+        ? batchSizeController.getLingerNanos()
+        : TimeUnit.MILLISECONDS.toNanos(batchSettings.getMaxLingerMillis());
+  }
+
+  /**
+   * Schedules the entries of the batch which weren't published to be sent
+   * again from the retry thread.
+   *
+   * @return false if the batch is not retried, because the error is
+   *         permanent or it's out of retry time or budget
+   */
+  private boolean retryLater(final List<E> batch,
+                             final IOException cause,
+                             final long firstFailureNanos,
+                             final int attempt) {
+    final long delayMillis = nextRetryDelayMillis(cause, firstFailureNanos, attempt);
+    if (delayMillis < 0) {
+      return false;
+    }
+    final Retry retry = new Retry(failedEntries(batch, cause), firstFailureNanos, attempt + 1);
+    pendingRetries.add(retry);
+    try {
+      retrier.schedule(retry, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (final RejectedExecutionException e) {
+      pendingRetries.remove(retry);
+      return false;
+    }
+    retries.incrementAndGet();
+    LOGGER.debug("Publishing message to {} failed, retrying in {} ms", getDestination(), delayMillis, cause);
+    return true;
+  }
+
+  /**
+   * @return milliseconds to wait before the next attempt, or -1 if there
+   *         is none
+   */
+  private long nextRetryDelayMillis(final IOException cause,
+                                    final long firstFailureNanos,
+                                    final int attempt) {
+    if (maxRetryTimeMillis <= 0 || stopping || !isRetryable(cause) ||
+        cause instanceof CircuitOpenException) {
+      return -1;
+    }
+    final long delayMillis = retryDelayMillis(attempt);
+    final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - firstFailureNanos);
+    if (elapsedMillis + delayMillis > maxRetryTimeMillis) {
+      return -1;
+    }
+    // Only peeks, the retry takes its tokens when it's sent.
+    if (rateLimiter != null && rateLimiter.nanosUntilAvailable(1, 0) > 0) {
+      // Retrying over the rate limit would only add to the throttling.
+      return -1;
+    }
+    // Last, so retries given up for the other reasons don't spend the budget.
+    if (!retryBudget.tryWithdraw()) {
+      return -1;
+    }
+    return delayMillis;
+  }
+
+  /**
+   * Full jitter: a random delay up to the exponential backoff, so clients
+   * failing together don't all retry at the same time.
+   */
+  @VisibleForTesting
+  long retryDelayMillis(final int attempt) {
+    final long ceiling = Math.min((long) initialRetryDelayMillis << Math.min(attempt, 30),
+                                  maxRetryDelayMillis);
+    return (long) (retryJitter.nextDouble() * ceiling);
+  }
+
+  /**
+   * Spools the failed entries of a batch which won't be retried anymore,
+   * or counts them as dropped without a spool.
+   */
+  private void giveUp(final List<E> batch, final IOException cause) {
+    if (spoolFailedBatch(batch, cause)) {
+      return;
+    }
+    if (cause instanceof CircuitOpenException) {
+      droppedEvents.addAndGet(DropReason.CIRCUIT_OPEN.ordinal(), batch.size());
+      return;
+    }
+    if (cause instanceof RateLimitedException) {
+      droppedEvents.addAndGet(DropReason.RATE_LIMITED.ordinal(), batch.size());
+      return;
+    }
+    final int lost = failedEntries(batch, cause).size();
+    droppedEvents.addAndGet(DropReason.PUBLISH_FAILED.ordinal(), lost);
+    LOGGER.error("Publishing {} messages to {} failed, dropping them", lost, getDestination(), cause);
+  }
+
+  /**
+   * @return false if the batch was not spooled and is lost
+   */
+  private boolean spoolFailedBatch(final List<E> batch, final IOException cause) {
+    if (spool == null || !isRetryable(cause)) {
+      return false;
+    }
+    final List<E> failed = failedEntries(batch, cause);
+    LOGGER.warn("Publishing message to {} failed, spooling {} messages to disk",
+                getDestination(), failed.size(), cause);
+    for (final E entry : failed) {
+      try {
+        writeToSpool(toSpoolRecord(entry));
+      } catch (final IOException e) {
+        LOGGER.error("Spooling message for {} failed", getDestination(), e);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return entries of the batch which weren't published
+   */
+  @SuppressWarnings("unchecked")
+  private List<E> failedEntries(final List<E> batch, final IOException cause) {
+    if (!(cause instanceof PartialPublishException)) {
+      return batch;
+    }
+    final List<E> failed = (List<E>) ((PartialPublishException) cause).getFailedEntries();
+    // Keeps the times of the failed entries, for when they're retried.
+    return batch instanceof TimedBatch ? ((TimedBatch<E>) batch).subset(failed) : failed;
+  }
+
+  /**
+   * Writes an event that found the ring buffer full straight to the spool.
+   */
+  private void spill(final byte[] data, final int offset, final int length, final LogEvent event) {
+    final QueuedEvent overflow = new QueuedEvent();
+    overflow.set(data,
+                 offset,
+                 length,
+                 event.getLevel(),
+                 event.getLoggerName(),
+                 event.getTimeMillis(),
+                 System.nanoTime());
+    if (capturesEventDetails()) {
+      overflow.setDetails(event);
+    }
+    try {
+      writeToSpool(toSpoolRecord(toBatchEntry(overflow)));
+    } catch (final IOException e) {
+      throw new AppenderLoggingException("Spooling message for " + getDestination() + " failed", e);
+    }
+  }
+
+  private void writeToSpool(final byte[] record) throws IOException {
+    if (!spool.append(record)) {
+      LOGGER.error("Message of {} bytes doesn't fit into a spool segment, dropping it", record.length);
+    }
+  }
+
+  /**
+   * Server errors, throttling and I/O failures may succeed later,
+   * other client errors never will.
+   *
+   * @return whether publishing failed for a reason that may go away
+   */
+  protected static boolean isRetryable(final IOException e) {
+    if (e instanceof PartialPublishException) {
+      return ((PartialPublishException) e).isRetryable();
+    }
+    if (e instanceof HttpResponseException) {
+      final int statusCode = ((HttpResponseException) e).getStatusCode();
+      return statusCode >= 500 || statusCode == 429 || statusCode == 408;
+    }
+    return true;
+  }
+
+  private int laneOf(final String loggerName) {
+    return loggerName == null
+        ? 0
+        : (loggerName.hashCode() & Integer.MAX_VALUE) % publishers.length;
+  }
+
+  private void startSender() {
+    if (sender != null) {
+      return;
+    }
+    synchronized (senderLock) {
+      if (sender == null) {
+        final Thread thread = threadFactory.newThread(new Sender());
+        thread.start();
+        sender = thread;
+      }
+    }
+  }
+
+  private void startReplayer() {
+    if (replayer != null) {
+      return;
+    }
+    synchronized (senderLock) {
+      if (replayer == null) {
+        final Thread thread = threadFactory.newThread(new Replayer());
+        thread.start();
+        replayer = thread;
+      }
+    }
+  }
+
+  private void wakeSender() {
+    if (senderParked) {
+      LockSupport.unpark(sender);
+    }
+  }
+
+  @Override
+  protected boolean releaseSub(final long timeout, final TimeUnit timeUnit) {
+    stopping = true;
+    final Thread senderThread = sender;
+    final Thread replayerThread = replayer;
+    join(senderThread, timeout, timeUnit);
+    join(replayerThread, timeout, timeUnit);
+    try {
+      flush();
+    } catch (final AppenderLoggingException e) {
+      LOGGER.error("Flushing messages on shutdown failed", e);
+    }
+    final boolean published = awaitInFlightRequests(timeout, timeUnit);
+    for (final ExecutorService publisher : publishers) {
+      publisher.shutdown();
+    }
+    if (retrier != null) {
+      retrier.shutdown();
+      try {
+        retrier.awaitTermination(timeout, timeUnit);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      // Batches still waiting for their delay get a last attempt, as
+      // stopping keeps them from being scheduled again.
+      for (final Retry retry : pendingRetries) {
+        retry.run();
+      }
+    }
+    if (spool != null) {
+      try {
+        spool.close();
+      } catch (final IOException e) {
+        LOGGER.error("Closing the spool of {} failed", getDestination(), e);
+      }
+    }
+    unregisterMetrics();
+    return published &&
+           (senderThread == null || !senderThread.isAlive()) &&
+           (replayerThread == null || !replayerThread.isAlive());
+  }
+
+  private static void join(final Thread thread, final long timeout, final TimeUnit timeUnit) {
+    if (thread == null) {
+      return;
+    }
+    LockSupport.unpark(thread);
+    try {
+      thread.join(timeUnit.toMillis(timeout));
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private boolean awaitInFlightRequests(final long timeout, final TimeUnit timeUnit) {
+    if (timeout <= 0) {
+      inFlightRequests.acquireUninterruptibly(maxInFlightRequests);
+      return true;
+    }
+    try {
+      return inFlightRequests.tryAcquire(maxInFlightRequests, timeout, timeUnit);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * @return the encoding for a request body of the given length, or null
+   * if it should be sent as is
+   */
+  protected HttpEncoding getRequestEncoding(final long contentLength) {
+    return contentLength >= compressionThresholdBytes ? requestEncoding : null;
+  }
+
+  /**
+   * @return true if toBatchEntry needs the details of queued events,
+   * see {@link QueuedEvent#setDetails}
+   */
+  protected boolean capturesEventDetails() {
+    return false;
+  }
+
+  /**
+   * Converts a queued event to an entry of the published batch.
+   */
+  protected abstract E toBatchEntry(QueuedEvent event);
+
+  protected abstract void publish(List<E> batch) throws IOException;
+
+  /**
+   * Serializes a batch entry for the spool.
+   */
+  protected abstract byte[] toSpoolRecord(E entry) throws IOException;
+
+  protected abstract E fromSpoolRecord(byte[] record) throws IOException;
+
+  /**
+   * @return human readable destination, used in error messages
+   */
+  protected abstract String getDestination();
+
+  private static class PendingBatch<E> {
+    private TimedBatch<E> entries = new TimedBatch<E>();
+    // Publisher lane of each entry, when preserving the logger order.
+    private final int[] lanes;
+    private int bytes = 0;
+    private long startNanos = 0;
+
+    private PendingBatch(final int maxBatchMessages) {
+      this.lanes = new int[maxBatchMessages];
+    }
+
+    private void reset() {
+      entries = new TimedBatch<E>();
+      bytes = 0;
+    }
+  }
+
+  private class BatchFiller implements RingBuffer.Handler<QueuedEvent> {
+    private final long drainNanos = System.nanoTime();
+    private boolean cut = false;
+
+    @Override
+    public boolean onEvent(final QueuedEvent event) {
+      final int length = event.getLength();
+      if (pendingBatch.entries.isEmpty()) {
+        pendingBatch.startNanos = event.getEnqueueNanos();
+      } else if (pendingBatch.bytes + length > batchSettings.getMaxBatchBytes()) {
+        // Cut the batch before it would grow over the request size limit.
+        cut = true;
+        return false;
+      }
+      if (preserveLoggerOrder) {
+        pendingBatch.lanes[pendingBatch.entries.size()] = laneOf(event.getLoggerName());
+      }
+      queueWaitMicros.record(TimeUnit.NANOSECONDS.toMicros(drainNanos - event.getEnqueueNanos()),
+                             drainNanos);
+      pendingBatch.entries.add(toBatchEntry(event), event.getTimeMillis());
+      pendingBatch.bytes += length;
+      ringBufferBytes.addAndGet(-length);
+      event.clear();
+      return true;
+    }
+  }
+
+  private class Metrics implements ManagerMetrics {
+    @Override
+    public long getEventsAppended() {
+      return eventsAppended.get();
+    }
+
+    @Override
+    public long getBytesSerialized() {
+      return bytesSerialized.get();
+    }
+
+    @Override
+    public long getEventsPublished() {
+      return eventsPublished.get();
+    }
+
+    @Override
+    public long getBatchesSent() {
+      return batchesSent.get();
+    }
+
+    @Override
+    public long[] getBatchSizeCounts() {
+      final long[] counts = new long[batchSizeCounts.length()];
+      for (int i = 0; i < counts.length; ++i) {
+        counts[i] = batchSizeCounts.get(i);
+      }
+      return counts;
+    }
+
+    @Override
+    public double getMeanBatchSize() {
+      final long batches = batchesSent.get();
+      return batches == 0 ? 0 : (double) eventsPublished.get() / batches;
+    }
+
+    @Override
+    public int getQueueDepth() {
+      return ringBuffer.size();
+    }
+
+    @Override
+    public long getDroppedEvents() {
+      return AbstractGoogleCloudManager.this.getDroppedEvents();
+    }
+
+    @Override
+    public Map<String, Long> getDroppedEventsByReason() {
+      final Map<String, Long> dropped = new LinkedHashMap<String, Long>();
+      for (final DropReason reason : DropReason.values()) {
+        dropped.put(reason.name(), AbstractGoogleCloudManager.this.getDroppedEvents(reason));
+      }
+      return dropped;
+    }
+
+    @Override
+    public long getRetries() {
+      return retries.get();
+    }
+
+    @Override
+    public long getFailures() {
+      return publishFailures.get();
+    }
+
+    @Override
+    public int getInFlightRequests() {
+      return requestsInFlight.get();
+    }
+
+    @Override
+    public String getCircuitState() {
+      return AbstractGoogleCloudManager.this.getCircuitState().name();
+    }
+
+    @Override
+    public Map<String, Long> getCircuitTransitions() {
+      final Map<String, Long> transitions = new LinkedHashMap<String, Long>();
+      for (final CircuitState state : CircuitState.values()) {
+        transitions.put(state.name(), AbstractGoogleCloudManager.this.getCircuitTransitions(state));
+      }
+      return transitions;
+    }
+
+    @Override
+    public int getBatchMessageLimit() {
+      return batchMessageLimit();
+    }
+
+    @Override
+    public Map<String, Long> getSerializationMicros() {
+      return serializationMicros.summary(System.nanoTime());
+    }
+
+    @Override
+    public Map<String, Long> getQueueWaitMicros() {
+      return queueWaitMicros.summary(System.nanoTime());
+    }
+
+    @Override
+    public Map<String, Long> getPublishRoundTripMicros() {
+      return roundTripMicros.summary(System.nanoTime());
+    }
+
+    @Override
+    public Map<String, Long> getEventToAckLagMillis() {
+      return ackLagMillis.summary(System.nanoTime());
+    }
+  }
+
+  /**
+   * Publishes a failed batch again, apart from fresh traffic.
+   */
+  private class Retry implements Runnable {
+    private final List<E> entries;
+    private final long firstFailureNanos;
+    private final int attempt;
+
+    Retry(final List<E> entries, final long firstFailureNanos, final int attempt) {
+      this.entries = entries;
+      this.firstFailureNanos = firstFailureNanos;
+      this.attempt = attempt;
+    }
+
+    @Override
+    public void run() {
+      if (!pendingRetries.remove(this)) {
+        // Already run while stopping.
+        return;
+      }
+      chargeRequests(1);
+      try {
+        send(entries);
+      } catch (final IOException e) {
+        if (!retryLater(entries, e, firstFailureNanos, attempt)) {
+          giveUp(entries, e);
+        }
+      } catch (final RuntimeException e) {
+        droppedEvents.addAndGet(DropReason.PUBLISH_FAILED.ordinal(), entries.size());
+        LOGGER.error("Publishing message to {} failed", getDestination(), e);
+      }
+    }
+  }
+
+  /**
+   * Publishes batches once they are full or have lingered long enough,
+   * so appending threads never wait for the publish round trip in async mode.
+   */
+  private class Sender implements Runnable {
+    @Override
+    public void run() {
+      while (!stopping) {
+        long waitNanos = SENDER_POLL_NANOS;
+        flushLock.lock();
+        try {
+          waitNanos = sendDueBatches();
+        } catch (final RuntimeException e) {
+          LOGGER.error("Publishing queued messages to {} failed", getDestination(), e);
+        } finally {
+          flushLock.unlock();
+        }
+        if (waitNanos > 0) {
+          awaitWork(waitNanos);
+        }
+      }
+    }
+
+    /**
+     * @return nanoseconds until the pending batch is due
+     */
+    private long sendDueBatches() {
+      drain(false);
+      if (pendingBatch.entries.isEmpty()) {
+        return SENDER_POLL_NANOS;
+      }
+      if (batchSettings.getMaxLingerMillis() <= 0) {
+        // Without a linger timer the batch ends whenever the queue runs dry.
+        publishPendingBatch();
+        return ringBuffer.isEmpty() ? SENDER_POLL_NANOS : 0;
+      }
+      final long dueNanos = pendingBatch.startNanos + lingerNanos();
+      final long remainingNanos = dueNanos - System.nanoTime();
+      if (remainingNanos > 0) {
+        return remainingNanos;
+      }
+      publishPendingBatch();
+      return 0;
+    }
+
+    private void awaitWork(final long nanos) {
+      senderParked = true;
+      final boolean idle = batchSettings.getMaxLingerMillis() <= 0
+          ? ringBuffer.isEmpty()
+          : ringBuffer.size() < batchMessageLimit();
+      if (!stopping && idle) {
+        LockSupport.parkNanos(this, nanos);
+      }
+      senderParked = false;
+    }
+  }
+
+  /**
+   * Publishes spooled messages again, oldest first. Replay yields to live
+   * traffic whenever a full batch is waiting in the ring buffer, and is
+   * throttled to replayBytesPerSecond.
+   */
+  private class Replayer implements Runnable {
+    @Override
+    public void run() {
+      long backoffMillis = MIN_REPLAY_BACKOFF_MILLIS;
+      while (!stopping) {
+        if (spool.isEmpty() ||
+            ringBuffer.size() >= batchMessageLimit() ||
+            (circuitBreaker != null && circuitBreaker.isOpen())) {
+          LockSupport.parkNanos(this, REPLAY_POLL_NANOS);
+          continue;
+        }
+        final DiskSpool.Batch batch = spool.read(batchSettings.getMaxBatchMessages(),
+                                                 batchSettings.getMaxBatchBytes());
+        if (batch == null) {
+          LockSupport.parkNanos(this, REPLAY_POLL_NANOS);
+          continue;
+        }
+        final long rateLimitNanos = rateLimiter != null
+            ? rateLimiter.tryAcquire(1, batch.getBytes())
+            : 0;
+        if (rateLimitNanos > 0) {
+          LockSupport.parkNanos(this, rateLimitNanos);
+          continue;
+        }
+        final List<E> entries = decode(batch);
+        try {
+          if (!entries.isEmpty()) {
+            send(entries);
+          }
+          spool.commit(batch);
+          backoffMillis = MIN_REPLAY_BACKOFF_MILLIS;
+          LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1) * batch.getBytes() / replayBytesPerSecond);
+        } catch (final CircuitOpenException e) {
+          // Another thread is probing the destination, the batch is read
+          // again once the circuit closes.
+          LockSupport.parkNanos(this, REPLAY_POLL_NANOS);
+        } catch (final IOException e) {
+          if (!isRetryable(e)) {
+            LOGGER.error("Replaying spooled messages to {} failed, dropping them", getDestination(), e);
+            spool.commit(batch);
+            continue;
+          } else if (e instanceof PartialPublishException) {
+            // The rest of the batch went through, only the failed entries
+            // go back to the spool.
+            spool.commit(batch);
+            spoolFailedBatch(entries, e);
+          }
+          LOGGER.warn("Replaying spooled messages to {} failed, retrying in {} ms",
+                      getDestination(), backoffMillis, e);
+          LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(backoffMillis));
+          backoffMillis = Math.min(backoffMillis * 2, MAX_REPLAY_BACKOFF_MILLIS);
+        } catch (final RuntimeException e) {
+          LOGGER.error("Replaying spooled messages to {} failed", getDestination(), e);
+          LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(backoffMillis));
+        }
+      }
+    }
+
+    private List<E> decode(final DiskSpool.Batch batch) {
+      final List<E> entries = Lists.newArrayListWithCapacity(batch.getRecords().size());
+      for (final byte[] record : batch.getRecords()) {
+        try {
+          entries.add(fromSpoolRecord(record));
+        } catch (final IOException e) {
+          LOGGER.error("Dropping unreadable spooled message for {}", getDestination(), e);
+        }
+      }
+      return entries;
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Apache HttpClient trusting the Google certificates, with a connection
+ * pool sized and recycled per the {@link TransportSettings}. Idle
+ * connections are evicted by {@link SharedHttpTransports}.
+ */
+public class ApacheHttpTransportFactory implements HttpTransportFactory {
+  // The API endpoint, the OAuth2 token endpoint and the metadata server.
+  private static final int MAX_ROUTES = 3;
+
+  @Override
+  public HttpTransport create(final TransportSettings settings)
+      throws GeneralSecurityException, IOException {
+    final ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder()
+        .trustCertificates(GoogleUtils.getCertificateTrustStore());
+    final HttpParams params = builder.getHttpParams();
+    ConnManagerParams.setMaxConnectionsPerRoute(params,
+                                                new ConnPerRouteBean(settings.getMaxConnectionsPerRoute()));
+    ConnManagerParams.setMaxTotalConnections(params, MAX_ROUTES * settings.getMaxConnectionsPerRoute());
+    HttpConnectionParams.setTcpNoDelay(params, true);
+
+    final ApacheHttpTransport transport = builder.build();
+    final long keepAliveMillis = settings.getKeepAliveMillis();
+    ((AbstractHttpClient) transport.getHttpClient()).setKeepAliveStrategy(
+        new ConnectionKeepAliveStrategy() {
+          private final ConnectionKeepAliveStrategy serverKeepAlive =
+              new DefaultConnectionKeepAliveStrategy();
+
+          @Override
+          public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+            final long serverKeepAliveMillis = serverKeepAlive.getKeepAliveDuration(response, context);
+            return serverKeepAliveMillis > 0
+                ? Math.min(serverKeepAliveMillis, keepAliveMillis)
+                : keepAliveMillis;
+          }
+        });
+    return transport;
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.common.base.Preconditions;
+import org.apache.logging.log4j.Level;
+
+/**
+ * Controls whether appends are handed over to a background sender
+ * through a bounded in-memory queue instead of publishing on the
+ * logging thread, and what happens when that queue is full.
+ */
+public class AsyncSettings {
+  public static final int DEFAULT_QUEUE_CAPACITY = 8192;
+
+  private final boolean async;
+  private final int queueCapacity;
+  private final OverflowPolicy overflowPolicy;
+  private final long blockTimeoutMillis;
+  private final Level dropLevel;
+
+  protected AsyncSettings(final boolean async,
+                          final int queueCapacity,
+                          final OverflowPolicy overflowPolicy,
+                          final long blockTimeoutMillis,
+                          final Level dropLevel) {
+    this.async = async;
+    this.queueCapacity = queueCapacity;
+    this.overflowPolicy = overflowPolicy;
+    this.blockTimeoutMillis = blockTimeoutMillis;
+    this.dropLevel = dropLevel;
+  }
+
+  public boolean isAsync() {
+    return async;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  /**
+   * @return longest time an append blocks on a full queue, 0 waits forever
+   */
+  public long getBlockTimeoutMillis() {
+    return blockTimeoutMillis;
+  }
+
+  /**
+   * @return most severe level discarded by {@link OverflowPolicy#DROP_BY_LEVEL}
+   */
+  public Level getDropLevel() {
+    return dropLevel;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static class Builder
+      implements org.apache.logging.log4j.core.util.Builder<AsyncSettings> {
+    private boolean async = false;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private long blockTimeoutMillis = 0;
+    private Level dropLevel = Level.INFO;
+
+    public Builder withAsync(final boolean async) {
+      this.async = async;
+      return this;
+    }
+
+    public Builder withQueueCapacity(final int queueCapacity) {
+      this.queueCapacity = queueCapacity;
+      return this;
+    }
+
+    public Builder withOverflowPolicy(final OverflowPolicy overflowPolicy) {
+      this.overflowPolicy = overflowPolicy;
+      return this;
+    }
+
+    public Builder withBlockTimeoutMillis(final long blockTimeoutMillis) {
+      this.blockTimeoutMillis = blockTimeoutMillis;
+      return this;
+    }
+
+    public Builder withDropLevel(final Level dropLevel) {
+      this.dropLevel = dropLevel;
+      return this;
+    }
+
+    @Override
+    public AsyncSettings build() {
+      Preconditions.checkArgument(queueCapacity > 0,
+                                  "queueCapacity must be positive");
+      Preconditions.checkNotNull(overflowPolicy, "overflowPolicy");
+      Preconditions.checkArgument(blockTimeoutMillis >= 0,
+                                  "blockTimeoutMillis must not be negative");
+      Preconditions.checkNotNull(dropLevel, "dropLevel");
+      return new AsyncSettings(async, queueCapacity, overflowPolicy, blockTimeoutMillis, dropLevel);
+    }
+  }
+}
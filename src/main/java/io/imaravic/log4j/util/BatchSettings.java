@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Bounds for a single publish batch. A batch is sent as soon as one of
+ * the limits is reached, or when the oldest buffered message has waited
+ * for maxLingerMillis.
+ *
+ * With adaptive batching the message limit and the linger time move
+ * between minBatchMessages and minLingerMillis and the maximums, growing
+ * while publishes succeed within targetPublishLatencyMillis and shrinking
+ * when they fail or take longer, see {@link BatchSizeController}.
+ */
+public class BatchSettings {
+  // Pub/Sub accepts at most 1000 messages per publish request.
+  public static final int DEFAULT_MAX_BATCH_MESSAGES = 1000;
+
+  // Pub/Sub requests are capped at 10MB, and payloads are base64 encoded
+  // on the wire, so stay well below 3/4 of the limit.
+  public static final int DEFAULT_MAX_BATCH_BYTES = 5 * 1000 * 1000;
+
+  public static final int DEFAULT_MAX_LINGER_MILLIS = 100;
+
+  public static final int DEFAULT_MIN_BATCH_MESSAGES = 10;
+  public static final int DEFAULT_MIN_LINGER_MILLIS = 5;
+  public static final int DEFAULT_TARGET_PUBLISH_LATENCY_MILLIS = 500;
+
+  private final int maxBatchMessages;
+  private final int maxBatchBytes;
+  private final int maxLingerMillis;
+  private final boolean adaptive;
+  private final int minBatchMessages;
+  private final int minLingerMillis;
+  private final int targetPublishLatencyMillis;
+
+  protected BatchSettings(final int maxBatchMessages,
+                          final int maxBatchBytes,
+                          final int maxLingerMillis,
+                          final boolean adaptive,
+                          final int minBatchMessages,
+                          final int minLingerMillis,
+                          final int targetPublishLatencyMillis) {
+    this.maxBatchMessages = maxBatchMessages;
+    this.maxBatchBytes = maxBatchBytes;
+    this.maxLingerMillis = maxLingerMillis;
+    this.adaptive = adaptive;
+    this.minBatchMessages = minBatchMessages;
+    this.minLingerMillis = minLingerMillis;
+    this.targetPublishLatencyMillis = targetPublishLatencyMillis;
+  }
+
+  public int getMaxBatchMessages() {
+    return maxBatchMessages;
+  }
+
+  public int getMaxBatchBytes() {
+    return maxBatchBytes;
+  }
+
+  /**
+   * @return time after which a partial batch is flushed, 0 disables the timer
+   */
+  public int getMaxLingerMillis() {
+    return maxLingerMillis;
+  }
+
+  public boolean isAdaptive() {
+    return adaptive;
+  }
+
+  public int getMinBatchMessages() {
+    return minBatchMessages;
+  }
+
+  public int getMinLingerMillis() {
+    return minLingerMillis;
+  }
+
+  public int getTargetPublishLatencyMillis() {
+    return targetPublishLatencyMillis;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static class Builder
+      implements org.apache.logging.log4j.core.util.Builder<BatchSettings> {
+    private int maxBatchMessages = DEFAULT_MAX_BATCH_MESSAGES;
+    private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private int maxLingerMillis = DEFAULT_MAX_LINGER_MILLIS;
+    private boolean adaptive = false;
+    private int minBatchMessages = DEFAULT_MIN_BATCH_MESSAGES;
+    private int minLingerMillis = DEFAULT_MIN_LINGER_MILLIS;
+    private int targetPublishLatencyMillis = DEFAULT_TARGET_PUBLISH_LATENCY_MILLIS;
+
+    public Builder withMaxBatchMessages(final int maxBatchMessages) {
+      this.maxBatchMessages = maxBatchMessages;
+      return this;
+    }
+
+    public Builder withMaxBatchBytes(final int maxBatchBytes) {
+      this.maxBatchBytes = maxBatchBytes;
+      return this;
+    }
+
+    public Builder withMaxLingerMillis(final int maxLingerMillis) {
+      this.maxLingerMillis = maxLingerMillis;
+      return this;
+    }
+
+    public Builder withAdaptive(final boolean adaptive) {
+      this.adaptive = adaptive;
+      return this;
+    }
+
+    public Builder withMinBatchMessages(final int minBatchMessages) {
+      this.minBatchMessages = minBatchMessages;
+      return this;
+    }
+
+    public Builder withMinLingerMillis(final int minLingerMillis) {
+      this.minLingerMillis = minLingerMillis;
+      return this;
+    }
+
+    public Builder withTargetPublishLatencyMillis(final int targetPublishLatencyMillis) {
+      this.targetPublishLatencyMillis = targetPublishLatencyMillis;
+      return this;
+    }
+
+    @Override
+    public BatchSettings build() {
+      Preconditions.checkArgument(maxBatchMessages > 0,
+                                  "maxBatchMessages must be positive");
+      Preconditions.checkArgument(maxBatchBytes > 0,
+                                  "maxBatchBytes must be positive");
+      Preconditions.checkArgument(maxLingerMillis >= 0,
+                                  "maxLingerMillis must not be negative");
+      if (adaptive) {
+        Preconditions.checkArgument(minBatchMessages > 0 && minBatchMessages <= maxBatchMessages,
+                                    "minBatchMessages must be between 1 and maxBatchMessages");
+        Preconditions.checkArgument(minLingerMillis >= 0 && minLingerMillis <= maxLingerMillis,
+                                    "minLingerMillis must be between 0 and maxLingerMillis");
+        Preconditions.checkArgument(targetPublishLatencyMillis > 0,
+                                    "targetPublishLatencyMillis must be positive");
+      }
+      return new BatchSettings(maxBatchMessages,
+                               maxBatchBytes,
+                               maxLingerMillis,
+                               adaptive,
+                               minBatchMessages,
+                               minLingerMillis,
+                               targetPublishLatencyMillis);
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizes batches after the latency and the errors of recent publishes.
+ *
+ * Additive increase, multiplicative decrease: every publish which succeeds
+ * within the target latency raises the message limit by a twentieth of
+ * its range, while a failed or slow one halves it. Only one decrease is
+ * made per round trip, publishes sent before the last decrease are not
+ * taken into account. The linger time follows the message limit across
+ * its own range, so small batches are also sent sooner.
+ */
+class BatchSizeController {
+  private static final int INCREASE_STEPS = 20;
+
+  private final int minBatchMessages;
+  private final int maxBatchMessages;
+  private final int increaseStep;
+  private final long minLingerNanos;
+  private final long maxLingerNanos;
+  private final long targetLatencyNanos;
+
+  private volatile int batchMessages;
+  private volatile long lingerNanos;
+  private long lastDecreaseNanos;
+
+  BatchSizeController(final BatchSettings batchSettings) {
+    this.minBatchMessages = batchSettings.getMinBatchMessages();
+    this.maxBatchMessages = batchSettings.getMaxBatchMessages();
+    this.increaseStep = Math.max((maxBatchMessages - minBatchMessages) / INCREASE_STEPS, 1);
+    this.minLingerNanos = TimeUnit.MILLISECONDS.toNanos(batchSettings.getMinLingerMillis());
+    this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(batchSettings.getMaxLingerMillis());
+    this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(batchSettings.getTargetPublishLatencyMillis());
+    this.lastDecreaseNanos = System.nanoTime();
+    resize(minBatchMessages);
+  }
+
+  /**
+   * @param sentNanos when the publish was sent, from System.nanoTime
+   * @param latencyNanos how long the publish took
+   * @param failed true if it failed with a transient error
+   */
+  synchronized void onPublished(final long sentNanos, final long latencyNanos, final boolean failed) {
+    if (!failed && latencyNanos <= targetLatencyNanos) {
+      resize(Math.min(batchMessages + increaseStep, maxBatchMessages));
+    } else if (sentNanos - lastDecreaseNanos >= 0) {
+      lastDecreaseNanos = System.nanoTime();
+      resize(Math.max(batchMessages / 2, minBatchMessages));
+    }
+  }
+
+  int getBatchMessages() {
+    return batchMessages;
+  }
+
+  long getLingerNanos() {
+    return lingerNanos;
+  }
+
+  private void resize(final int messages) {
+    batchMessages = messages;
+    lingerNanos = maxBatchMessages == minBatchMessages
+        ? maxLingerNanos
+        : minLingerNanos + (maxLingerNanos - minLingerNanos) * (messages - minBatchMessages) /
+                           (maxBatchMessages - minBatchMessages);
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.imaravic.log4j.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded pool of equally sized byte arrays, so the buffers used to write
+ * request bodies are reused instead of allocated per request.
+ *
+ * An empty pool hands out a fresh buffer, and buffers returned to a full
+ * pool are left to the garbage collector, so neither call ever blocks.
+ */
+public class BufferPool {
+  private final int bufferSize;
+  private final BlockingQueue<byte[]> buffers;
+
+  public BufferPool(final int bufferSize, final int maxPooledBuffers) {
+    this.bufferSize = bufferSize;
+    this.buffers = new ArrayBlockingQueue<byte[]>(maxPooledBuffers);
+  }
+
+  public byte[] acquire() {
+    final byte[] buffer = buffers.poll();
+    return buffer != null ? buffer : new byte[bufferSize];
+  }
+
+  public void release(final byte[] buffer) {
+    if (buffer.length == bufferSize) {
+      buffers.offer(buffer);
+    }
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stops calling a destination which keeps failing.
+ *
+ * The outcomes of the last windowSize calls are kept. Once at least
+ * failureRate of them failed, the circuit opens and calls are refused for
+ * openMillis. After that one call is let through: the circuit closes again
+ * if it succeeds and stays open for another openMillis if it fails.
+ */
+class CircuitBreaker {
+  private final double failureRate;
+  private final long openNanos;
+  private final Ticker ticker;
+
+  // Outcomes of the recent calls in closed state, true for a failure.
+  private final boolean[] outcomes;
+  private int nextOutcome = 0;
+  private int calls = 0;
+  private int failures = 0;
+
+  private CircuitState state = CircuitState.CLOSED;
+  private long openedNanos;
+  private boolean probing = false;
+  private final AtomicLongArray transitions = new AtomicLongArray(CircuitState.values().length);
+
+  CircuitBreaker(final double failureRate, final int windowSize, final int openMillis) {
+    this(failureRate, windowSize, openMillis, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  CircuitBreaker(final double failureRate,
+                 final int windowSize,
+                 final int openMillis,
+                 final Ticker ticker) {
+    this.failureRate = failureRate;
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    this.ticker = ticker;
+    this.outcomes = new boolean[windowSize];
+  }
+
+  /**
+   * @return true if the call may go ahead, its outcome must then be
+   *         reported with {@link #onSuccess()} or {@link #onFailure()}
+   */
+  synchronized boolean tryAcquire() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (ticker.read() - openedNanos < openNanos) {
+          return false;
+        }
+        transition(CircuitState.HALF_OPEN);
+        probing = true;
+        return true;
+      default:
+        if (probing) {
+          return false;
+        }
+        probing = true;
+        return true;
+    }
+  }
+
+  /**
+   * @return true if the call closed the circuit
+   */
+  synchronized boolean onSuccess() {
+    if (state == CircuitState.HALF_OPEN) {
+      close();
+      return true;
+    }
+    if (state == CircuitState.CLOSED) {
+      record(false);
+    }
+    return false;
+  }
+
+  /**
+   * @return true if the call opened the circuit
+   */
+  synchronized boolean onFailure() {
+    if (state == CircuitState.HALF_OPEN) {
+      open();
+      return true;
+    }
+    if (state == CircuitState.CLOSED) {
+      record(true);
+      if (calls == outcomes.length && failures >= failureRate * outcomes.length) {
+        open();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true while calls are refused, without letting a probe through
+   */
+  synchronized boolean isOpen() {
+    return state == CircuitState.OPEN && ticker.read() - openedNanos < openNanos;
+  }
+
+  synchronized CircuitState getState() {
+    return state;
+  }
+
+  /**
+   * @return how many times the circuit went into the given state
+   */
+  long getTransitions(final CircuitState to) {
+    return transitions.get(to.ordinal());
+  }
+
+  private void record(final boolean failure) {
+    if (calls == outcomes.length) {
+      if (outcomes[nextOutcome]) {
+        --failures;
+      }
+    } else {
+      ++calls;
+    }
+    outcomes[nextOutcome] = failure;
+    if (failure) {
+      ++failures;
+    }
+    nextOutcome = (nextOutcome + 1) % outcomes.length;
+  }
+
+  private void open() {
+    openedNanos = ticker.read();
+    probing = false;
+    transition(CircuitState.OPEN);
+  }
+
+  private void close() {
+    calls = 0;
+    failures = 0;
+    nextOutcome = 0;
+    probing = false;
+    transition(CircuitState.CLOSED);
+  }
+
+  private void transition(final CircuitState to) {
+    state = to;
+    transitions.incrementAndGet(to.ordinal());
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+/**
+ * State of the circuit breaker guarding the calls of a manager.
+ */
+public enum CircuitState {
+  /**
+   * Batches are published as usual.
+   */
+  CLOSED,
+
+  /**
+   * Too many recent publishes failed, batches go to the spool or are
+   * dropped without calling the destination.
+   */
+  OPEN,
+
+  /**
+   * The circuit was open long enough, a single batch is published to probe
+   * whether the destination recovered.
+   */
+  HALF_OPEN
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.api.client.util.Lists;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store for records that could not be published.
+ *
+ * Records are written into memory-mapped segment files of a fixed size.
+ * Every record is its length plus one, the CRC32 of its payload and the
+ * payload; a zero marks the end of the written part of a segment, so empty
+ * records are stored as one. Replayed records are marked by negating
+ * their stored length, and a segment is deleted
+ * once all of its records are replayed. Records left over by a previous
+ * process are recovered on open, up to the first one failing its CRC.
+ *
+ * When a new segment would push the spool over its size cap, the oldest
+ * segment is dropped together with the records it still holds.
+ */
+public class DiskSpool {
+  static final int RECORD_HEADER_BYTES = 8;
+
+  private static final String SEGMENT_PREFIX = "spool-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private final File directory;
+  private final int segmentBytes;
+  private final int maxSegments;
+
+  // Oldest first, the last one is the segment being written.
+  private final LinkedList<Segment> segments = new LinkedList<Segment>();
+  private Segment activeSegment;
+  private long nextSegmentId = 0;
+  private long pendingRecords = 0;
+  private long droppedRecords = 0;
+
+  public DiskSpool(final File directory,
+                   final int segmentBytes,
+                   final long maxSpoolBytes) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can't create spool directory " + directory);
+    }
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = (int) Math.max(1, maxSpoolBytes / segmentBytes);
+    recover();
+  }
+
+  /**
+   * @return false if the record is larger than a segment
+   */
+  public synchronized boolean append(final byte[] record) throws IOException {
+    if (RECORD_HEADER_BYTES + record.length > segmentBytes) {
+      return false;
+    }
+    if (activeSegment == null || !activeSegment.hasRoomFor(record.length)) {
+      roll();
+    }
+    activeSegment.append(record);
+    ++pendingRecords;
+    return true;
+  }
+
+  /**
+   * Returns the oldest records not replayed yet, all from the same segment.
+   * The same records are returned until they are committed.
+   *
+   * @return null if there is nothing to replay
+   */
+  public synchronized Batch read(final int maxRecords, final long maxBytes) {
+    for (final Segment segment : segments) {
+      if (segment.pendingRecords > 0) {
+        return segment.read(maxRecords, maxBytes);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Marks the records of the batch as replayed.
+   */
+  public synchronized void commit(final Batch batch) {
+    final Segment segment = batch.segment;
+    if (!segments.contains(segment)) {
+      // Dropped over the size cap while its records were being replayed.
+      return;
+    }
+    segment.markReplayed(batch);
+    pendingRecords -= batch.records.size();
+    if (segment.pendingRecords == 0 && segment != activeSegment) {
+      segments.remove(segment);
+      segment.delete();
+    }
+  }
+
+  public synchronized boolean isEmpty() {
+    return pendingRecords == 0;
+  }
+
+  public synchronized long getPendingRecords() {
+    return pendingRecords;
+  }
+
+  /**
+   * @return records lost because the spool hit its size cap
+   */
+  public synchronized long getDroppedRecords() {
+    return droppedRecords;
+  }
+
+  public synchronized void close() throws IOException {
+    for (final Segment segment : segments) {
+      segment.close();
+    }
+  }
+
+  private void roll() throws IOException {
+    if (activeSegment != null && activeSegment.pendingRecords == 0) {
+      segments.remove(activeSegment);
+      activeSegment.delete();
+    }
+    activeSegment = null;
+    while (segments.size() >= maxSegments) {
+      final Segment oldest = segments.removeFirst();
+      droppedRecords += oldest.pendingRecords;
+      pendingRecords -= oldest.pendingRecords;
+      oldest.delete();
+    }
+    activeSegment = Segment.create(segmentFile(nextSegmentId++), segmentBytes);
+    segments.addLast(activeSegment);
+  }
+
+  private void recover() throws IOException {
+    final File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(final File dir, final String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    if (files == null) {
+      throw new IOException("Can't list spool directory " + directory);
+    }
+    // Segment ids are zero padded, so names sort by age.
+    Arrays.sort(files);
+    for (final File file : files) {
+      final String name = file.getName();
+      try {
+        final long id = Long.parseLong(
+            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        nextSegmentId = Math.max(nextSegmentId, id + 1);
+      } catch (final NumberFormatException e) {
+        continue;
+      }
+      final Segment segment = Segment.open(file);
+      if (segment.pendingRecords == 0) {
+        segment.delete();
+      } else {
+        segments.addLast(segment);
+        pendingRecords += segment.pendingRecords;
+      }
+    }
+  }
+
+  private File segmentFile(final long id) {
+    return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+  }
+
+  private static int crc(final byte[] data) {
+    final CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Records read from the spool, to be committed once they are published.
+   */
+  public static class Batch {
+    private final Segment segment;
+    private final List<byte[]> records = Lists.newArrayList();
+    private final List<Integer> positions = Lists.newArrayList();
+    private int endPosition;
+    private long bytes = 0;
+
+    private Batch(final Segment segment) {
+      this.segment = segment;
+    }
+
+    public List<byte[]> getRecords() {
+      return records;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+  }
+
+  private static class Segment {
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private int writePosition = 0;
+    private int readPosition = 0;
+    private int pendingRecords = 0;
+
+    private Segment(final File file, final RandomAccessFile randomAccessFile, final int size)
+        throws IOException {
+      this.file = file;
+      this.randomAccessFile = randomAccessFile;
+      this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private static Segment create(final File file, final int size) throws IOException {
+      final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      randomAccessFile.setLength(size);
+      return new Segment(file, randomAccessFile, size);
+    }
+
+    private static Segment open(final File file) throws IOException {
+      final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      final Segment segment = new Segment(file, randomAccessFile, (int) randomAccessFile.length());
+      segment.recover();
+      return segment;
+    }
+
+    private void recover() {
+      int position = 0;
+      int firstPending = -1;
+      while (position + RECORD_HEADER_BYTES <= buffer.capacity()) {
+        final int storedLength = buffer.getInt(position);
+        final int payloadLength = Math.abs(storedLength) - 1;
+        if (storedLength == 0 || payloadLength > buffer.capacity() - position - RECORD_HEADER_BYTES) {
+          break;
+        }
+        if (storedLength > 0) {
+          if (crc(readPayload(position, payloadLength)) != buffer.getInt(position + 4)) {
+            // Torn write, nothing after it can be trusted.
+            break;
+          }
+          if (firstPending < 0) {
+            firstPending = position;
+          }
+          ++pendingRecords;
+        }
+        position += RECORD_HEADER_BYTES + payloadLength;
+      }
+      writePosition = position;
+      readPosition = firstPending < 0 ? position : firstPending;
+    }
+
+    private boolean hasRoomFor(final int length) {
+      return writePosition + RECORD_HEADER_BYTES + length <= buffer.capacity();
+    }
+
+    private void append(final byte[] record) {
+      buffer.position(writePosition + RECORD_HEADER_BYTES);
+      buffer.put(record);
+      buffer.putInt(writePosition + 4, crc(record));
+      // The length goes last, it makes the record visible.
+      buffer.putInt(writePosition, record.length + 1);
+      writePosition += RECORD_HEADER_BYTES + record.length;
+      ++pendingRecords;
+    }
+
+    private Batch read(final int maxRecords, final long maxBytes) {
+      final Batch batch = new Batch(this);
+      int position = readPosition;
+      while (position < writePosition && batch.records.size() < maxRecords) {
+        final int storedLength = buffer.getInt(position);
+        final int length = Math.abs(storedLength) - 1;
+        if (storedLength > 0) {
+          if (!batch.records.isEmpty() && batch.bytes + length > maxBytes) {
+            break;
+          }
+          batch.records.add(readPayload(position, length));
+          batch.positions.add(position);
+          batch.bytes += length;
+        }
+        position += RECORD_HEADER_BYTES + length;
+      }
+      batch.endPosition = position;
+      return batch;
+    }
+
+    private void markReplayed(final Batch batch) {
+      for (final int position : batch.positions) {
+        buffer.putInt(position, -buffer.getInt(position));
+      }
+      readPosition = batch.endPosition;
+      pendingRecords -= batch.records.size();
+    }
+
+    private byte[] readPayload(final int position, final int length) {
+      final byte[] payload = new byte[length];
+      buffer.position(position + RECORD_HEADER_BYTES);
+      buffer.get(payload);
+      return payload;
+    }
+
+    private void close() throws IOException {
+      buffer.force();
+      randomAccessFile.close();
+    }
+
+    private void delete() {
+      try {
+        randomAccessFile.close();
+      } catch (final IOException e) {
+        // Nothing left to do with the segment anyway.
+      }
+      // The mapping stays valid until it is garbage collected, which
+      // doesn't prevent removing the file on POSIX systems.
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+/**
+ * Why an event was discarded instead of being published.
+ */
+public enum DropReason {
+  /**
+   * Queue was full with the DROP_NEWEST policy.
+   */
+  QUEUE_FULL,
+
+  /**
+   * Evicted from a full queue with the DROP_OLDEST policy.
+   */
+  EVICTED,
+
+  /**
+   * Not severe enough with the DROP_BY_LEVEL policy.
+   */
+  LEVEL,
+
+  /**
+   * Queue stayed full for longer than blockTimeoutMillis.
+   */
+  BLOCK_TIMEOUT,
+
+  /**
+   * Rejected by the destination, e.g. too large or with an invalid label,
+   * while the rest of its batch was accepted.
+   */
+  REJECTED,
+
+  /**
+   * Publishing it failed for good, with a permanent error or after running
+   * out of retry time or budget, and there was no spool to fall back to.
+   * Counted when the failure isn't thrown to the appending thread.
+   */
+  PUBLISH_FAILED,
+
+  /**
+   * Its batch was failed without calling the destination, as the circuit
+   * was open, and there was no spool to fall back to.
+   */
+  CIRCUIT_OPEN,
+
+  /**
+   * Its batch didn't fit into maxRequestsPerSecond or maxBytesPerSecond,
+   * and there was no spool to fall back to.
+   */
+  RATE_LIMITED
+}
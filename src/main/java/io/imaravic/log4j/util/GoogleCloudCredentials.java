@@ -23,6 +23,7 @@ import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.repackaged.com.google.common.base.Preconditions;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 
 import java.io.File;
 import java.io.IOException;
@@ -53,6 +54,22 @@ public class GoogleCloudCredentials {
     return buildNewGoogleCredentials(transport, jacksonFactory, serviceAccountScopes);
   }
 
+  /**
+   * Returns a credential shared by every manager using these credentials
+   * for the same scopes, whose token is refreshed ahead of expiry in the
+   * background, see {@link SharedCredentials}.
+   *
+   * @return credential to hand back with {@link #releaseCredential(Credential)}
+   */
+  public Credential acquireCredential(final Collection<String> serviceAccountScopes)
+      throws GeneralSecurityException, IOException {
+    return SharedCredentials.acquire(this, serviceAccountScopes);
+  }
+
+  public void releaseCredential(final Credential credential) {
+    SharedCredentials.release(credential);
+  }
+
   public boolean usingComputeCredentials() {
     return useComputeCredentials;
   }
@@ -86,6 +103,22 @@ public class GoogleCloudCredentials {
     return new ComputeCredential.Builder(transport, jacksonFactory).build();
   }
 
+  @Override
+  public boolean equals(final Object o) {
+    if (!(o instanceof GoogleCloudCredentials)) {
+      return false;
+    }
+    final GoogleCloudCredentials that = (GoogleCloudCredentials) o;
+    return useComputeCredentials == that.useComputeCredentials &&
+        Objects.equal(serviceAccountId, that.serviceAccountId) &&
+        Objects.equal(serviceAccountPrivateKeyP12File, that.serviceAccountPrivateKeyP12File);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(useComputeCredentials, serviceAccountId, serviceAccountPrivateKeyP12File);
+  }
+
 //  @PluginFactory
   public static GoogleCloudCredentials createGoogleCloudCredentials(
 //      @PluginAttribute(value = "serviceAccountId")
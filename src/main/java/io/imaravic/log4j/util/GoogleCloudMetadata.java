@@ -19,24 +19,191 @@ package io.imaravic.log4j.util;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSet;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Reads the metadata of the machine from the Compute Engine metadata server.
+ *
+ * The project id, zone, instance id and cluster name are fetched together by
+ * the first lookup with a single recursive request, and cached for the life
+ * of the JVM by every instance reading from the same server. Requests time
+ * out after {@link #CONNECT_TIMEOUT_MILLIS} and {@link #READ_TIMEOUT_MILLIS},
+ * and the server is addressed by IP, so startup off Google Cloud doesn't
+ * wait on DNS. A failed prefetch is remembered for
+ * {@link #FAILURE_TTL_MILLIS}, lookups of the prefetched values fail at
+ * once until then, and the first lookup after it prefetches again.
+ *
+ * The server is read from the {@code GCE_METADATA_HOST} environment
+ * variable when set, so tests can point it at a local stand-in.
+ */
 public class GoogleCloudMetadata {
-  private static final String COMPUTE_METADATA_BASE_URL = "http://metadata/computeMetadata/v1/";
+  private static final Logger LOGGER = StatusLogger.getLogger();
+
+  public static final String PROJECT_ID = "project/project-id";
+  public static final String ZONE = "instance/zone";
+  public static final String INSTANCE_ID = "instance/id";
+  public static final String CLUSTER_NAME = "instance/attributes/cluster-name";
+
+  @VisibleForTesting
+  static final Set<String> PREFETCHED_PATHS = ImmutableSet.of(PROJECT_ID, ZONE, INSTANCE_ID, CLUSTER_NAME);
+
+  @VisibleForTesting
+  static final int CONNECT_TIMEOUT_MILLIS = 1000;
+  @VisibleForTesting
+  static final int READ_TIMEOUT_MILLIS = 2000;
+  @VisibleForTesting
+  static final long FAILURE_TTL_MILLIS = 10000;
+
+  static final String METADATA_HOST_ENV = "GCE_METADATA_HOST";
+  private static final String DEFAULT_METADATA_HOST = "169.254.169.254";
+
+  // Metadata of every server read so far, by base URL.
+  private static final ConcurrentMap<String, Snapshot> SNAPSHOTS = new ConcurrentHashMap<String, Snapshot>();
 
   private final HttpTransport transport;
+  private final String baseUrl;
+  private final Ticker ticker;
 
   public GoogleCloudMetadata(final HttpTransport transport) {
+    this(transport, getBaseUrl(System.getenv(METADATA_HOST_ENV)));
+  }
+
+  @VisibleForTesting
+  GoogleCloudMetadata(final HttpTransport transport, final String baseUrl) {
+    this(transport, baseUrl, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  GoogleCloudMetadata(final HttpTransport transport, final String baseUrl, final Ticker ticker) {
     this.transport = transport;
+    this.baseUrl = baseUrl;
+    this.ticker = ticker;
   }
 
+  /**
+   * @throws IOException if the value can't be read, also when a prefetched
+   *                     value is missing
+   */
   public String fetchFromPath(final String path) throws IOException {
-    final GenericUrl metadataUrl = new GenericUrl(COMPUTE_METADATA_BASE_URL);
+    final Snapshot snapshot = getSnapshot();
+    final String value = snapshot.values.get(path);
+    if (value != null) {
+      return value;
+    }
+    if (PREFETCHED_PATHS.contains(path)) {
+      throw new IOException("No " + path + " in the metadata of " + baseUrl, snapshot.failure);
+    }
+    final String fetched = buildRequest(path).execute().parseAsString();
+    snapshot.values.put(path, fetched);
+    return fetched;
+  }
+
+  /**
+   * @return the cached value, or null if it is not known
+   */
+  public String getIfPresent(final String path) {
+    return getSnapshot().values.get(path);
+  }
+
+  @VisibleForTesting
+  static String getBaseUrl(final String metadataHost) {
+    return "http://" + (metadataHost != null ? metadataHost : DEFAULT_METADATA_HOST) +
+        "/computeMetadata/v1/";
+  }
+
+  private Snapshot getSnapshot() {
+    Snapshot snapshot = SNAPSHOTS.get(baseUrl);
+    if (snapshot == null || snapshot.isExpired(ticker.read())) {
+      synchronized (SNAPSHOTS) {
+        snapshot = SNAPSHOTS.get(baseUrl);
+        if (snapshot == null || snapshot.isExpired(ticker.read())) {
+          snapshot = prefetch();
+          SNAPSHOTS.put(baseUrl, snapshot);
+        }
+      }
+    }
+    return snapshot;
+  }
+
+  private Snapshot prefetch() {
+    final Map<String, String> values = new HashMap<String, String>();
+    try {
+      final HttpRequest request = buildRequest("");
+      request.getUrl().set("recursive", "true");
+      request.setParser(new JsonObjectParser(JacksonFactory.getDefaultInstance()));
+      final GenericJson metadata = request.execute().parseAs(GenericJson.class);
+
+      final Map<?, ?> project = getMap(metadata, "project");
+      final Map<?, ?> instance = getMap(metadata, "instance");
+      final Map<?, ?> attributes = getMap(instance, "attributes");
+      putIfPresent(values, PROJECT_ID, project, "projectId");
+      putIfPresent(values, ZONE, instance, "zone");
+      putIfPresent(values, INSTANCE_ID, instance, "id");
+      putIfPresent(values, CLUSTER_NAME, attributes, "cluster-name");
+      return new Snapshot(values, null, 0);
+    } catch (final IOException e) {
+      LOGGER.debug("Prefetching the metadata from {} failed", baseUrl, e);
+      return new Snapshot(values, e, ticker.read() + TimeUnit.MILLISECONDS.toNanos(FAILURE_TTL_MILLIS));
+    }
+  }
+
+  private HttpRequest buildRequest(final String path) throws IOException {
+    final GenericUrl metadataUrl = new GenericUrl(baseUrl);
     metadataUrl.appendRawPath(path);
-    HttpRequest request = transport.createRequestFactory()
-        .buildGetRequest(metadataUrl);
+    final HttpRequest request = transport.createRequestFactory()
+        .buildGetRequest(metadataUrl)
+        .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+        .setReadTimeout(READ_TIMEOUT_MILLIS)
+        .setNumberOfRetries(0);
     request.getHeaders().set("Metadata-Flavor", "Google");
-    return request.execute().parseAsString();
+    return request;
+  }
+
+  private static Map<?, ?> getMap(final Map<?, ?> json, final String key) {
+    final Object value = json != null ? json.get(key) : null;
+    return value instanceof Map ? (Map<?, ?>) value : null;
+  }
+
+  private static void putIfPresent(final Map<String, String> values,
+                                   final String path,
+                                   final Map<?, ?> json,
+                                   final String key) {
+    final Object value = json != null ? json.get(key) : null;
+    if (value != null) {
+      values.put(path, value.toString());
+    }
+  }
+
+  private static class Snapshot {
+    private final Map<String, String> values;
+    // Why the values are missing, null if the prefetch succeeded.
+    private final IOException failure;
+    // Ticker time the failure is forgotten at, unused without one.
+    private final long expiresAtNanos;
+
+    Snapshot(final Map<String, String> values, final IOException failure, final long expiresAtNanos) {
+      this.values = new ConcurrentHashMap<String, String>(values);
+      this.failure = failure;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+
+    boolean isExpired(final long nowNanos) {
+      return failure != null && nowNanos - expiresAtNanos >= 0;
+    }
   }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.imaravic.log4j.util;
+
+import com.google.api.client.http.HttpEncoding;
+import com.google.api.client.util.StreamingContent;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip content encoding with a configurable deflate level, the stock
+ * GZipEncoding of the HTTP client always uses the default one.
+ */
+public class GzipEncoding implements HttpEncoding {
+  private static final int BUFFER_SIZE = 8192;
+
+  private final int level;
+
+  public GzipEncoding(final int level) {
+    this.level = level;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  @Override
+  public String getName() {
+    return "gzip";
+  }
+
+  @Override
+  public void encode(final StreamingContent content, final OutputStream out) throws IOException {
+    // The transport closes the request stream itself.
+    final OutputStream unclosable = new FilterOutputStream(out) {
+      @Override
+      public void write(final byte[] b, final int off, final int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    };
+    final GZIPOutputStream zipper = new GZIPOutputStream(unclosable, BUFFER_SIZE) {
+      {
+        def.setLevel(level);
+      }
+    };
+    content.writeTo(zipper);
+    zipper.close();
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import org.apache.logging.log4j.core.util.Loader;
+
+/**
+ * Resolves the transportFactory attribute of the appenders.
+ */
+public final class HttpTransportFactories {
+  /**
+   * Pooled Apache HttpClient, opt-in as google-http-client only brings the
+   * old httpclient 4.0.1 along, see the README.
+   */
+  public static final String APACHE = "apache";
+
+  /**
+   * HttpURLConnection of the JVM, the default.
+   */
+  public static final String JAVA_NET = "javanet";
+
+  private HttpTransportFactories() {
+  }
+
+  /**
+   * @param name one of the built-in factories, or the class name of an
+   *             {@link HttpTransportFactory} with a public no-arg constructor
+   */
+  public static HttpTransportFactory forName(final String name) {
+    if (name == null || JAVA_NET.equalsIgnoreCase(name)) {
+      return new NetHttpTransportFactory();
+    }
+    if (APACHE.equalsIgnoreCase(name)) {
+      return new ApacheHttpTransportFactory();
+    }
+    try {
+      return Loader.newCheckedInstanceOf(name, HttpTransportFactory.class);
+    } catch (final Exception e) {
+      throw new IllegalArgumentException("Can't create transportFactory " + name, e);
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.api.client.http.HttpTransport;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Creates the HTTP transport the managers publish through, picked with the
+ * transportFactory attribute of the appenders, see
+ * {@link HttpTransportFactories#forName(String)}.
+ *
+ * A transport is shared by all managers of the same endpoint and
+ * {@link TransportSettings}, and factories of the same class are treated as
+ * equal. Implementations should be configured by the settings alone and
+ * need a public no-arg constructor to be named by class.
+ */
+public interface HttpTransportFactory {
+  HttpTransport create(TransportSettings settings) throws GeneralSecurityException, IOException;
+}
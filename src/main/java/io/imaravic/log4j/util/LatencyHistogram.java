@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of recent latencies, in the spirit of HdrHistogram.
+ *
+ * Values are counted in buckets of 32 per power of two, so a reported
+ * value is at most about 3% over the recorded one. Values below 64 are
+ * exact and values over 2^40 count as 2^40. Recording only increments a
+ * counter, it doesn't allocate or lock.
+ *
+ * Counts are kept for two windows of {@link #WINDOW_MILLIS}: a summary
+ * covers the last one to two windows, so it follows what happens now
+ * rather than since the manager started.
+ */
+class LatencyHistogram {
+  static final long WINDOW_MILLIS = 60000;
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int MAX_VALUE_BITS = 40;
+  private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+  private static final int MAX_SHIFT = MAX_VALUE_BITS - 1 - SUB_BUCKET_BITS;
+  private static final int BUCKETS = (MAX_SHIFT << SUB_BUCKET_BITS) + (2 << SUB_BUCKET_BITS);
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+  private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+  private final long windowNanos;
+  private volatile long windowStartNanos;
+  private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+  private volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+
+  LatencyHistogram() {
+    this(TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS), System.nanoTime());
+  }
+
+  @VisibleForTesting
+  LatencyHistogram(final long windowNanos, final long startNanos) {
+    this.windowNanos = windowNanos;
+    this.windowStartNanos = startNanos;
+  }
+
+  /**
+   * @param nowNanos current System.nanoTime
+   */
+  void record(final long value, final long nowNanos) {
+    if (nowNanos - windowStartNanos >= windowNanos) {
+      rotate(nowNanos);
+    }
+    current.incrementAndGet(indexOf(Math.min(Math.max(value, 0), MAX_VALUE)));
+  }
+
+  /**
+   * @return the value at or below which the given percent of the recent
+   *         values are, 0 if there are none
+   */
+  long getValueAtPercentile(final double percentile, final long nowNanos) {
+    final long[] counts = snapshot(nowNanos);
+    return valueAtPercentile(counts, total(counts), percentile);
+  }
+
+  /**
+   * @return count, percentiles and maximum of the recent values
+   */
+  Map<String, Long> summary(final long nowNanos) {
+    final long[] counts = snapshot(nowNanos);
+    final long total = total(counts);
+    final Map<String, Long> summary = new LinkedHashMap<String, Long>();
+    summary.put("count", total);
+    for (int i = 0; i < PERCENTILES.length; ++i) {
+      summary.put(PERCENTILE_NAMES[i], valueAtPercentile(counts, total, PERCENTILES[i]));
+    }
+    summary.put("max", valueAtPercentile(counts, total, 100));
+    return summary;
+  }
+
+  static int indexOf(final long value) {
+    final int shift = Math.max(Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS, 0);
+    return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+  }
+
+  /**
+   * @return the highest value counted in the bucket
+   */
+  static long highestValueOf(final int index) {
+    if (index < 2 << SUB_BUCKET_BITS) {
+      return index;
+    }
+    final int shift = (index >> SUB_BUCKET_BITS) - 1;
+    final long mantissa = index - (shift << SUB_BUCKET_BITS);
+    return ((mantissa + 1) << shift) - 1;
+  }
+
+  private long[] snapshot(final long nowNanos) {
+    if (nowNanos - windowStartNanos >= windowNanos) {
+      rotate(nowNanos);
+    }
+    final AtomicLongArray recent = current;
+    final AtomicLongArray older = previous;
+    final long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; ++i) {
+      counts[i] = recent.get(i) + older.get(i);
+    }
+    return counts;
+  }
+
+  private static long total(final long[] counts) {
+    long total = 0;
+    for (final long count : counts) {
+      total += count;
+    }
+    return total;
+  }
+
+  private static long valueAtPercentile(final long[] counts, final long total, final double percentile) {
+    if (total == 0) {
+      return 0;
+    }
+    final long rank = Math.max((long) Math.ceil(percentile / 100 * total), 1);
+    long seen = 0;
+    for (int i = 0; i < counts.length; ++i) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return highestValueOf(i);
+      }
+    }
+    return MAX_VALUE;
+  }
+
+  /**
+   * Starts a new window, clearing the counts of the one before the last.
+   * Values recorded concurrently with the rotation may be lost.
+   */
+  private synchronized void rotate(final long nowNanos) {
+    final long elapsedNanos = nowNanos - windowStartNanos;
+    if (elapsedNanos < windowNanos) {
+      return;
+    }
+    final AtomicLongArray cleared = previous;
+    clear(cleared);
+    if (elapsedNanos >= 2 * windowNanos) {
+      // Nothing recent in the current window either.
+      clear(current);
+    }
+    previous = current;
+    current = cleared;
+    windowStartNanos = nowNanos;
+  }
+
+  private static void clear(final AtomicLongArray counts) {
+    for (int i = 0; i < counts.length(); ++i) {
+      counts.set(i, 0);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import javax.management.MXBean;
+import java.util.Map;
+
+/**
+ * What a Google Cloud manager has done since it started.
+ *
+ * Every manager registers its metrics as an MBean named
+ * io.imaravic.log4j:type=&lt;manager class&gt;,name=&lt;appender name&gt;,
+ * unless log4j2.disable.jmx is set, see
+ * {@link AbstractGoogleCloudManager#getMetrics()}.
+ */
+@MXBean
+public interface ManagerMetrics {
+  long getEventsAppended();
+
+  /**
+   * @return bytes of the events appended, as rendered by the layout
+   */
+  long getBytesSerialized();
+
+  /**
+   * @return events published successfully, including retried and replayed ones
+   */
+  long getEventsPublished();
+
+  long getBatchesSent();
+
+  /**
+   * @return number of batches sent by size, the n-th element counting
+   * batches of 2^n up to 2^(n+1)-1 events
+   */
+  long[] getBatchSizeCounts();
+
+  double getMeanBatchSize();
+
+  /**
+   * @return events waiting in the queue
+   */
+  int getQueueDepth();
+
+  long getDroppedEvents();
+
+  /**
+   * @return dropped events by {@link DropReason}
+   */
+  Map<String, Long> getDroppedEventsByReason();
+
+  /**
+   * @return attempts to publish a failed batch again
+   */
+  long getRetries();
+
+  /**
+   * @return publish requests which failed
+   */
+  long getFailures();
+
+  int getInFlightRequests();
+
+  /**
+   * @return state of the circuit breaker, see {@link CircuitState}
+   */
+  String getCircuitState();
+
+  /**
+   * @return how many times the circuit went into each {@link CircuitState}
+   */
+  Map<String, Long> getCircuitTransitions();
+
+  int getBatchMessageLimit();
+
+  /**
+   * Summaries of the recent latencies, see {@link LatencyHistogram}: their
+   * count, the p50, p90, p99 and p999 percentiles, and the maximum.
+   *
+   * @return how long layouts took to serialize events
+   */
+  Map<String, Long> getSerializationMicros();
+
+  /**
+   * @return how long events waited in the queue before joining a batch
+   */
+  Map<String, Long> getQueueWaitMicros();
+
+  /**
+   * @return how long publish requests took, failed ones included
+   */
+  Map<String, Long> getPublishRoundTripMicros();
+
+  /**
+   * @return how long after they were logged events were acknowledged by
+   *         the destination, excluding events replayed from the spool
+   */
+  Map<String, Long> getEventToAckLagMillis();
+}
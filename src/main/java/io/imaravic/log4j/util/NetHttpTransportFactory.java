@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpTransport;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * HttpURLConnection based transport the managers used before transports
+ * were pluggable. Its connections are pooled by the JVM, so the pool
+ * settings of {@link TransportSettings} don't apply, see the
+ * http.maxConnections and http.keepAlive system properties instead.
+ */
+public class NetHttpTransportFactory implements HttpTransportFactory {
+  @Override
+  public HttpTransport create(final TransportSettings settings)
+      throws GeneralSecurityException, IOException {
+    return GoogleNetHttpTransport.newTrustedTransport();
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+/**
+ * What an async appender does with an event when its queue is full.
+ */
+public enum OverflowPolicy {
+  /**
+   * Wait for the sender to make room, at most blockTimeoutMillis.
+   */
+  BLOCK,
+
+  /**
+   * Discard the event being appended.
+   */
+  DROP_NEWEST,
+
+  /**
+   * Discard the oldest queued event to make room.
+   */
+  DROP_OLDEST,
+
+  /**
+   * Discard events at dropLevel or less severe once the queue is three
+   * quarters full, keeping the rest of it for more severe events, which
+   * block when it is full.
+   */
+  DROP_BY_LEVEL
+}
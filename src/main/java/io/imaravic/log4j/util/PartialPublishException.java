@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by {@link AbstractGoogleCloudManager#publish(List)} when the
+ * destination accepted a batch except for some entries which may succeed
+ * later. Only those entries are spooled, the rest of the batch is never
+ * sent again. Entries the destination rejected for good are named as well,
+ * so they're counted as dropped rather than published.
+ */
+public class PartialPublishException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  private final transient List<?> failedEntries;
+  private final transient List<?> rejectedEntries;
+  private final boolean retryable;
+
+  /**
+   * @param failedEntries entries of the batch to publish again
+   */
+  public PartialPublishException(final String message,
+                                 final List<?> failedEntries,
+                                 final Throwable cause) {
+    this(message, failedEntries, cause, true);
+  }
+
+  /**
+   * @param failedEntries entries of the batch which weren't published
+   * @param retryable     whether they may be published later, or are lost
+   */
+  public PartialPublishException(final String message,
+                                 final List<?> failedEntries,
+                                 final Throwable cause,
+                                 final boolean retryable) {
+    this(message, failedEntries, Collections.emptyList(), cause, retryable);
+  }
+
+  /**
+   * @param failedEntries   entries of the batch to publish again, may be empty
+   * @param rejectedEntries entries of the batch the destination won't ever take
+   */
+  public PartialPublishException(final String message,
+                                 final List<?> failedEntries,
+                                 final List<?> rejectedEntries,
+                                 final Throwable cause) {
+    this(message, failedEntries, rejectedEntries, cause, true);
+  }
+
+  private PartialPublishException(final String message,
+                                  final List<?> failedEntries,
+                                  final List<?> rejectedEntries,
+                                  final Throwable cause,
+                                  final boolean retryable) {
+    super(message, cause);
+    this.failedEntries = failedEntries;
+    this.rejectedEntries = rejectedEntries;
+    this.retryable = retryable;
+  }
+
+  public List<?> getFailedEntries() {
+    return failedEntries;
+  }
+
+  public List<?> getRejectedEntries() {
+    return rejectedEntries;
+  }
+
+  public boolean isRetryable() {
+    return retryable;
+  }
+}
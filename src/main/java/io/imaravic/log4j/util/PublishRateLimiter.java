@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token buckets limiting the requests and the bytes a manager sends per
+ * second, so one noisy application can't use up the API quota of its
+ * whole project.
+ *
+ * Each bucket holds at most a second worth of tokens. A request may go
+ * ahead once a bucket holds as many tokens as it needs, or is full, so
+ * a request larger than a second worth of bytes is let through and the
+ * bucket goes into debt.
+ */
+class PublishRateLimiter {
+  private final Bucket requests;
+  private final Bucket bytes;
+
+  /**
+   * @param requestsPerSecond 0 doesn't limit requests
+   * @param bytesPerSecond 0 doesn't limit bytes
+   */
+  PublishRateLimiter(final int requestsPerSecond, final long bytesPerSecond) {
+    this(requestsPerSecond, bytesPerSecond, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  PublishRateLimiter(final int requestsPerSecond, final long bytesPerSecond, final Ticker ticker) {
+    this.requests = new Bucket(requestsPerSecond, ticker);
+    this.bytes = new Bucket(bytesPerSecond, ticker);
+  }
+
+  /**
+   * Takes the tokens if both buckets have enough of them.
+   *
+   * @return 0 if the request may go ahead, otherwise the nanoseconds
+   *         until it may be tried again
+   */
+  synchronized long tryAcquire(final int requestCount, final long byteCount) {
+    final long waitNanos = nanosUntilAvailable(requestCount, byteCount);
+    if (waitNanos > 0) {
+      return waitNanos;
+    }
+    requests.take(requestCount);
+    bytes.take(byteCount);
+    return 0;
+  }
+
+  /**
+   * Takes the tokens of requests which are sent anyway, going into debt
+   * if the buckets don't hold enough of them, so later requests wait.
+   */
+  synchronized void charge(final int requestCount, final long byteCount) {
+    nanosUntilAvailable(requestCount, byteCount);
+    requests.take(requestCount);
+    bytes.take(byteCount);
+  }
+
+  /**
+   * Checks whether a request would get its tokens now, without taking them.
+   *
+   * @return 0 if it would, otherwise the nanoseconds until it would
+   */
+  synchronized long nanosUntilAvailable(final int requestCount, final long byteCount) {
+    return Math.max(requests.nanosUntilAvailable(requestCount),
+                    bytes.nanosUntilAvailable(byteCount));
+  }
+
+  private static class Bucket {
+    private final long tokensPerSecond;
+    private final Ticker ticker;
+    private double balance;
+    private long lastRefillNanos;
+
+    Bucket(final long tokensPerSecond, final Ticker ticker) {
+      this.tokensPerSecond = tokensPerSecond;
+      this.ticker = ticker;
+      this.balance = tokensPerSecond;
+      this.lastRefillNanos = ticker.read();
+    }
+
+    long nanosUntilAvailable(final long tokens) {
+      if (tokensPerSecond <= 0) {
+        return 0;
+      }
+      final long now = ticker.read();
+      balance = Math.min(balance + tokensPerSecond * (now - lastRefillNanos) / 1e9, tokensPerSecond);
+      lastRefillNanos = now;
+      final double missing = Math.min(tokens, tokensPerSecond) - balance;
+      return missing <= 0
+          ? 0
+          : Math.max((long) (missing * TimeUnit.SECONDS.toNanos(1) / tokensPerSecond), 1);
+    }
+
+    void take(final long tokens) {
+      if (tokensPerSecond > 0) {
+        balance -= tokens;
+      }
+    }
+  }
+}
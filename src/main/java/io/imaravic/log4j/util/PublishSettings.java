@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.zip.Deflater;
+
+/**
+ * Controls how many publish requests may be outstanding at once, and how
+ * their bodies are sent.
+ *
+ * With a window larger than one, batches are sent from a pool of publisher
+ * threads and failures are logged instead of being thrown to the appending
+ * thread. When preserveLoggerOrder is set, events of one logger always go
+ * through the same publisher thread, so they are published in order.
+ *
+ * Request bodies of at least compressionThresholdBytes are gzipped with the
+ * given deflate level, unless compressRequests is turned off.
+ *
+ * Batches failing with a transient error are published again from a retry
+ * thread, after a random delay of up to initialRetryDelayMillis doubled on
+ * every attempt and capped at maxRetryDelayMillis, for at most
+ * maxRetryTimeMillis after the first failure. Retries are limited to
+ * retryBudgetRatio of the fresh requests plus minRetriesPerSecond, see
+ * {@link RetryBudget}.
+ *
+ * Once circuitBreakerFailureRate of the last circuitBreakerWindowSize
+ * publishes failed with a transient error, batches are spooled or dropped
+ * without calling the destination for circuitBreakerOpenMillis, see
+ * {@link CircuitBreaker}.
+ *
+ * Fresh batches wait until sending them stays within maxRequestsPerSecond
+ * and maxBytesPerSecond, so a full queue sheds load by the overflow policy
+ * instead of the API throttling every application of the project. Retries
+ * over the limit are given up right away.
+ */
+public class PublishSettings {
+  public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 1;
+  public static final int DEFAULT_COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+  // Below this, gzip framing and CPU cost more than they save.
+  public static final int DEFAULT_COMPRESSION_THRESHOLD_BYTES = 1024;
+  public static final int DEFAULT_MAX_RETRY_TIME_MILLIS = 500;
+  public static final int DEFAULT_INITIAL_RETRY_DELAY_MILLIS = 100;
+  public static final int DEFAULT_MAX_RETRY_DELAY_MILLIS = 10000;
+  public static final double DEFAULT_RETRY_BUDGET_RATIO = 0.1;
+  public static final int DEFAULT_MIN_RETRIES_PER_SECOND = 10;
+  public static final double DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE = 0.5;
+  public static final int DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE = 20;
+  public static final int DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS = 30000;
+  public static final int DEFAULT_MAX_REQUESTS_PER_SECOND = 0;
+  public static final long DEFAULT_MAX_BYTES_PER_SECOND = 0;
+
+  private final int maxInFlightRequests;
+  private final boolean preserveLoggerOrder;
+  private final boolean compressRequests;
+  private final int compressionLevel;
+  private final int compressionThresholdBytes;
+  private final int maxRetryTimeMillis;
+  private final int initialRetryDelayMillis;
+  private final int maxRetryDelayMillis;
+  private final double retryBudgetRatio;
+  private final int minRetriesPerSecond;
+  private final double circuitBreakerFailureRate;
+  private final int circuitBreakerWindowSize;
+  private final int circuitBreakerOpenMillis;
+  private final int maxRequestsPerSecond;
+  private final long maxBytesPerSecond;
+
+  protected PublishSettings(final int maxInFlightRequests,
+                            final boolean preserveLoggerOrder,
+                            final boolean compressRequests,
+                            final int compressionLevel,
+                            final int compressionThresholdBytes,
+                            final int maxRetryTimeMillis,
+                            final int initialRetryDelayMillis,
+                            final int maxRetryDelayMillis,
+                            final double retryBudgetRatio,
+                            final int minRetriesPerSecond,
+                            final double circuitBreakerFailureRate,
+                            final int circuitBreakerWindowSize,
+                            final int circuitBreakerOpenMillis,
+                            final int maxRequestsPerSecond,
+                            final long maxBytesPerSecond) {
+    this.maxInFlightRequests = maxInFlightRequests;
+    this.preserveLoggerOrder = preserveLoggerOrder;
+    this.compressRequests = compressRequests;
+    this.compressionLevel = compressionLevel;
+    this.compressionThresholdBytes = compressionThresholdBytes;
+    this.maxRetryTimeMillis = maxRetryTimeMillis;
+    this.initialRetryDelayMillis = initialRetryDelayMillis;
+    this.maxRetryDelayMillis = maxRetryDelayMillis;
+    this.retryBudgetRatio = retryBudgetRatio;
+    this.minRetriesPerSecond = minRetriesPerSecond;
+    this.circuitBreakerFailureRate = circuitBreakerFailureRate;
+    this.circuitBreakerWindowSize = circuitBreakerWindowSize;
+    this.circuitBreakerOpenMillis = circuitBreakerOpenMillis;
+    this.maxRequestsPerSecond = maxRequestsPerSecond;
+    this.maxBytesPerSecond = maxBytesPerSecond;
+  }
+
+  public int getMaxInFlightRequests() {
+    return maxInFlightRequests;
+  }
+
+  public boolean isPreserveLoggerOrder() {
+    return preserveLoggerOrder;
+  }
+
+  public boolean isCompressRequests() {
+    return compressRequests;
+  }
+
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  public int getCompressionThresholdBytes() {
+    return compressionThresholdBytes;
+  }
+
+  public int getMaxRetryTimeMillis() {
+    return maxRetryTimeMillis;
+  }
+
+  public int getInitialRetryDelayMillis() {
+    return initialRetryDelayMillis;
+  }
+
+  public int getMaxRetryDelayMillis() {
+    return maxRetryDelayMillis;
+  }
+
+  public double getRetryBudgetRatio() {
+    return retryBudgetRatio;
+  }
+
+  public int getMinRetriesPerSecond() {
+    return minRetriesPerSecond;
+  }
+
+  public double getCircuitBreakerFailureRate() {
+    return circuitBreakerFailureRate;
+  }
+
+  public int getCircuitBreakerWindowSize() {
+    return circuitBreakerWindowSize;
+  }
+
+  public int getCircuitBreakerOpenMillis() {
+    return circuitBreakerOpenMillis;
+  }
+
+  public int getMaxRequestsPerSecond() {
+    return maxRequestsPerSecond;
+  }
+
+  public long getMaxBytesPerSecond() {
+    return maxBytesPerSecond;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static class Builder
+      implements org.apache.logging.log4j.core.util.Builder<PublishSettings> {
+    private int maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+    private boolean preserveLoggerOrder = false;
+    private boolean compressRequests = true;
+    private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+    private int compressionThresholdBytes = DEFAULT_COMPRESSION_THRESHOLD_BYTES;
+    private int maxRetryTimeMillis = DEFAULT_MAX_RETRY_TIME_MILLIS;
+    private int initialRetryDelayMillis = DEFAULT_INITIAL_RETRY_DELAY_MILLIS;
+    private int maxRetryDelayMillis = DEFAULT_MAX_RETRY_DELAY_MILLIS;
+    private double retryBudgetRatio = DEFAULT_RETRY_BUDGET_RATIO;
+    private int minRetriesPerSecond = DEFAULT_MIN_RETRIES_PER_SECOND;
+    private double circuitBreakerFailureRate = DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE;
+    private int circuitBreakerWindowSize = DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE;
+    private int circuitBreakerOpenMillis = DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS;
+    private int maxRequestsPerSecond = DEFAULT_MAX_REQUESTS_PER_SECOND;
+    private long maxBytesPerSecond = DEFAULT_MAX_BYTES_PER_SECOND;
+
+    public Builder withMaxInFlightRequests(final int maxInFlightRequests) {
+      this.maxInFlightRequests = maxInFlightRequests;
+      return this;
+    }
+
+    public Builder withPreserveLoggerOrder(final boolean preserveLoggerOrder) {
+      this.preserveLoggerOrder = preserveLoggerOrder;
+      return this;
+    }
+
+    public Builder withCompressRequests(final boolean compressRequests) {
+      this.compressRequests = compressRequests;
+      return this;
+    }
+
+    public Builder withCompressionLevel(final int compressionLevel) {
+      this.compressionLevel = compressionLevel;
+      return this;
+    }
+
+    public Builder withCompressionThresholdBytes(final int compressionThresholdBytes) {
+      this.compressionThresholdBytes = compressionThresholdBytes;
+      return this;
+    }
+
+    /**
+     * @param maxRetryTimeMillis 0 turns retries off
+     */
+    public Builder withMaxRetryTimeMillis(final int maxRetryTimeMillis) {
+      this.maxRetryTimeMillis = maxRetryTimeMillis;
+      return this;
+    }
+
+    public Builder withInitialRetryDelayMillis(final int initialRetryDelayMillis) {
+      this.initialRetryDelayMillis = initialRetryDelayMillis;
+      return this;
+    }
+
+    public Builder withMaxRetryDelayMillis(final int maxRetryDelayMillis) {
+      this.maxRetryDelayMillis = maxRetryDelayMillis;
+      return this;
+    }
+
+    public Builder withRetryBudgetRatio(final double retryBudgetRatio) {
+      this.retryBudgetRatio = retryBudgetRatio;
+      return this;
+    }
+
+    public Builder withMinRetriesPerSecond(final int minRetriesPerSecond) {
+      this.minRetriesPerSecond = minRetriesPerSecond;
+      return this;
+    }
+
+    /**
+     * @param circuitBreakerFailureRate 0 turns the circuit breaker off
+     */
+    public Builder withCircuitBreakerFailureRate(final double circuitBreakerFailureRate) {
+      this.circuitBreakerFailureRate = circuitBreakerFailureRate;
+      return this;
+    }
+
+    public Builder withCircuitBreakerWindowSize(final int circuitBreakerWindowSize) {
+      this.circuitBreakerWindowSize = circuitBreakerWindowSize;
+      return this;
+    }
+
+    public Builder withCircuitBreakerOpenMillis(final int circuitBreakerOpenMillis) {
+      this.circuitBreakerOpenMillis = circuitBreakerOpenMillis;
+      return this;
+    }
+
+    /**
+     * @param maxRequestsPerSecond 0 doesn't limit requests
+     */
+    public Builder withMaxRequestsPerSecond(final int maxRequestsPerSecond) {
+      this.maxRequestsPerSecond = maxRequestsPerSecond;
+      return this;
+    }
+
+    /**
+     * @param maxBytesPerSecond 0 doesn't limit bytes
+     */
+    public Builder withMaxBytesPerSecond(final long maxBytesPerSecond) {
+      this.maxBytesPerSecond = maxBytesPerSecond;
+      return this;
+    }
+
+    @Override
+    public PublishSettings build() {
+      Preconditions.checkArgument(maxInFlightRequests > 0,
+                                  "maxInFlightRequests must be positive");
+      Preconditions.checkArgument(compressionLevel == Deflater.DEFAULT_COMPRESSION ||
+                                  (compressionLevel >= Deflater.NO_COMPRESSION &&
+                                   compressionLevel <= Deflater.BEST_COMPRESSION),
+                                  "compressionLevel must be -1 or between 0 and 9");
+      Preconditions.checkArgument(compressionThresholdBytes >= 0,
+                                  "compressionThresholdBytes can't be negative");
+      Preconditions.checkArgument(maxRetryTimeMillis >= 0,
+                                  "maxRetryTimeMillis can't be negative");
+      Preconditions.checkArgument(initialRetryDelayMillis > 0,
+                                  "initialRetryDelayMillis must be positive");
+      Preconditions.checkArgument(maxRetryDelayMillis >= initialRetryDelayMillis,
+                                  "maxRetryDelayMillis can't be less than initialRetryDelayMillis");
+      Preconditions.checkArgument(retryBudgetRatio >= 0,
+                                  "retryBudgetRatio can't be negative");
+      Preconditions.checkArgument(minRetriesPerSecond >= 0,
+                                  "minRetriesPerSecond can't be negative");
+      Preconditions.checkArgument(circuitBreakerFailureRate >= 0 && circuitBreakerFailureRate <= 1,
+                                  "circuitBreakerFailureRate must be between 0 and 1");
+      Preconditions.checkArgument(circuitBreakerWindowSize > 0,
+                                  "circuitBreakerWindowSize must be positive");
+      Preconditions.checkArgument(circuitBreakerOpenMillis > 0,
+                                  "circuitBreakerOpenMillis must be positive");
+      Preconditions.checkArgument(maxRequestsPerSecond >= 0,
+                                  "maxRequestsPerSecond can't be negative");
+      Preconditions.checkArgument(maxBytesPerSecond >= 0,
+                                  "maxBytesPerSecond can't be negative");
+      return new PublishSettings(maxInFlightRequests,
+                                 preserveLoggerOrder,
+                                 compressRequests,
+                                 compressionLevel,
+                                 compressionThresholdBytes,
+                                 maxRetryTimeMillis,
+                                 initialRetryDelayMillis,
+                                 maxRetryDelayMillis,
+                                 retryBudgetRatio,
+                                 minRetriesPerSecond,
+                                 circuitBreakerFailureRate,
+                                 circuitBreakerWindowSize,
+                                 circuitBreakerOpenMillis,
+                                 maxRequestsPerSecond,
+                                 maxBytesPerSecond);
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.TriConsumer;
+
+import java.util.Arrays;
+
+/**
+ * Preallocated ring buffer slot holding one serialized log event
+ * until it is added to a batch.
+ *
+ * The event is copied into an array owned by the slot, which is reused
+ * by the following events, so queueing an event doesn't allocate once
+ * the slot has seen an event of that size. Arrays grown over
+ * MAX_RETAINED_BYTES are let go when the slot is cleared, so a burst of
+ * large events doesn't pin memory in every slot.
+ *
+ * Managers building structured entries also have the thread, throwable,
+ * context data and message parameters of the event copied into arrays of
+ * the slot with {@link #setDetails(LogEvent)}, as the event itself may be
+ * reused by Log4j once appended.
+ */
+public class QueuedEvent {
+  public static final RingBuffer.Factory<QueuedEvent> FACTORY =
+      new RingBuffer.Factory<QueuedEvent>() {
+        @Override
+        public QueuedEvent newInstance() {
+          return new QueuedEvent();
+        }
+      };
+
+  static final int MAX_RETAINED_BYTES = 2048;
+  private static final byte[] EMPTY = new byte[0];
+  private static final String[] NO_KEYS = new String[0];
+  private static final Object[] NO_VALUES = new Object[0];
+
+  private static final TriConsumer<String, Object, QueuedEvent> CONTEXT_COPIER =
+      new TriConsumer<String, Object, QueuedEvent>() {
+        @Override
+        public void accept(final String key, final Object value, final QueuedEvent event) {
+          event.contextKeys[event.contextSize] = key;
+          event.contextValues[event.contextSize] = value;
+          ++event.contextSize;
+        }
+      };
+
+  private byte[] data = EMPTY;
+  private int length;
+  private Level level;
+  private String loggerName;
+  private long timeMillis;
+  private long enqueueNanos;
+
+  private String threadName;
+  private Throwable thrown;
+  private int contextSize;
+  private String[] contextKeys = NO_KEYS;
+  private Object[] contextValues = NO_VALUES;
+  private int parameterCount;
+  private Object[] parameters = NO_VALUES;
+
+  public void set(final byte[] data,
+                  final Level level,
+                  final String loggerName,
+                  final long timeMillis,
+                  final long enqueueNanos) {
+    set(data, 0, data.length, level, loggerName, timeMillis, enqueueNanos);
+  }
+
+  public void set(final byte[] data,
+                  final int offset,
+                  final int length,
+                  final Level level,
+                  final String loggerName,
+                  final long timeMillis,
+                  final long enqueueNanos) {
+    if (this.data.length < length) {
+      this.data = new byte[length];
+    }
+    System.arraycopy(data, offset, this.data, 0, length);
+    this.length = length;
+    this.level = level;
+    this.loggerName = loggerName;
+    this.timeMillis = timeMillis;
+    this.enqueueNanos = enqueueNanos;
+  }
+
+  public void setDetails(final LogEvent event) {
+    threadName = event.getThreadName();
+    thrown = event.getThrown();
+    contextSize = 0;
+    parameterCount = 0;
+
+    final ReadOnlyStringMap contextData = event.getContextData();
+    if (contextData != null && !contextData.isEmpty()) {
+      if (contextKeys.length < contextData.size()) {
+        contextKeys = new String[contextData.size()];
+        contextValues = new Object[contextData.size()];
+      }
+      contextData.forEach(CONTEXT_COPIER, this);
+    }
+
+    final Message message = event.getMessage();
+    final Object[] eventParameters = message != null ? message.getParameters() : null;
+    if (eventParameters != null) {
+      if (parameters.length < eventParameters.length) {
+        parameters = new Object[eventParameters.length];
+      }
+      System.arraycopy(eventParameters, 0, parameters, 0, eventParameters.length);
+      parameterCount = eventParameters.length;
+    }
+  }
+
+  public void clear() {
+    if (data.length > MAX_RETAINED_BYTES) {
+      data = EMPTY;
+    }
+    length = 0;
+    level = null;
+    loggerName = null;
+    threadName = null;
+    thrown = null;
+    Arrays.fill(contextKeys, 0, contextSize, null);
+    Arrays.fill(contextValues, 0, contextSize, null);
+    contextSize = 0;
+    Arrays.fill(parameters, 0, parameterCount, null);
+    parameterCount = 0;
+  }
+
+  /**
+   * @return array holding the event in its first getLength() bytes, only
+   * valid until the slot is cleared
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * @return copy of the event that outlives the slot
+   */
+  public byte[] copyData() {
+    return Arrays.copyOf(data, length);
+  }
+
+  public Level getLevel() {
+    return level;
+  }
+
+  public String getLoggerName() {
+    return loggerName;
+  }
+
+  public long getTimeMillis() {
+    return timeMillis;
+  }
+
+  public long getEnqueueNanos() {
+    return enqueueNanos;
+  }
+
+  public String getThreadName() {
+    return threadName;
+  }
+
+  public Throwable getThrown() {
+    return thrown;
+  }
+
+  public int getContextSize() {
+    return contextSize;
+  }
+
+  public String getContextKey(final int index) {
+    return contextKeys[index];
+  }
+
+  public Object getContextValue(final int index) {
+    return contextValues[index];
+  }
+
+  public int getParameterCount() {
+    return parameterCount;
+  }
+
+  public Object getParameter(final int index) {
+    return parameters[index];
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import java.io.IOException;
+
+/**
+ * Fails a batch without calling the destination when it doesn't fit into
+ * the rate limits.
+ */
+class RateLimitedException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  RateLimitedException(final String message) {
+    super(message);
+  }
+}
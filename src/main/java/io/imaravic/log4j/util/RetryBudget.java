@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+
+/**
+ * Limits retries to a share of the fresh requests, so retries can't
+ * multiply the load on a destination which is already failing.
+ *
+ * Every fresh request deposits ratio of a token and every retry withdraws
+ * a whole one. On top of that minPerSecond tokens are added every second,
+ * so a manager with little traffic can still retry. At most
+ * {@link #MAX_RESERVE_SECONDS} seconds worth of tokens are kept.
+ */
+class RetryBudget {
+  @VisibleForTesting
+  static final int MAX_RESERVE_SECONDS = 10;
+
+  private final double ratio;
+  private final double minPerSecond;
+  private final double maxBalance;
+  private final Ticker ticker;
+
+  private double balance;
+  private long lastRefillNanos;
+
+  RetryBudget(final double ratio, final int minPerSecond) {
+    this(ratio, minPerSecond, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  RetryBudget(final double ratio, final int minPerSecond, final Ticker ticker) {
+    this.ratio = ratio;
+    this.minPerSecond = minPerSecond;
+    this.maxBalance = Math.max(minPerSecond * MAX_RESERVE_SECONDS, 1);
+    this.ticker = ticker;
+    this.balance = minPerSecond;
+    this.lastRefillNanos = ticker.read();
+  }
+
+  /**
+   * Records a fresh request.
+   */
+  synchronized void deposit() {
+    refill();
+    balance = Math.min(balance + ratio, maxBalance);
+  }
+
+  /**
+   * @return true if a retry may be sent
+   */
+  synchronized boolean tryWithdraw() {
+    refill();
+    if (balance < 1) {
+      return false;
+    }
+    --balance;
+    return true;
+  }
+
+  private void refill() {
+    final long now = ticker.read();
+    balance = Math.min(balance + minPerSecond * (now - lastRefillNanos) / 1e9, maxBalance);
+    lastRefillNanos = now;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.imaravic.log4j.util;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destination a layout encodes one event at a time into, reused for every
+ * event of a thread, so encoding with the garbage-free Layout.encode
+ * doesn't allocate.
+ *
+ * There is nowhere to drain a partially encoded event to, so the buffer
+ * grows instead when an event doesn't fit. A buffer grown over
+ * maxRetainedBytes is dropped on reset, so one huge event isn't kept alive.
+ */
+public class ReusableByteBufferDestination implements ByteBufferDestination {
+  private final int initialCapacity;
+  private final int maxRetainedBytes;
+  private ByteBuffer buffer;
+
+  public ReusableByteBufferDestination(final int initialCapacity, final int maxRetainedBytes) {
+    this.initialCapacity = initialCapacity;
+    this.maxRetainedBytes = maxRetainedBytes;
+    this.buffer = ByteBuffer.allocate(initialCapacity);
+  }
+
+  public void encode(final LogEvent event, final Layout<?> layout) {
+    buffer.clear();
+    layout.encode(event, this);
+  }
+
+  @Override
+  public ByteBuffer getByteBuffer() {
+    return buffer;
+  }
+
+  @Override
+  public ByteBuffer drain(final ByteBuffer full) {
+    final ByteBuffer grown = ByteBuffer.allocate(Math.max(initialCapacity, full.capacity() * 2));
+    full.flip();
+    grown.put(full);
+    buffer = grown;
+    return grown;
+  }
+
+  /**
+   * @return array holding the encoded event in its first getLength() bytes
+   */
+  public byte[] getArray() {
+    return buffer.array();
+  }
+
+  public int getLength() {
+    return buffer.position();
+  }
+
+  public void reset() {
+    if (buffer.capacity() > maxRetainedBytes) {
+      buffer = ByteBuffer.allocate(initialCapacity);
+    } else {
+      buffer.clear();
+    }
+  }
+}
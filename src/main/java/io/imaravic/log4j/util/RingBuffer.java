@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free multi-producer, single-consumer ring buffer over preallocated
+ * slots, modelled after the Disruptor.
+ *
+ * Producers claim a sequence with {@link #tryNext()}, fill the slot returned
+ * by {@link #get(long)} and make it visible with {@link #publish(long)}.
+ * A single consumer at a time reads published slots with
+ * {@link #drain(Handler, int)}, after which the slots can be claimed again.
+ */
+public class RingBuffer<E> {
+  public interface Factory<E> {
+    E newInstance();
+  }
+
+  public interface Handler<E> {
+    /**
+     * @return false to stop draining, leaving the slot in the buffer
+     */
+    boolean onEvent(E event);
+  }
+
+  private final Object[] slots;
+  private final int mask;
+  private final int indexShift;
+  // Holds the lap of the sequence last published into each slot.
+  private final AtomicIntegerArray published;
+
+  // Last claimed and last consumed sequences, each on its own cache line.
+  private final PaddedSequence claimed = new PaddedSequence(-1);
+  private final PaddedSequence consumed = new PaddedSequence(-1);
+
+  public RingBuffer(final int capacity, final Factory<E> factory) {
+    Preconditions.checkArgument(Integer.bitCount(capacity) == 1,
+                                "capacity must be a power of two");
+    this.slots = new Object[capacity];
+    this.mask = capacity - 1;
+    this.indexShift = Integer.numberOfTrailingZeros(capacity);
+    this.published = new AtomicIntegerArray(capacity);
+    for (int i = 0; i < capacity; ++i) {
+      slots[i] = factory.newInstance();
+      published.set(i, -1);
+    }
+  }
+
+  public static int capacityFor(final int requested) {
+    Preconditions.checkArgument(requested > 0 && requested <= 1 << 30,
+                                "capacity out of range");
+    final int capacity = Integer.highestOneBit(requested);
+    return capacity == requested ? capacity : capacity << 1;
+  }
+
+  /**
+   * @return the claimed sequence, or -1 if the buffer is full
+   */
+  public long tryNext() {
+    long current;
+    long next;
+    do {
+      current = claimed.get();
+      next = current + 1;
+      if (next - slots.length > consumed.get()) {
+        return -1;
+      }
+    } while (!claimed.compareAndSet(current, next));
+    return next;
+  }
+
+  @SuppressWarnings("unchecked")
+  public E get(final long sequence) {
+    return (E) slots[(int) sequence & mask];
+  }
+
+  public void publish(final long sequence) {
+    published.lazySet((int) sequence & mask, (int) (sequence >>> indexShift));
+  }
+
+  /**
+   * Hands up to maxEvents published slots, in order, to the handler and
+   * releases them. Must not be called by more than one thread at a time.
+   *
+   * @return number of slots consumed
+   */
+  public int drain(final Handler<E> handler, final int maxEvents) {
+    final long first = consumed.get() + 1;
+    long next = first;
+    while (next - first < maxEvents && isPublished(next)) {
+      if (!handler.onEvent(get(next))) {
+        break;
+      }
+      ++next;
+    }
+    if (next != first) {
+      consumed.lazySet(next - 1);
+    }
+    return (int) (next - first);
+  }
+
+  /**
+   * @return true if the next slot to be consumed is not published yet
+   */
+  public boolean isEmpty() {
+    return !isPublished(consumed.get() + 1);
+  }
+
+  /**
+   * @return number of claimed but not yet consumed slots
+   */
+  public int size() {
+    return (int) (claimed.get() - consumed.get());
+  }
+
+  public int getCapacity() {
+    return slots.length;
+  }
+
+  private boolean isPublished(final long sequence) {
+    return published.get((int) sequence & mask) == (int) (sequence >>> indexShift);
+  }
+
+  // Keeps the hot producer and consumer sequences from false sharing.
+  @SuppressWarnings("unused")
+  private static class PaddedSequence extends AtomicLong {
+    private static final long serialVersionUID = 1L;
+    public volatile long p1, p2, p3, p4, p5, p6, p7 = 7L;
+
+    PaddedSequence(final long initialValue) {
+      super(initialValue);
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.auth.oauth2.GoogleOAuthConstants;
+import com.google.api.client.googleapis.compute.ComputeCredential;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credentials shared by every manager of the JVM using the same account for
+ * the same scopes, with tokens refreshed ahead of expiry in the background.
+ *
+ * A {@link Credential} refreshes its token in the request interceptor once
+ * it's about to expire, so every hour one publish would wait for the token
+ * server while holding the lock of the credential. Instead, a second
+ * credential of the same account is refreshed by a single daemon thread
+ * {@link #REFRESH_AHEAD_MILLIS} before the token expires, and its token is
+ * copied into the credential handed to the managers, which so always finds
+ * a valid token in memory. It still refreshes on its own when the server
+ * rejects the token, or if background refreshes keep failing.
+ *
+ * Credentials are reference counted, the token refreshes of a credential
+ * stop once the last manager using it releases it.
+ */
+final class SharedCredentials {
+  private static final Logger LOGGER = StatusLogger.getLogger();
+
+  @VisibleForTesting
+  static final long REFRESH_AHEAD_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  @VisibleForTesting
+  static final long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  private static final Map<Key, SharedCredential> CREDENTIALS = new HashMap<Key, SharedCredential>();
+  private static ScheduledExecutorService refresher;
+
+  private SharedCredentials() {
+  }
+
+  /**
+   * @return credential to hand back with {@link #release(Credential)}
+   */
+  static synchronized Credential acquire(final GoogleCloudCredentials credentials,
+                                         final Collection<String> scopes)
+      throws GeneralSecurityException, IOException {
+    final Key key = new Key(credentials, scopes);
+    SharedCredential shared = CREDENTIALS.get(key);
+    if (shared == null) {
+      final String tokenServerUrl = credentials.usingComputeCredentials()
+          ? ComputeCredential.TOKEN_SERVER_ENCODED_URL
+          : GoogleOAuthConstants.TOKEN_SERVER_URL;
+      final HttpTransport transport =
+          SharedHttpTransports.acquire(tokenServerUrl, TransportSettings.newBuilder().build());
+      try {
+        final JacksonFactory jacksonFactory = JacksonFactory.getDefaultInstance();
+        shared = new SharedCredential(transport,
+                                      credentials.getCredential(transport, jacksonFactory, scopes),
+                                      credentials.getCredential(transport, jacksonFactory, scopes));
+      } catch (final GeneralSecurityException e) {
+        SharedHttpTransports.release(transport);
+        throw e;
+      } catch (final IOException e) {
+        SharedHttpTransports.release(transport);
+        throw e;
+      } catch (final RuntimeException e) {
+        SharedHttpTransports.release(transport);
+        throw e;
+      }
+      CREDENTIALS.put(key, shared);
+      scheduleRefresh(shared, 0);
+    }
+    ++shared.references;
+    return shared.credential;
+  }
+
+  /**
+   * Releases a credential returned by {@link #acquire(GoogleCloudCredentials, Collection)},
+   * other credentials are ignored.
+   */
+  static synchronized void release(final Credential credential) {
+    final Iterator<SharedCredential> it = CREDENTIALS.values().iterator();
+    while (it.hasNext()) {
+      final SharedCredential shared = it.next();
+      if (shared.credential != credential) {
+        continue;
+      }
+      if (--shared.references == 0) {
+        it.remove();
+        shared.released = true;
+        if (shared.refresh != null) {
+          shared.refresh.cancel(false);
+        }
+        SharedHttpTransports.release(shared.transport);
+      }
+      break;
+    }
+    if (CREDENTIALS.isEmpty() && refresher != null) {
+      refresher.shutdownNow();
+      refresher = null;
+    }
+  }
+
+  @VisibleForTesting
+  static synchronized int size() {
+    return CREDENTIALS.size();
+  }
+
+  /**
+   * @return how long to wait before refreshing a token expiring in the
+   *         given number of seconds
+   */
+  @VisibleForTesting
+  static long refreshDelayMillis(final long expiresInSeconds) {
+    return Math.max(TimeUnit.SECONDS.toMillis(expiresInSeconds) - REFRESH_AHEAD_MILLIS,
+                    RETRY_DELAY_MILLIS);
+  }
+
+  private static synchronized void scheduleRefresh(final SharedCredential shared,
+                                                   final long delayMillis) {
+    if (shared.released) {
+      return;
+    }
+    if (refresher == null) {
+      refresher = Executors.newSingleThreadScheduledExecutor(
+          Log4jThreadFactory.createDaemonThreadFactory("GoogleCloud-CredentialRefresher"));
+    }
+    shared.refresh = refresher.schedule(new Runnable() {
+      @Override
+      public void run() {
+        refresh(shared);
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private static void refresh(final SharedCredential shared) {
+    final Credential refreshing = shared.refreshing;
+    try {
+      if (!refreshing.refreshToken()) {
+        LOGGER.warn("Refreshing the access token failed, retrying in {} ms", RETRY_DELAY_MILLIS);
+        scheduleRefresh(shared, RETRY_DELAY_MILLIS);
+        return;
+      }
+    } catch (final IOException e) {
+      LOGGER.warn("Refreshing the access token failed, retrying in {} ms", RETRY_DELAY_MILLIS, e);
+      scheduleRefresh(shared, RETRY_DELAY_MILLIS);
+      return;
+    } catch (final RuntimeException e) {
+      LOGGER.error("Refreshing the access token failed, retrying in {} ms", RETRY_DELAY_MILLIS, e);
+      scheduleRefresh(shared, RETRY_DELAY_MILLIS);
+      return;
+    }
+
+    // The expiration time goes first, so the token is never seen as expired.
+    shared.credential.setExpirationTimeMilliseconds(refreshing.getExpirationTimeMilliseconds());
+    shared.credential.setAccessToken(refreshing.getAccessToken());
+
+    final Long expiresInSeconds = refreshing.getExpiresInSeconds();
+    if (expiresInSeconds != null) {
+      scheduleRefresh(shared, refreshDelayMillis(expiresInSeconds));
+    }
+  }
+
+  private static class SharedCredential {
+    private final HttpTransport transport;
+    // Handed to the managers, it only gets tokens refreshed by the other one.
+    private final Credential credential;
+    private final Credential refreshing;
+    private ScheduledFuture<?> refresh;
+    private boolean released = false;
+    private int references = 0;
+
+    SharedCredential(final HttpTransport transport,
+                     final Credential credential,
+                     final Credential refreshing) {
+      this.transport = transport;
+      this.credential = credential;
+      this.refreshing = refreshing;
+    }
+  }
+
+  private static class Key {
+    private final GoogleCloudCredentials credentials;
+    private final Set<String> scopes;
+
+    Key(final GoogleCloudCredentials credentials, final Collection<String> scopes) {
+      this.credentials = credentials;
+      // Compute Engine tokens have the scopes of the instance, whatever is asked for.
+      this.scopes = credentials.usingComputeCredentials()
+          ? Collections.<String>emptySet()
+          : new HashSet<String>(scopes);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key that = (Key) o;
+      return credentials.equals(that.credentials) && scopes.equals(that.scopes);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * credentials.hashCode() + scopes.hashCode();
+    }
+  }
+}
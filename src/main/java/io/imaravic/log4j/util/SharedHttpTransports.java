@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP transports shared by every manager of the JVM, one per endpoint and
+ * {@link TransportSettings}.
+ *
+ * Appenders publishing to the same API reuse the pooled connections of one
+ * transport instead of each opening their own and redoing the TLS handshake.
+ * A transport is created by the {@link HttpTransportFactory} of the
+ * settings, reference counted and shut down once the last manager using it
+ * releases it. Idle connections of all Apache HttpClient transports are
+ * evicted by a single daemon thread.
+ */
+public final class SharedHttpTransports {
+  private static final Logger LOGGER = StatusLogger.getLogger();
+
+  private static final long MIN_EVICTION_PERIOD_MILLIS = 1000;
+
+  private static final Map<Key, SharedTransport> TRANSPORTS = new HashMap<Key, SharedTransport>();
+  private static ScheduledExecutorService evictor;
+
+  private SharedHttpTransports() {
+  }
+
+  /**
+   * @param endpoint root URL of the API the transport is used for
+   * @return transport to hand back with {@link #release(HttpTransport)}
+   */
+  public static synchronized HttpTransport acquire(final String endpoint,
+                                                   final TransportSettings settings)
+      throws GeneralSecurityException, IOException {
+    final Key key = new Key(endpoint, settings);
+    SharedTransport shared = TRANSPORTS.get(key);
+    if (shared == null) {
+      final HttpTransport transport = settings.getTransportFactory().create(settings);
+      // Creating the transport may log and so configure appenders, which
+      // acquire their transports from this same thread.
+      shared = TRANSPORTS.get(key);
+      if (shared != null) {
+        transport.shutdown();
+      } else {
+        shared = new SharedTransport(transport);
+        if (transport instanceof ApacheHttpTransport && settings.getIdleConnectionTimeoutMillis() > 0) {
+          shared.eviction = scheduleEviction((ApacheHttpTransport) transport,
+                                             settings.getIdleConnectionTimeoutMillis());
+        }
+        TRANSPORTS.put(key, shared);
+      }
+    }
+    ++shared.references;
+    return shared.transport;
+  }
+
+  /**
+   * Releases a transport returned by {@link #acquire(String, TransportSettings)},
+   * other transports are ignored.
+   */
+  public static synchronized void release(final HttpTransport transport) {
+    final Iterator<SharedTransport> it = TRANSPORTS.values().iterator();
+    while (it.hasNext()) {
+      final SharedTransport shared = it.next();
+      if (shared.transport != transport) {
+        continue;
+      }
+      if (--shared.references == 0) {
+        it.remove();
+        if (shared.eviction != null) {
+          shared.eviction.cancel(false);
+        }
+        try {
+          transport.shutdown();
+        } catch (final IOException e) {
+          LOGGER.error("Shutting down the shared HTTP transport failed", e);
+        }
+      }
+      break;
+    }
+    if (TRANSPORTS.isEmpty() && evictor != null) {
+      evictor.shutdownNow();
+      evictor = null;
+    }
+  }
+
+  @VisibleForTesting
+  static synchronized int size() {
+    return TRANSPORTS.size();
+  }
+
+  private static ScheduledFuture<?> scheduleEviction(final ApacheHttpTransport transport,
+                                                     final long idleConnectionTimeoutMillis) {
+    if (evictor == null) {
+      evictor = Executors.newSingleThreadScheduledExecutor(
+          Log4jThreadFactory.createDaemonThreadFactory("GoogleCloud-ConnectionEvictor"));
+    }
+    final ClientConnectionManager connectionManager = transport.getHttpClient().getConnectionManager();
+    final long periodMillis = Math.max(idleConnectionTimeoutMillis / 2, MIN_EVICTION_PERIOD_MILLIS);
+    return evictor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleConnectionTimeoutMillis, TimeUnit.MILLISECONDS);
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private static class SharedTransport {
+    private final HttpTransport transport;
+    private ScheduledFuture<?> eviction;
+    private int references = 0;
+
+    SharedTransport(final HttpTransport transport) {
+      this.transport = transport;
+    }
+  }
+
+  private static class Key {
+    private final String endpoint;
+    private final TransportSettings settings;
+
+    Key(final String endpoint, final TransportSettings settings) {
+      this.endpoint = endpoint;
+      this.settings = settings;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key that = (Key) o;
+      return endpoint.equals(that.endpoint) && settings.equals(that.settings);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * endpoint.hashCode() + settings.hashCode();
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Location and bounds of the on-disk spool that keeps messages which
+ * could not be published. The spool is disabled without a directory.
+ */
+public class SpoolSettings {
+  public static final int DEFAULT_MAX_SEGMENT_BYTES = 8 * 1024 * 1024;
+  public static final long DEFAULT_MAX_SPOOL_BYTES = 256L * 1024 * 1024;
+  public static final int DEFAULT_REPLAY_BYTES_PER_SECOND = 1024 * 1024;
+
+  private final String directory;
+  private final int maxSegmentBytes;
+  private final long maxSpoolBytes;
+  private final int replayBytesPerSecond;
+
+  protected SpoolSettings(final String directory,
+                          final int maxSegmentBytes,
+                          final long maxSpoolBytes,
+                          final int replayBytesPerSecond) {
+    this.directory = directory;
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.maxSpoolBytes = maxSpoolBytes;
+    this.replayBytesPerSecond = replayBytesPerSecond;
+  }
+
+  public boolean isEnabled() {
+    return directory != null;
+  }
+
+  public String getDirectory() {
+    return directory;
+  }
+
+  public int getMaxSegmentBytes() {
+    return maxSegmentBytes;
+  }
+
+  /**
+   * @return disk space after which the oldest segment is dropped
+   */
+  public long getMaxSpoolBytes() {
+    return maxSpoolBytes;
+  }
+
+  /**
+   * @return upper bound on the rate spooled messages are published again
+   */
+  public int getReplayBytesPerSecond() {
+    return replayBytesPerSecond;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static class Builder
+      implements org.apache.logging.log4j.core.util.Builder<SpoolSettings> {
+    private String directory;
+    private int maxSegmentBytes = DEFAULT_MAX_SEGMENT_BYTES;
+    private long maxSpoolBytes = DEFAULT_MAX_SPOOL_BYTES;
+    private int replayBytesPerSecond = DEFAULT_REPLAY_BYTES_PER_SECOND;
+
+    public Builder withDirectory(final String directory) {
+      this.directory = directory;
+      return this;
+    }
+
+    public Builder withMaxSegmentBytes(final int maxSegmentBytes) {
+      this.maxSegmentBytes = maxSegmentBytes;
+      return this;
+    }
+
+    public Builder withMaxSpoolBytes(final long maxSpoolBytes) {
+      this.maxSpoolBytes = maxSpoolBytes;
+      return this;
+    }
+
+    public Builder withReplayBytesPerSecond(final int replayBytesPerSecond) {
+      this.replayBytesPerSecond = replayBytesPerSecond;
+      return this;
+    }
+
+    @Override
+    public SpoolSettings build() {
+      Preconditions.checkArgument(maxSegmentBytes > DiskSpool.RECORD_HEADER_BYTES,
+                                  "maxSegmentBytes is too small");
+      Preconditions.checkArgument(maxSpoolBytes >= maxSegmentBytes,
+                                  "maxSpoolBytes must hold at least one segment");
+      Preconditions.checkArgument(replayBytesPerSecond > 0,
+                                  "replayBytesPerSecond must be positive");
+      return new SpoolSettings(directory, maxSegmentBytes, maxSpoolBytes, replayBytesPerSecond);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Batch entries along with the time their events were logged, so the
+ * delay until the destination acknowledged them can be measured.
+ *
+ * The entries are handed to {@link AbstractGoogleCloudManager#publish(List)}
+ * as is, only the manager reads the times.
+ */
+class TimedBatch<E> extends AbstractList<E> implements RandomAccess {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private Object[] entries;
+  private long[] timesMillis;
+  private int size = 0;
+
+  TimedBatch() {
+    this(INITIAL_CAPACITY);
+  }
+
+  TimedBatch(final int capacity) {
+    this.entries = new Object[Math.max(capacity, 1)];
+    this.timesMillis = new long[entries.length];
+  }
+
+  void add(final E entry, final long timeMillis) {
+    if (size == entries.length) {
+      entries = Arrays.copyOf(entries, size * 2);
+      timesMillis = Arrays.copyOf(timesMillis, size * 2);
+    }
+    entries[size] = entry;
+    timesMillis[size] = timeMillis;
+    ++size;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public E get(final int index) {
+    if (index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+    }
+    return (E) entries[index];
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return when the event of the entry at index was logged
+   */
+  long getTimeMillis(final int index) {
+    return timesMillis[index];
+  }
+
+  /**
+   * @return the given entries of this batch along with their times
+   */
+  TimedBatch<E> subset(final List<? extends E> subset) {
+    final Map<Object, Integer> indexes = indexes();
+    final TimedBatch<E> timedSubset = new TimedBatch<E>(subset.size());
+    for (final E entry : subset) {
+      final Integer index = indexes.get(entry);
+      timedSubset.add(entry, index != null ? timesMillis[index] : System.currentTimeMillis());
+    }
+    return timedSubset;
+  }
+
+  /**
+   * @return index of every entry, by identity
+   */
+  Map<Object, Integer> indexes() {
+    final Map<Object, Integer> indexes = new IdentityHashMap<Object, Integer>(size);
+    for (int i = 0; i < size; ++i) {
+      indexes.put(entries[i], i);
+    }
+    return indexes;
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.util;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Controls the connection pool of the HTTP transport, which is shared by
+ * every manager of the JVM publishing to the same endpoint with the same
+ * settings, see {@link SharedHttpTransports}.
+ *
+ * At most maxConnectionsPerRoute connections are open to one host. A
+ * connection is reused for at most keepAliveMillis, or less if the server
+ * asks for it, and connections idle for idleConnectionTimeoutMillis are
+ * closed in the background. A zero idleConnectionTimeoutMillis turns the
+ * eviction off.
+ *
+ * The transport itself is created by the transportFactory, HttpURLConnection
+ * by default, which ignores these pool settings.
+ */
+public class TransportSettings {
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+  public static final long DEFAULT_KEEP_ALIVE_MILLIS = 60000;
+  // Google front ends close idle connections after a few minutes, closing
+  // them earlier avoids failing on a connection the server already dropped.
+  public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLIS = 30000;
+
+  private final int maxConnectionsPerRoute;
+  private final long keepAliveMillis;
+  private final long idleConnectionTimeoutMillis;
+  private final HttpTransportFactory transportFactory;
+
+  protected TransportSettings(final int maxConnectionsPerRoute,
+                              final long keepAliveMillis,
+                              final long idleConnectionTimeoutMillis,
+                              final HttpTransportFactory transportFactory) {
+    this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    this.keepAliveMillis = keepAliveMillis;
+    this.idleConnectionTimeoutMillis = idleConnectionTimeoutMillis;
+    this.transportFactory = transportFactory;
+  }
+
+  public int getMaxConnectionsPerRoute() {
+    return maxConnectionsPerRoute;
+  }
+
+  public long getKeepAliveMillis() {
+    return keepAliveMillis;
+  }
+
+  public long getIdleConnectionTimeoutMillis() {
+    return idleConnectionTimeoutMillis;
+  }
+
+  public HttpTransportFactory getTransportFactory() {
+    return transportFactory;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof TransportSettings)) {
+      return false;
+    }
+    final TransportSettings that = (TransportSettings) o;
+    return maxConnectionsPerRoute == that.maxConnectionsPerRoute &&
+        keepAliveMillis == that.keepAliveMillis &&
+        idleConnectionTimeoutMillis == that.idleConnectionTimeoutMillis &&
+        transportFactory.getClass() == that.transportFactory.getClass();
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(maxConnectionsPerRoute,
+                            keepAliveMillis,
+                            idleConnectionTimeoutMillis,
+                            transportFactory.getClass());
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static class Builder
+      implements org.apache.logging.log4j.core.util.Builder<TransportSettings> {
+    private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    private long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+    private long idleConnectionTimeoutMillis = DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLIS;
+    private HttpTransportFactory transportFactory = new NetHttpTransportFactory();
+
+    public Builder withMaxConnectionsPerRoute(final int maxConnectionsPerRoute) {
+      this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+      return this;
+    }
+
+    public Builder withKeepAliveMillis(final long keepAliveMillis) {
+      this.keepAliveMillis = keepAliveMillis;
+      return this;
+    }
+
+    public Builder withIdleConnectionTimeoutMillis(final long idleConnectionTimeoutMillis) {
+      this.idleConnectionTimeoutMillis = idleConnectionTimeoutMillis;
+      return this;
+    }
+
+    public Builder withTransportFactory(final HttpTransportFactory transportFactory) {
+      this.transportFactory = transportFactory;
+      return this;
+    }
+
+    @Override
+    public TransportSettings build() {
+      Preconditions.checkArgument(maxConnectionsPerRoute > 0,
+                                  "maxConnectionsPerRoute must be positive");
+      Preconditions.checkArgument(keepAliveMillis > 0,
+                                  "keepAliveMillis must be positive");
+      Preconditions.checkArgument(idleConnectionTimeoutMillis >= 0,
+                                  "idleConnectionTimeoutMillis can't be negative");
+      Preconditions.checkNotNull(transportFactory, "transportFactory");
+      return new TransportSettings(maxConnectionsPerRoute,
+                                   keepAliveMillis,
+                                   idleConnectionTimeoutMillis,
+                                   transportFactory);
+    }
+  }
+}
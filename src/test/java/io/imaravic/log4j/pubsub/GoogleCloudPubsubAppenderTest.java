@@ -1,6 +1,11 @@
 package io.imaravic.log4j.pubsub;
 
+import io.imaravic.log4j.util.AsyncSettings;
+import io.imaravic.log4j.util.BatchSettings;
 import io.imaravic.log4j.util.GoogleCloudCredentials;
+import io.imaravic.log4j.util.PublishSettings;
+import io.imaravic.log4j.util.SpoolSettings;
+import io.imaravic.log4j.util.TransportSettings;
 import org.apache.logging.log4j.core.LogEvent;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -11,7 +16,6 @@ import org.powermock.modules.junit4.PowerMockRunner;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
-import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
@@ -33,7 +37,13 @@ public class GoogleCloudPubsubAppenderTest {
                                              anyString(),
                                              anyString(),
                                              anyBoolean(),
-                                             anyInt())).thenReturn(googleCloudPubsubManager);
+                                             any(PubsubTransport.class),
+                                             any(PubsubPacking.class),
+                                             any(BatchSettings.class),
+                                             any(AsyncSettings.class),
+                                             any(PublishSettings.class),
+                                             any(SpoolSettings.class),
+                                             any(TransportSettings.class))).thenReturn(googleCloudPubsubManager);
     
     final GoogleCloudPubsubAppender appender = GoogleCloudPubsubAppender.newBuilder().build();
 
@@ -51,7 +61,13 @@ public class GoogleCloudPubsubAppenderTest {
                                              anyString(),
                                              anyString(),
                                              anyBoolean(),
-                                             anyInt())).thenThrow(new RuntimeException("TEST"));
+                                             any(PubsubTransport.class),
+                                             any(PubsubPacking.class),
+                                             any(BatchSettings.class),
+                                             any(AsyncSettings.class),
+                                             any(PublishSettings.class),
+                                             any(SpoolSettings.class),
+                                             any(TransportSettings.class))).thenThrow(new RuntimeException("TEST"));
 
     final GoogleCloudPubsubAppender appender = GoogleCloudPubsubAppender.newBuilder().build();
     assertEquals(null, appender);
@@ -1,6 +1,13 @@
 package io.imaravic.log4j.pubsub;
 
+import io.imaravic.log4j.util.AsyncSettings;
+import io.imaravic.log4j.util.BatchSettings;
 import io.imaravic.log4j.util.GoogleCloudCredentials;
+import io.imaravic.log4j.util.OverflowPolicy;
+import io.imaravic.log4j.util.PublishSettings;
+import io.imaravic.log4j.util.SpoolSettings;
+import io.imaravic.log4j.util.TransportSettings;
+import org.apache.logging.log4j.Level;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -10,10 +17,10 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.slf4j.LoggerFactory;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
-import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNull;
@@ -36,7 +43,13 @@ public class GoogleCloudPubsubIntegrationFromGceTest {
                                              anyString(),
                                              anyString(),
                                              anyBoolean(),
-                                             anyInt())).thenReturn(googleCloudPubsubManager);
+                                             any(PubsubTransport.class),
+                                             any(PubsubPacking.class),
+                                             any(BatchSettings.class),
+                                             any(AsyncSettings.class),
+                                             any(PublishSettings.class),
+                                             any(SpoolSettings.class),
+                                             any(TransportSettings.class))).thenReturn(googleCloudPubsubManager);
   }
 
   @Test
@@ -44,6 +57,10 @@ public class GoogleCloudPubsubIntegrationFromGceTest {
     LoggerFactory.getLogger("gcloud_logging_from_gce");
     ArgumentCaptor<GoogleCloudCredentials> credentialsCaptor =
         ArgumentCaptor.forClass(GoogleCloudCredentials.class);
+    ArgumentCaptor<AsyncSettings> asyncSettingsCaptor =
+        ArgumentCaptor.forClass(AsyncSettings.class);
+    ArgumentCaptor<TransportSettings> transportSettingsCaptor =
+        ArgumentCaptor.forClass(TransportSettings.class);
 
     verifyStatic();
     GoogleCloudPubsubManager.getManager(eq("gcloud_logging_from_gce"),
@@ -51,7 +68,20 @@ public class GoogleCloudPubsubIntegrationFromGceTest {
                                         isNull(String.class),
                                         anyString(),
                                         eq(true),
-                                        anyInt());
+                                        any(PubsubTransport.class),
+                                        eq(PubsubPacking.NDJSON),
+                                        any(BatchSettings.class),
+                                        asyncSettingsCaptor.capture(),
+                                        any(PublishSettings.class),
+                                        any(SpoolSettings.class),
+                                        transportSettingsCaptor.capture());
     assertTrue(credentialsCaptor.getValue().usingComputeCredentials());
+    assertTrue(asyncSettingsCaptor.getValue().isAsync());
+    assertEquals(1024, asyncSettingsCaptor.getValue().getQueueCapacity());
+    assertEquals(OverflowPolicy.DROP_BY_LEVEL, asyncSettingsCaptor.getValue().getOverflowPolicy());
+    assertEquals(Level.DEBUG, asyncSettingsCaptor.getValue().getDropLevel());
+    assertEquals(8, transportSettingsCaptor.getValue().getMaxConnectionsPerRoute());
+    assertEquals(TransportSettings.DEFAULT_KEEP_ALIVE_MILLIS,
+                 transportSettingsCaptor.getValue().getKeepAliveMillis());
   }
 }
@@ -1,6 +1,11 @@
 package io.imaravic.log4j.pubsub;
 
+import io.imaravic.log4j.util.AsyncSettings;
+import io.imaravic.log4j.util.BatchSettings;
 import io.imaravic.log4j.util.GoogleCloudCredentials;
+import io.imaravic.log4j.util.PublishSettings;
+import io.imaravic.log4j.util.SpoolSettings;
+import io.imaravic.log4j.util.TransportSettings;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -14,7 +19,6 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
-import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
@@ -35,7 +39,13 @@ public class GoogleCloudPubsubIntegrationNotFromGceTest {
                                              anyString(),
                                              anyString(),
                                              anyBoolean(),
-                                             anyInt())).thenReturn(googleCloudPubsubManager);
+                                             any(PubsubTransport.class),
+                                             any(PubsubPacking.class),
+                                             any(BatchSettings.class),
+                                             any(AsyncSettings.class),
+                                             any(PublishSettings.class),
+                                             any(SpoolSettings.class),
+                                             any(TransportSettings.class))).thenReturn(googleCloudPubsubManager);
   }
 
   @Test
@@ -43,6 +53,8 @@ public class GoogleCloudPubsubIntegrationNotFromGceTest {
     LoggerFactory.getLogger("gcloud_logging_not_from_gce");
     ArgumentCaptor<GoogleCloudCredentials> credentialsCaptor =
         ArgumentCaptor.forClass(GoogleCloudCredentials.class);
+    ArgumentCaptor<BatchSettings> batchSettingsCaptor =
+        ArgumentCaptor.forClass(BatchSettings.class);
 
     verifyStatic();
     GoogleCloudPubsubManager.getManager(eq("gcloud_logging_not_from_gce"),
@@ -50,11 +62,19 @@ public class GoogleCloudPubsubIntegrationNotFromGceTest {
                                         eq("gcloud-projectId"),
                                         anyString(),
                                         eq(false),
-                                        anyInt());
+                                        eq(PubsubTransport.GRPC),
+                                        any(PubsubPacking.class),
+                                        batchSettingsCaptor.capture(),
+                                        any(AsyncSettings.class),
+                                        any(PublishSettings.class),
+                                        any(SpoolSettings.class),
+                                        any(TransportSettings.class));
     assertFalse(credentialsCaptor.getValue().usingComputeCredentials());
     assertEquals("service1Id@developer.gserviceaccount.com",
                  credentialsCaptor.getValue().getServiceAccountId());
     assertEquals("file.p12",
                  credentialsCaptor.getValue().getServiceAccountPrivateKeyP12FileName());
+    assertEquals(500, batchSettingsCaptor.getValue().getMaxBatchMessages());
+    assertEquals(250, batchSettingsCaptor.getValue().getMaxLingerMillis());
   }
 }
@@ -1,43 +1,72 @@
 package io.imaravic.log4j.pubsub;
 
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.util.DateTime;
 import com.google.api.services.pubsub.Pubsub;
-import com.google.api.services.pubsub.model.PublishRequest;
-import com.google.api.services.pubsub.model.PubsubMessage;
 
+import io.imaravic.log4j.util.AsyncSettings;
+import io.imaravic.log4j.util.BatchSettings;
+import io.imaravic.log4j.util.DropReason;
 import io.imaravic.log4j.util.GoogleCloudCredentials;
+import io.imaravic.log4j.util.OverflowPolicy;
+import io.imaravic.log4j.util.PartialPublishException;
+import io.imaravic.log4j.util.PublishSettings;
+import io.imaravic.log4j.util.SpoolSettings;
 import io.imaravic.log4j.pubsub.GoogleCloudPubsubManager;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AppenderLoggingException;
 import org.apache.logging.log4j.core.impl.Log4jLogEvent;
 import org.apache.logging.log4j.message.SimpleMessage;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import io.imaravic.log4j.util.GoogleCloudMetadata;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.*;
 
 @RunWith(PowerMockRunner.class)
 @PrepareForTest({GoogleCloudPubsubManager.class})
-@PowerMockIgnore({"javax.management.*", "javax.crypto.*"})
+@PowerMockIgnore({"javax.management.*", "javax.crypto.*", "io.grpc.*"})
 public class GoogleCloudPubsubManagerTest {
+  @Rule
+  public TemporaryFolder spoolFolder = new TemporaryFolder();
+
   @Mock
   HttpTransport httpTransport;
 
@@ -50,14 +79,21 @@ public class GoogleCloudPubsubManagerTest {
   @Mock
   Pubsub pubsubClient;
 
+  BatchSettings batchSettings = BatchSettings.newBuilder()
+      .withMaxLingerMillis(0)
+      .build();
+
+  AsyncSettings asyncSettings = AsyncSettings.newBuilder().build();
+  PublishSettings publishSettings = PublishSettings.newBuilder().build();
+  SpoolSettings spoolSettings = SpoolSettings.newBuilder().build();
+
   @Before
   public void setup() throws Exception {
     PowerMockito.spy(GoogleCloudPubsubManager.class);
     PowerMockito.doReturn(pubsubClient).when(GoogleCloudPubsubManager.class,
                                              "createPubsubClient",
                                              any(HttpTransport.class),
-                                             any(GoogleCloudCredentials.class),
-                                             anyInt());
+                                             any(Credential.class));
   
     
 
@@ -84,26 +120,31 @@ public class GoogleCloudPubsubManagerTest {
                                                       null,
                                                       "topic",
                                                       false,
-                                                      1));
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NONE,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
     
     doNothing().when(googleCloudPubsubManager)
-        .writeToGoogleCloudLogging(any(PublishRequest.class));
+        .writeToGoogleCloudLogging(any(PublishRequestContent.class));
 
     LogEvent event = buildLogEvent("LogMsg", "2015-04-06T18:38:24.000Z", Level.INFO);
     event.setEndOfBatch(true);
 
     googleCloudPubsubManager.write(event);
 
-    ArgumentCaptor<PublishRequest> publishRequestCaptor =
-        ArgumentCaptor.forClass(PublishRequest.class);
+    ArgumentCaptor<PublishRequestContent> publishRequestCaptor =
+        ArgumentCaptor.forClass(PublishRequestContent.class);
     verify(googleCloudPubsubManager).writeToGoogleCloudLogging(publishRequestCaptor.capture());
 
-    List<PubsubMessage> entries = publishRequestCaptor.getValue().getMessages();
+    List<byte[]> entries = publishRequestCaptor.getValue().getMessages();
     assertEquals(1, entries.size());
 
     assertEquals("projects/project_id/topics/topic",
                  googleCloudPubsubManager.getFullyDefinedTopicName());
-    assertEquals("LogMsg", new String(entries.get(0).decodeData(), "UTF-8"));
+    assertEquals("LogMsg", new String(entries.get(0), "UTF-8"));
   }
 
   @Test
@@ -119,16 +160,21 @@ public class GoogleCloudPubsubManagerTest {
                                                       null,
                                                       "topic",
                                                       false,
-                                                      1));
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NONE,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
 
     doNothing().when(googleCloudPubsubManager)
-        .writeToGoogleCloudLogging(any(PublishRequest.class));
+        .writeToGoogleCloudLogging(any(PublishRequestContent.class));
 
     final int batchSize = 128;
     for (int i = 0; i < batchSize - 1; ++i) {
       googleCloudPubsubManager.write(buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO));
       verify(googleCloudPubsubManager, never())
-          .writeToGoogleCloudLogging(any(PublishRequest.class));
+          .writeToGoogleCloudLogging(any(PublishRequestContent.class));
     }
 
     LogEvent event = buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO);
@@ -136,16 +182,20 @@ public class GoogleCloudPubsubManagerTest {
 
     googleCloudPubsubManager.write(event);
 
-    ArgumentCaptor<PublishRequest> publishRequestCaptor =
-        ArgumentCaptor.forClass(PublishRequest.class);
+    ArgumentCaptor<PublishRequestContent> publishRequestCaptor =
+        ArgumentCaptor.forClass(PublishRequestContent.class);
     verify(googleCloudPubsubManager).writeToGoogleCloudLogging(publishRequestCaptor.capture());
 
-    List<PubsubMessage> entries = publishRequestCaptor.getValue().getMessages();
+    List<byte[]> entries = publishRequestCaptor.getValue().getMessages();
     assertEquals(batchSize, entries.size());
   }
 
   @Test(expected = AppenderLoggingException.class)
   public void testExceptionIsThrownOnExceptionFromLoggingClient() throws Exception {
+    publishSettings = PublishSettings.newBuilder()
+        .withMaxRetryTimeMillis(0)
+        .build();
+
     when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
         .thenReturn("");
 
@@ -157,10 +207,15 @@ public class GoogleCloudPubsubManagerTest {
                                                       null,
                                                       "topic",
                                                       false,
-                                                      1));
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NONE,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
 
     doThrow(new IOException("TEST")).when(googleCloudPubsubManager)
-        .writeToGoogleCloudLogging(any(PublishRequest.class));
+        .writeToGoogleCloudLogging(any(PublishRequestContent.class));
 
     LogEvent event = buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO);
     event.setEndOfBatch(true);
@@ -186,26 +241,782 @@ public class GoogleCloudPubsubManagerTest {
                                                       "_project_id_",
                                                       "topic",
                                                       false,
-                                                      1));
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NONE,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
 
     doNothing().when(googleCloudPubsubManager)
-        .writeToGoogleCloudLogging(any(PublishRequest.class));
+        .writeToGoogleCloudLogging(any(PublishRequestContent.class));
 
     LogEvent event = buildLogEvent("LogMsg", "2015-04-06T18:38:24.000Z", Level.INFO);
     event.setEndOfBatch(true);
 
     googleCloudPubsubManager.write(event);
 
-    ArgumentCaptor<PublishRequest> publishRequestCaptor =
-        ArgumentCaptor.forClass(PublishRequest.class);
+    ArgumentCaptor<PublishRequestContent> publishRequestCaptor =
+        ArgumentCaptor.forClass(PublishRequestContent.class);
     verify(googleCloudPubsubManager).writeToGoogleCloudLogging(publishRequestCaptor.capture());
 
-    List<PubsubMessage> entries = publishRequestCaptor.getValue().getMessages();
+    List<byte[]> entries = publishRequestCaptor.getValue().getMessages();
     assertEquals(1, entries.size());
 
     assertEquals("projects/_project_id_/topics/topic",
                  googleCloudPubsubManager.getFullyDefinedTopicName());
-    assertEquals("LogMsg", new String(entries.get(0).decodeData(), "UTF-8"));
+    assertEquals("LogMsg", new String(entries.get(0), "UTF-8"));
+  }
+
+  @Test
+  public void testBatchIsCutAtMaxBatchMessages() throws Exception {
+    batchSettings = BatchSettings.newBuilder()
+        .withMaxBatchMessages(10)
+        .withMaxLingerMillis(0)
+        .build();
+
+    GoogleCloudPubsubManager googleCloudPubsubManager =
+        PowerMockito.spy(new GoogleCloudPubsubManager("name",
+                                                      httpTransport,
+                                                      googleCloudMetadata,
+                                                      googleCloudCredentials,
+                                                      "_project_id_",
+                                                      "topic",
+                                                      false,
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NONE,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
+
+    doNothing().when(googleCloudPubsubManager)
+        .writeToGoogleCloudLogging(any(PublishRequestContent.class));
+
+    for (int i = 0; i < 25; ++i) {
+      googleCloudPubsubManager.write(buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO));
+    }
+
+    ArgumentCaptor<PublishRequestContent> publishRequestCaptor =
+        ArgumentCaptor.forClass(PublishRequestContent.class);
+    verify(googleCloudPubsubManager, times(2))
+        .writeToGoogleCloudLogging(publishRequestCaptor.capture());
+    for (PublishRequestContent publishRequest : publishRequestCaptor.getAllValues()) {
+      assertEquals(10, publishRequest.getMessages().size());
+    }
+  }
+
+  @Test
+  public void testPackedBatchIsPublishedAsOneMessage() throws Exception {
+    batchSettings = BatchSettings.newBuilder()
+        .withMaxBatchMessages(10)
+        .withMaxLingerMillis(0)
+        .build();
+
+    GoogleCloudPubsubManager googleCloudPubsubManager =
+        PowerMockito.spy(new GoogleCloudPubsubManager("name",
+                                                      httpTransport,
+                                                      googleCloudMetadata,
+                                                      googleCloudCredentials,
+                                                      "_project_id_",
+                                                      "topic",
+                                                      false,
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NDJSON,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
+
+    doNothing().when(googleCloudPubsubManager)
+        .writeToGoogleCloudLogging(any(PublishRequestContent.class));
+
+    for (int i = 0; i < 10; ++i) {
+      googleCloudPubsubManager.write(buildLogEvent("LogMsg" + i, "2015-04-06T18:38:24.002Z", Level.INFO));
+    }
+
+    ArgumentCaptor<PublishRequestContent> publishRequestCaptor =
+        ArgumentCaptor.forClass(PublishRequestContent.class);
+    verify(googleCloudPubsubManager).writeToGoogleCloudLogging(publishRequestCaptor.capture());
+    final PublishRequestContent publishRequest = publishRequestCaptor.getValue();
+    assertEquals(1, publishRequest.getMessages().size());
+    assertEquals("10", publishRequest.getAttributes().get(0).get(PackedMessages.COUNT_ATTRIBUTE));
+    final List<byte[]> events = PackedMessages.unpack(publishRequest.getAttributes().get(0),
+                                                      publishRequest.getMessages().get(0));
+    assertEquals(10, events.size());
+    for (int i = 0; i < 10; ++i) {
+      assertEquals("LogMsg" + i, new String(events.get(i), "UTF-8"));
+    }
+  }
+
+  @Test
+  public void testPackedMessagesAreSplitIntoRequestsByEscapedSize() throws Exception {
+    GoogleCloudPubsubManager googleCloudPubsubManager =
+        PowerMockito.spy(new GoogleCloudPubsubManager("name",
+                                                      httpTransport,
+                                                      googleCloudMetadata,
+                                                      googleCloudCredentials,
+                                                      "_project_id_",
+                                                      "topic",
+                                                      false,
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NDJSON,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
+
+    doNothing()
+        .doThrow(new IOException("connection reset"))
+        .doNothing()
+        .doThrow(new HttpResponseException.Builder(400, "Bad Request", new HttpHeaders()).build())
+        .when(googleCloudPubsubManager).writeToGoogleCloudLogging(any(PublishRequestContent.class));
+
+    // Quotes double in size once escaped, so two of these events fill a
+    // packed message, and every packed message needs a request of its own.
+    final byte[] quotes = new byte[PackedMessages.MAX_PACKED_MESSAGE_BYTES / 5];
+    Arrays.fill(quotes, (byte) '"');
+    final List<byte[]> batch = Arrays.asList(quotes.clone(), quotes.clone(), quotes.clone(), quotes.clone());
+
+    try {
+      googleCloudPubsubManager.publish(batch);
+      fail("Expected PartialPublishException");
+    } catch (final PartialPublishException e) {
+      assertEquals(batch.subList(2, 4), e.getFailedEntries());
+      assertTrue(e.isRetryable());
+    }
+    // Rejected for good, the events which went through still aren't
+    // reported as failed.
+    try {
+      googleCloudPubsubManager.publish(batch);
+      fail("Expected PartialPublishException");
+    } catch (final PartialPublishException e) {
+      assertEquals(batch.subList(2, 4), e.getFailedEntries());
+      assertFalse(e.isRetryable());
+    }
+
+    ArgumentCaptor<PublishRequestContent> publishRequestCaptor =
+        ArgumentCaptor.forClass(PublishRequestContent.class);
+    verify(googleCloudPubsubManager, times(4)).writeToGoogleCloudLogging(publishRequestCaptor.capture());
+    for (final PublishRequestContent publishRequest : publishRequestCaptor.getAllValues()) {
+      assertEquals(1, publishRequest.getMessages().size());
+      assertEquals("2", publishRequest.getAttributes().get(0).get(PackedMessages.COUNT_ATTRIBUTE));
+    }
+  }
+
+  @Test
+  public void testEveryPackedRequestTakesARateLimitToken() throws Exception {
+    publishSettings = PublishSettings.newBuilder()
+        .withMaxRequestsPerSecond(2)
+        .build();
+
+    GoogleCloudPubsubManager googleCloudPubsubManager =
+        PowerMockito.spy(new GoogleCloudPubsubManager("name",
+                                                      httpTransport,
+                                                      googleCloudMetadata,
+                                                      googleCloudCredentials,
+                                                      "_project_id_",
+                                                      "topic",
+                                                      false,
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NDJSON,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
+
+    doNothing().when(googleCloudPubsubManager).writeToGoogleCloudLogging(any(PublishRequestContent.class));
+
+    final byte[] quotes = new byte[PackedMessages.MAX_PACKED_MESSAGE_BYTES / 3];
+    Arrays.fill(quotes, (byte) '"');
+    // Sent in three requests, all but the first one take a token.
+    googleCloudPubsubManager.publish(Arrays.asList(quotes, quotes.clone(), quotes.clone()));
+
+    LogEvent event = buildLogEvent("LogMsg", "2015-04-06T18:38:24.000Z", Level.INFO);
+    event.setEndOfBatch(true);
+    googleCloudPubsubManager.write(event);
+
+    verify(googleCloudPubsubManager, times(3)).writeToGoogleCloudLogging(any(PublishRequestContent.class));
+    assertEquals(1, googleCloudPubsubManager.getDroppedEvents(DropReason.RATE_LIMITED));
+    googleCloudPubsubManager.stop(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testBatchIsCutBeforeExceedingMaxBatchBytes() throws Exception {
+    batchSettings = BatchSettings.newBuilder()
+        .withMaxBatchBytes(10)
+        .withMaxLingerMillis(0)
+        .build();
+
+    GoogleCloudPubsubManager googleCloudPubsubManager =
+        PowerMockito.spy(new GoogleCloudPubsubManager("name",
+                                                      httpTransport,
+                                                      googleCloudMetadata,
+                                                      googleCloudCredentials,
+                                                      "_project_id_",
+                                                      "topic",
+                                                      false,
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NONE,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
+
+    doNothing().when(googleCloudPubsubManager)
+        .writeToGoogleCloudLogging(any(PublishRequestContent.class));
+
+    for (int i = 0; i < 3; ++i) {
+      googleCloudPubsubManager.write(buildLogEvent("1234", "2015-04-06T18:38:24.002Z", Level.INFO));
+    }
+
+    ArgumentCaptor<PublishRequestContent> publishRequestCaptor =
+        ArgumentCaptor.forClass(PublishRequestContent.class);
+    verify(googleCloudPubsubManager).writeToGoogleCloudLogging(publishRequestCaptor.capture());
+    assertEquals(2, publishRequestCaptor.getValue().getMessages().size());
+  }
+
+  @Test
+  public void testLingeringBatchIsFlushedByTimer() throws Exception {
+    batchSettings = BatchSettings.newBuilder()
+        .withMaxLingerMillis(10)
+        .build();
+
+    GoogleCloudPubsubManager googleCloudPubsubManager =
+        PowerMockito.spy(new GoogleCloudPubsubManager("name",
+                                                      httpTransport,
+                                                      googleCloudMetadata,
+                                                      googleCloudCredentials,
+                                                      "_project_id_",
+                                                      "topic",
+                                                      false,
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NONE,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
+
+    doNothing().when(googleCloudPubsubManager)
+        .writeToGoogleCloudLogging(any(PublishRequestContent.class));
+
+    googleCloudPubsubManager.write(buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO));
+
+    ArgumentCaptor<PublishRequestContent> publishRequestCaptor =
+        ArgumentCaptor.forClass(PublishRequestContent.class);
+    verify(googleCloudPubsubManager, timeout(5000))
+        .writeToGoogleCloudLogging(publishRequestCaptor.capture());
+    assertEquals(1, publishRequestCaptor.getValue().getMessages().size());
+    assertTrue(googleCloudPubsubManager.stop(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testStoppingManagerFlushesBufferedMessages() throws Exception {
+    GoogleCloudPubsubManager googleCloudPubsubManager =
+        PowerMockito.spy(new GoogleCloudPubsubManager("name",
+                                                      httpTransport,
+                                                      googleCloudMetadata,
+                                                      googleCloudCredentials,
+                                                      "_project_id_",
+                                                      "topic",
+                                                      false,
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NONE,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
+
+    doNothing().when(googleCloudPubsubManager)
+        .writeToGoogleCloudLogging(any(PublishRequestContent.class));
+
+    googleCloudPubsubManager.write(buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO));
+    verify(googleCloudPubsubManager, never())
+        .writeToGoogleCloudLogging(any(PublishRequestContent.class));
+
+    googleCloudPubsubManager.stop(1, TimeUnit.SECONDS);
+
+    verify(googleCloudPubsubManager).writeToGoogleCloudLogging(any(PublishRequestContent.class));
+  }
+
+  @Test
+  public void testAsyncWriteReturnsBeforePublishCompletes() throws Exception {
+    asyncSettings = AsyncSettings.newBuilder()
+        .withAsync(true)
+        .build();
+
+    final GoogleCloudPubsubManager googleCloudPubsubManager =
+        PowerMockito.spy(new GoogleCloudPubsubManager("name",
+                                                      httpTransport,
+                                                      googleCloudMetadata,
+                                                      googleCloudCredentials,
+                                                      "_project_id_",
+                                                      "topic",
+                                                      false,
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NONE,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
+
+    final CountDownLatch publishStarted = new CountDownLatch(1);
+    final CountDownLatch publishReleased = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        publishStarted.countDown();
+        publishReleased.await();
+        return null;
+      }
+    }).when(googleCloudPubsubManager).writeToGoogleCloudLogging(any(PublishRequestContent.class));
+
+    LogEvent event = buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO);
+    event.setEndOfBatch(true);
+    googleCloudPubsubManager.write(event);
+
+    assertTrue(publishStarted.await(5, TimeUnit.SECONDS));
+    publishReleased.countDown();
+    assertTrue(googleCloudPubsubManager.stop(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testStoppingAsyncManagerDrainsQueue() throws Exception {
+    batchSettings = BatchSettings.newBuilder()
+        .withMaxLingerMillis(60000)
+        .build();
+    asyncSettings = AsyncSettings.newBuilder()
+        .withAsync(true)
+        .build();
+
+    GoogleCloudPubsubManager googleCloudPubsubManager =
+        PowerMockito.spy(new GoogleCloudPubsubManager("name",
+                                                      httpTransport,
+                                                      googleCloudMetadata,
+                                                      googleCloudCredentials,
+                                                      "_project_id_",
+                                                      "topic",
+                                                      false,
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NONE,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
+
+    doNothing().when(googleCloudPubsubManager)
+        .writeToGoogleCloudLogging(any(PublishRequestContent.class));
+
+    for (int i = 0; i < 3; ++i) {
+      googleCloudPubsubManager.write(buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO));
+    }
+    assertTrue(googleCloudPubsubManager.stop(5, TimeUnit.SECONDS));
+
+    ArgumentCaptor<PublishRequestContent> publishRequestCaptor =
+        ArgumentCaptor.forClass(PublishRequestContent.class);
+    verify(googleCloudPubsubManager).writeToGoogleCloudLogging(publishRequestCaptor.capture());
+    assertEquals(3, publishRequestCaptor.getValue().getMessages().size());
+  }
+
+  @Test
+  public void testBatchesArePublishedConcurrentlyWithinInFlightWindow() throws Exception {
+    batchSettings = BatchSettings.newBuilder()
+        .withMaxBatchMessages(1)
+        .withMaxLingerMillis(0)
+        .build();
+    publishSettings = PublishSettings.newBuilder()
+        .withMaxInFlightRequests(2)
+        .build();
+
+    final GoogleCloudPubsubManager googleCloudPubsubManager =
+        PowerMockito.spy(new GoogleCloudPubsubManager("name",
+                                                      httpTransport,
+                                                      googleCloudMetadata,
+                                                      googleCloudCredentials,
+                                                      "_project_id_",
+                                                      "topic",
+                                                      false,
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NONE,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
+
+    final CountDownLatch publishesStarted = new CountDownLatch(2);
+    final CountDownLatch publishesReleased = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        publishesStarted.countDown();
+        publishesReleased.await();
+        return null;
+      }
+    }).when(googleCloudPubsubManager).writeToGoogleCloudLogging(any(PublishRequestContent.class));
+
+    googleCloudPubsubManager.write(buildLogEvent("LogMsg1", "2015-04-06T18:38:24.002Z", Level.INFO));
+    googleCloudPubsubManager.write(buildLogEvent("LogMsg2", "2015-04-06T18:38:24.002Z", Level.INFO));
+
+    // Both requests are outstanding at the same time.
+    assertTrue(publishesStarted.await(5, TimeUnit.SECONDS));
+    publishesReleased.countDown();
+    assertTrue(googleCloudPubsubManager.stop(5, TimeUnit.SECONDS));
+    verify(googleCloudPubsubManager, times(2))
+        .writeToGoogleCloudLogging(any(PublishRequestContent.class));
+  }
+
+  @Test
+  public void testPreserveLoggerOrderKeepsEventsOfOneLoggerInOrder() throws Exception {
+    batchSettings = BatchSettings.newBuilder()
+        .withMaxBatchMessages(3)
+        .withMaxLingerMillis(0)
+        .build();
+    publishSettings = PublishSettings.newBuilder()
+        .withMaxInFlightRequests(4)
+        .withPreserveLoggerOrder(true)
+        .build();
+
+    final GoogleCloudPubsubManager googleCloudPubsubManager =
+        PowerMockito.spy(new GoogleCloudPubsubManager("name",
+                                                      httpTransport,
+                                                      googleCloudMetadata,
+                                                      googleCloudCredentials,
+                                                      "_project_id_",
+                                                      "topic",
+                                                      false,
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NONE,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
+
+    final Map<String, List<Integer>> published = new ConcurrentHashMap<String, List<Integer>>();
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        final PublishRequestContent publishRequest =
+            (PublishRequestContent) invocation.getArguments()[0];
+        for (final byte[] message : publishRequest.getMessages()) {
+          final String[] loggerAndSequence = new String(message, "UTF-8").split(":");
+          if (!published.containsKey(loggerAndSequence[0])) {
+            published.put(loggerAndSequence[0], new CopyOnWriteArrayList<Integer>());
+          }
+          published.get(loggerAndSequence[0]).add(Integer.valueOf(loggerAndSequence[1]));
+        }
+        return null;
+      }
+    }).when(googleCloudPubsubManager).writeToGoogleCloudLogging(any(PublishRequestContent.class));
+
+    final String[] loggers = {"logger.a", "logger.b", "logger.c", "logger.d", "logger.e"};
+    final int eventsPerLogger = 50;
+    for (int i = 0; i < eventsPerLogger; ++i) {
+      for (final String logger : loggers) {
+        googleCloudPubsubManager.write(Log4jLogEvent.newBuilder()
+                                           .setLoggerName(logger)
+                                           .setLevel(Level.INFO)
+                                           .setMessage(new SimpleMessage(logger + ":" + i))
+                                           .build());
+      }
+    }
+    assertTrue(googleCloudPubsubManager.stop(5, TimeUnit.SECONDS));
+
+    assertEquals(loggers.length, published.size());
+    for (final String logger : loggers) {
+      final List<Integer> sequences = published.get(logger);
+      assertEquals(eventsPerLogger, sequences.size());
+      for (int i = 0; i < eventsPerLogger; ++i) {
+        assertEquals(i, sequences.get(i).intValue());
+      }
+    }
+  }
+
+  @Test
+  public void testFailedConstructionReleasesResources() throws Exception {
+    final Credential credential = mock(Credential.class);
+    when(googleCloudCredentials.acquireCredential(anyCollectionOf(String.class))).thenReturn(credential);
+    when(googleCloudMetadata.fetchFromPath("project/project-id"))
+        .thenThrow(new IOException("metadata server timed out"));
+    spoolSettings = SpoolSettings.newBuilder()
+        .withDirectory(spoolFolder.getRoot().getPath())
+        .build();
+
+    try {
+      new GoogleCloudPubsubManager("unconstructed",
+                                   httpTransport,
+                                   googleCloudMetadata,
+                                   googleCloudCredentials,
+                                   null,
+                                   "topic",
+                                   false,
+                                   PubsubTransport.HTTP,
+                                   PubsubPacking.NONE,
+                                   batchSettings,
+                                   asyncSettings,
+                                   publishSettings,
+                                   spoolSettings);
+      fail("Expected IOException");
+    } catch (final IOException e) {
+      assertEquals("metadata server timed out", e.getMessage());
+    }
+
+    verify(googleCloudCredentials).releaseCredential(credential);
+    assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+        new ObjectName("io.imaravic.log4j:type=GoogleCloudPubsubManager,name=\"unconstructed\"")));
+  }
+
+  @Test
+  public void testFailedBatchIsSpooledAndReplayed() throws Exception {
+    spoolSettings = SpoolSettings.newBuilder()
+        .withDirectory(spoolFolder.getRoot().getPath())
+        .build();
+
+    final GoogleCloudPubsubManager googleCloudPubsubManager =
+        PowerMockito.spy(new GoogleCloudPubsubManager("name",
+                                                      httpTransport,
+                                                      googleCloudMetadata,
+                                                      googleCloudCredentials,
+                                                      "_project_id_",
+                                                      "topic",
+                                                      false,
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NONE,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
+
+    doThrow(new IOException("outage"))
+        .doNothing()
+        .when(googleCloudPubsubManager).writeToGoogleCloudLogging(any(PublishRequestContent.class));
+
+    LogEvent event = buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO);
+    event.setEndOfBatch(true);
+    // Does not throw, the batch goes to the spool.
+    googleCloudPubsubManager.write(event);
+
+    ArgumentCaptor<PublishRequestContent> publishRequestCaptor =
+        ArgumentCaptor.forClass(PublishRequestContent.class);
+    verify(googleCloudPubsubManager, timeout(5000).times(2))
+        .writeToGoogleCloudLogging(publishRequestCaptor.capture());
+    final List<byte[]> replayed = publishRequestCaptor.getAllValues().get(1).getMessages();
+    assertEquals(1, replayed.size());
+    assertEquals("LogMsg", new String(replayed.get(0), "UTF-8"));
+
+    assertTrue(googleCloudPubsubManager.stop(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testPublishingOverGrpc() throws Exception {
+    final String serverName = InProcessServerBuilder.generateName();
+    final GrpcPubsubPublisherTest.FakePublisher fakePublisher =
+        new GrpcPubsubPublisherTest.FakePublisher();
+    final Server server = InProcessServerBuilder.forName(serverName)
+        .directExecutor()
+        .addService(fakePublisher)
+        .build()
+        .start();
+    final ManagedChannel channel = InProcessChannelBuilder.forName(serverName)
+        .directExecutor()
+        .build();
+    PowerMockito.doReturn(new GrpcPubsubPublisher(channel, null, "projects/_project_id_/topics/topic"))
+        .when(GoogleCloudPubsubManager.class,
+              "createGrpcPublisher",
+              any(Credential.class),
+              anyString());
+
+    try {
+      final GoogleCloudPubsubManager googleCloudPubsubManager =
+          new GoogleCloudPubsubManager("name",
+                                       httpTransport,
+                                       googleCloudMetadata,
+                                       googleCloudCredentials,
+                                       "_project_id_",
+                                       "topic",
+                                       false,
+                                       PubsubTransport.GRPC,
+                                       PubsubPacking.NONE,
+                                       batchSettings,
+                                       asyncSettings,
+                                       publishSettings,
+                                       spoolSettings);
+
+      LogEvent event = buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO);
+      event.setEndOfBatch(true);
+      googleCloudPubsubManager.write(event);
+
+      assertEquals(1, fakePublisher.requests.size());
+      assertEquals("projects/_project_id_/topics/topic", fakePublisher.requests.get(0).getTopic());
+      assertEquals("LogMsg",
+                   fakePublisher.requests.get(0).getMessagesList().get(0).getData().toStringUtf8());
+
+      assertTrue(googleCloudPubsubManager.stop(1, TimeUnit.SECONDS));
+      assertTrue(channel.isShutdown());
+    } finally {
+      server.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testDropNewestDiscardsEventsAppendedToFullQueue() throws Exception {
+    final List<String> published = new CopyOnWriteArrayList<String>();
+    final CountDownLatch publishReleased = new CountDownLatch(1);
+    final GoogleCloudPubsubManager googleCloudPubsubManager =
+        fillQueueBehindBlockedPublish(OverflowPolicy.DROP_NEWEST, published, publishReleased);
+
+    googleCloudPubsubManager.write(buildLogEvent("LogMsg5", "2015-04-06T18:38:24.002Z", Level.INFO));
+    googleCloudPubsubManager.write(buildLogEvent("LogMsg6", "2015-04-06T18:38:24.002Z", Level.INFO));
+    assertEquals(2, googleCloudPubsubManager.getDroppedEvents(DropReason.QUEUE_FULL));
+
+    publishReleased.countDown();
+    assertTrue(googleCloudPubsubManager.stop(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("LogMsg0", "LogMsg1", "LogMsg2", "LogMsg3", "LogMsg4"), published);
+  }
+
+  @Test
+  public void testDropOldestEvictsQueuedEvents() throws Exception {
+    final List<String> published = new CopyOnWriteArrayList<String>();
+    final CountDownLatch publishReleased = new CountDownLatch(1);
+    final GoogleCloudPubsubManager googleCloudPubsubManager =
+        fillQueueBehindBlockedPublish(OverflowPolicy.DROP_OLDEST, published, publishReleased);
+
+    googleCloudPubsubManager.write(buildLogEvent("LogMsg5", "2015-04-06T18:38:24.002Z", Level.INFO));
+    googleCloudPubsubManager.write(buildLogEvent("LogMsg6", "2015-04-06T18:38:24.002Z", Level.INFO));
+    assertEquals(2, googleCloudPubsubManager.getDroppedEvents(DropReason.EVICTED));
+
+    publishReleased.countDown();
+    assertTrue(googleCloudPubsubManager.stop(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("LogMsg0", "LogMsg3", "LogMsg4", "LogMsg5", "LogMsg6"), published);
+  }
+
+  @Test
+  public void testDropByLevelKeepsRoomForSevereEvents() throws Exception {
+    final List<String> published = new CopyOnWriteArrayList<String>();
+    final CountDownLatch publishReleased = new CountDownLatch(1);
+    final GoogleCloudPubsubManager googleCloudPubsubManager =
+        fillQueueBehindBlockedPublish(OverflowPolicy.DROP_BY_LEVEL, published, publishReleased);
+
+    // The queue is full: less severe events are dropped, severe ones
+    // block for blockTimeoutMillis and are then dropped as well.
+    googleCloudPubsubManager.write(buildLogEvent("LogMsg5", "2015-04-06T18:38:24.002Z", Level.DEBUG));
+    googleCloudPubsubManager.write(buildLogEvent("LogMsg6", "2015-04-06T18:38:24.002Z", Level.ERROR));
+    assertEquals(1, googleCloudPubsubManager.getDroppedEvents(DropReason.LEVEL));
+    assertEquals(1, googleCloudPubsubManager.getDroppedEvents(DropReason.BLOCK_TIMEOUT));
+    assertEquals(2, googleCloudPubsubManager.getDroppedEvents());
+
+    publishReleased.countDown();
+    assertTrue(googleCloudPubsubManager.stop(5, TimeUnit.SECONDS));
+    assertEquals(5, published.size());
+  }
+
+  @Test
+  public void testDropByLevelDiscardsLessSevereEventsBeforeQueueIsFull() throws Exception {
+    batchSettings = BatchSettings.newBuilder()
+        .withMaxBatchMessages(1)
+        .withMaxLingerMillis(0)
+        .build();
+    asyncSettings = AsyncSettings.newBuilder()
+        .withAsync(true)
+        .withQueueCapacity(4)
+        .withOverflowPolicy(OverflowPolicy.DROP_BY_LEVEL)
+        .build();
+
+    final GoogleCloudPubsubManager googleCloudPubsubManager =
+        PowerMockito.spy(new GoogleCloudPubsubManager("name",
+                                                      httpTransport,
+                                                      googleCloudMetadata,
+                                                      googleCloudCredentials,
+                                                      "_project_id_",
+                                                      "topic",
+                                                      false,
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NONE,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
+    final CountDownLatch publishStarted = new CountDownLatch(1);
+    final CountDownLatch publishReleased = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        publishStarted.countDown();
+        publishReleased.await();
+        return null;
+      }
+    }).when(googleCloudPubsubManager).writeToGoogleCloudLogging(any(PublishRequestContent.class));
+
+    googleCloudPubsubManager.write(buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO));
+    assertTrue(publishStarted.await(5, TimeUnit.SECONDS));
+    for (int i = 0; i < 3; ++i) {
+      googleCloudPubsubManager.write(buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO));
+    }
+    // Three quarters full: INFO is dropped, the last slot is kept for WARN.
+    googleCloudPubsubManager.write(buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO));
+    googleCloudPubsubManager.write(buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.WARN));
+    assertEquals(1, googleCloudPubsubManager.getDroppedEvents(DropReason.LEVEL));
+
+    publishReleased.countDown();
+    assertTrue(googleCloudPubsubManager.stop(5, TimeUnit.SECONDS));
+    verify(googleCloudPubsubManager, times(5))
+        .writeToGoogleCloudLogging(any(PublishRequestContent.class));
+  }
+
+  /**
+   * Publishes LogMsg0 and blocks its publish until publishReleased, then
+   * fills the queue of four slots with LogMsg1 to LogMsg4.
+   */
+  private GoogleCloudPubsubManager fillQueueBehindBlockedPublish(final OverflowPolicy overflowPolicy,
+                                                                 final List<String> published,
+                                                                 final CountDownLatch publishReleased)
+      throws Exception {
+    batchSettings = BatchSettings.newBuilder()
+        .withMaxBatchMessages(1)
+        .withMaxLingerMillis(0)
+        .build();
+    asyncSettings = AsyncSettings.newBuilder()
+        .withAsync(true)
+        .withQueueCapacity(4)
+        .withOverflowPolicy(overflowPolicy)
+        .withBlockTimeoutMillis(50)
+        .build();
+
+    final GoogleCloudPubsubManager googleCloudPubsubManager =
+        PowerMockito.spy(new GoogleCloudPubsubManager("name",
+                                                      httpTransport,
+                                                      googleCloudMetadata,
+                                                      googleCloudCredentials,
+                                                      "_project_id_",
+                                                      "topic",
+                                                      false,
+                                                      PubsubTransport.HTTP,
+                                                      PubsubPacking.NONE,
+                                                      batchSettings,
+                                                      asyncSettings,
+                                                      publishSettings,
+                                                      spoolSettings));
+
+    final CountDownLatch publishStarted = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        final PublishRequestContent publishRequest =
+            (PublishRequestContent) invocation.getArguments()[0];
+        for (final byte[] message : publishRequest.getMessages()) {
+          published.add(new String(message, "UTF-8"));
+        }
+        publishStarted.countDown();
+        publishReleased.await();
+        return null;
+      }
+    }).when(googleCloudPubsubManager).writeToGoogleCloudLogging(any(PublishRequestContent.class));
+
+    googleCloudPubsubManager.write(buildLogEvent("LogMsg0", "2015-04-06T18:38:24.002Z", Level.WARN));
+    assertTrue(publishStarted.await(5, TimeUnit.SECONDS));
+    for (int i = 1; i <= 4; ++i) {
+      googleCloudPubsubManager.write(buildLogEvent("LogMsg" + i, "2015-04-06T18:38:24.002Z", Level.WARN));
+    }
+    return googleCloudPubsubManager;
   }
 
   private static Log4jLogEvent buildLogEvent(final String logMsg,
@@ -0,0 +1,176 @@
+package io.imaravic.log4j.pubsub;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PublishResponse;
+import com.google.pubsub.v1.PublisherGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GrpcPubsubPublisherTest {
+  private static final String TOPIC = "projects/project_id/topics/topic";
+
+  private FakePublisher fakePublisher;
+  private Server server;
+  private ManagedChannel channel;
+
+  @Before
+  public void setup() throws Exception {
+    final String serverName = InProcessServerBuilder.generateName();
+    fakePublisher = new FakePublisher();
+    server = InProcessServerBuilder.forName(serverName)
+        .directExecutor()
+        .addService(fakePublisher)
+        .build()
+        .start();
+    channel = InProcessChannelBuilder.forName(serverName)
+        .directExecutor()
+        .build();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    channel.shutdownNow();
+    server.shutdownNow();
+  }
+
+  @Test
+  public void testMessagesArePublishedAsProtobuf() throws Exception {
+    final GrpcPubsubPublisher publisher =
+        new GrpcPubsubPublisher(channel, null, TOPIC);
+
+    publisher.publish(Arrays.asList("LogMsg1".getBytes("UTF-8"), "LogMsg2".getBytes("UTF-8")), null);
+
+    assertEquals(1, fakePublisher.requests.size());
+    final PublishRequest request = fakePublisher.requests.get(0);
+    assertEquals(TOPIC, request.getTopic());
+    assertEquals(2, request.getMessagesCount());
+    assertEquals("LogMsg1", request.getMessagesList().get(0).getData().toStringUtf8());
+    assertEquals("LogMsg2", request.getMessagesList().get(1).getData().toStringUtf8());
+  }
+
+  @Test
+  public void testAttributesArePublished() throws Exception {
+    final GrpcPubsubPublisher publisher =
+        new GrpcPubsubPublisher(channel, null, TOPIC);
+
+    publisher.publish(Arrays.asList("LogMsg".getBytes("UTF-8")),
+                      Arrays.asList(Collections.singletonMap("codec", "ndjson")));
+
+    final Map<String, String> attributes =
+        fakePublisher.requests.get(0).getMessagesList().get(0).getAttributesMap();
+    assertEquals("ndjson", attributes.get("codec"));
+  }
+
+  @Test
+  public void testUnavailableIsReportedWithHttpStatus() throws Exception {
+    fakePublisher.failures.add(Status.UNAVAILABLE);
+    final GrpcPubsubPublisher publisher =
+        new GrpcPubsubPublisher(channel, null, TOPIC);
+
+    try {
+      publisher.publish(Arrays.asList("LogMsg".getBytes("UTF-8")), null);
+      fail();
+    } catch (final HttpResponseException e) {
+      assertEquals(503, e.getStatusCode());
+    }
+    assertEquals(1, fakePublisher.requests.size());
+  }
+
+  @Test
+  public void testAbortedIsReportedAsUnavailable() throws Exception {
+    fakePublisher.failures.add(Status.ABORTED);
+    final GrpcPubsubPublisher publisher =
+        new GrpcPubsubPublisher(channel, null, TOPIC);
+
+    try {
+      publisher.publish(Arrays.asList("LogMsg".getBytes("UTF-8")), null);
+      fail();
+    } catch (final HttpResponseException e) {
+      assertEquals(503, e.getStatusCode());
+    }
+  }
+
+  @Test
+  public void testCancelledIsReportedAsUnavailable() throws Exception {
+    fakePublisher.failures.add(Status.CANCELLED);
+    final GrpcPubsubPublisher publisher =
+        new GrpcPubsubPublisher(channel, null, TOPIC);
+
+    try {
+      publisher.publish(Arrays.asList("LogMsg".getBytes("UTF-8")), null);
+      fail();
+    } catch (final HttpResponseException e) {
+      assertEquals(503, e.getStatusCode());
+    }
+  }
+
+  @Test
+  public void testNonRetryableFailureIsReportedWithHttpStatus() throws Exception {
+    fakePublisher.failures.add(Status.INVALID_ARGUMENT.withDescription("bad message"));
+    final GrpcPubsubPublisher publisher =
+        new GrpcPubsubPublisher(channel, null, TOPIC);
+
+    try {
+      publisher.publish(Arrays.asList("LogMsg".getBytes("UTF-8")), null);
+      fail();
+    } catch (final HttpResponseException e) {
+      assertEquals(400, e.getStatusCode());
+    }
+    assertEquals(1, fakePublisher.requests.size());
+  }
+
+  @Test
+  public void testClosingShutsDownChannel() throws Exception {
+    final GrpcPubsubPublisher publisher =
+        new GrpcPubsubPublisher(channel, null, TOPIC);
+
+    assertTrue(publisher.close(1, TimeUnit.SECONDS));
+    assertTrue(channel.isShutdown());
+  }
+
+  /**
+   * Records publish requests, failing them with queued statuses first.
+   */
+  static class FakePublisher extends PublisherGrpc.PublisherImplBase {
+    final List<PublishRequest> requests = new CopyOnWriteArrayList<PublishRequest>();
+    final Queue<Status> failures = new ConcurrentLinkedQueue<Status>();
+
+    @Override
+    public void publish(final PublishRequest request,
+                        final StreamObserver<PublishResponse> responseObserver) {
+      requests.add(request);
+      final Status failure = failures.poll();
+      if (failure != null) {
+        responseObserver.onError(failure.asRuntimeException());
+        return;
+      }
+      final PublishResponse.Builder response = PublishResponse.newBuilder();
+      for (int i = 0; i < request.getMessagesCount(); ++i) {
+        response.addMessageIds(String.valueOf(i));
+      }
+      responseObserver.onNext(response.build());
+      responseObserver.onCompleted();
+    }
+  }
+}
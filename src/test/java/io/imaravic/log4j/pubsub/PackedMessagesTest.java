@@ -0,0 +1,121 @@
+package io.imaravic.log4j.pubsub;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class PackedMessagesTest {
+  private static final List<byte[]> EVENTS = Arrays.asList(
+      bytes("LogMsg"),
+      bytes(""),
+      bytes("Multi\nline \"quoted\" \\ tab\t ctrl\u0001 unicode ž€"),
+      bytes("LogMsg"));
+
+  @Test
+  public void testLengthPrefixedRoundTrip() throws Exception {
+    assertRoundTrip(PubsubPacking.LENGTH_PREFIXED, EVENTS);
+    assertRoundTrip(PubsubPacking.LENGTH_PREFIXED,
+                    Arrays.asList(new byte[] {(byte) 0xff, 0, (byte) 0x80, '\n'}));
+  }
+
+  @Test
+  public void testNdjsonRoundTrip() throws Exception {
+    assertRoundTrip(PubsubPacking.NDJSON, EVENTS);
+  }
+
+  @Test
+  public void testNdjsonIsOneJsonStringPerLine() throws Exception {
+    final List<byte[]> messages = new ArrayList<byte[]>();
+    PackedMessages.pack(PubsubPacking.NDJSON,
+                        Arrays.asList(bytes("a\"b"), bytes("c\nd")),
+                        messages,
+                        new ArrayList<Map<String, String>>());
+
+    assertEquals("\"a\\\"b\"\n\"c\\nd\"\n", new String(messages.get(0), "UTF-8"));
+  }
+
+  @Test
+  public void testLargeBatchesAreSplitIntoSeveralMessages() throws Exception {
+    final byte[] event = new byte[PackedMessages.MAX_PACKED_MESSAGE_BYTES / 3];
+    final List<byte[]> events = Arrays.asList(event, event, event, event, event);
+    final List<byte[]> messages = new ArrayList<byte[]>();
+    final List<Map<String, String>> attributes = new ArrayList<Map<String, String>>();
+
+    PackedMessages.pack(PubsubPacking.LENGTH_PREFIXED, events, messages, attributes);
+
+    assertEquals(3, messages.size());
+    assertEquals("2", attributes.get(0).get(PackedMessages.COUNT_ATTRIBUTE));
+    assertEquals("2", attributes.get(1).get(PackedMessages.COUNT_ATTRIBUTE));
+    assertEquals("1", attributes.get(2).get(PackedMessages.COUNT_ATTRIBUTE));
+    for (int i = 0; i < messages.size(); ++i) {
+      PackedMessages.unpack(attributes.get(i), messages.get(i));
+    }
+  }
+
+  @Test
+  public void testMessagesWithoutCodecAreSingleEvents() throws Exception {
+    final byte[] data = bytes("LogMsg");
+
+    assertSame(data, PackedMessages.unpack(null, data).get(0));
+    assertEquals(1, PackedMessages.unpack(new HashMap<String, String>(), data).size());
+  }
+
+  @Test
+  public void testMalformedMessagesAreRejected() throws Exception {
+    final List<byte[]> messages = new ArrayList<byte[]>();
+    final List<Map<String, String>> attributes = new ArrayList<Map<String, String>>();
+    PackedMessages.pack(PubsubPacking.LENGTH_PREFIXED, EVENTS, messages, attributes);
+
+    assertUnpackFails(attributes.get(0), Arrays.copyOf(messages.get(0), messages.get(0).length - 1));
+
+    attributes.get(0).put(PackedMessages.COUNT_ATTRIBUTE, "5");
+    assertUnpackFails(attributes.get(0), messages.get(0));
+
+    attributes.get(0).put(PackedMessages.CODEC_ATTRIBUTE, "zip");
+    assertUnpackFails(attributes.get(0), messages.get(0));
+  }
+
+  private static void assertRoundTrip(final PubsubPacking packing,
+                                      final List<byte[]> events) throws Exception {
+    final List<byte[]> messages = new ArrayList<byte[]>();
+    final List<Map<String, String>> attributes = new ArrayList<Map<String, String>>();
+
+    PackedMessages.pack(packing, events, messages, attributes);
+
+    assertEquals(1, messages.size());
+    assertEquals(packing.getCodec(), attributes.get(0).get(PackedMessages.CODEC_ATTRIBUTE));
+    assertEquals(String.valueOf(events.size()),
+                 attributes.get(0).get(PackedMessages.COUNT_ATTRIBUTE));
+    final List<byte[]> unpacked = PackedMessages.unpack(attributes.get(0), messages.get(0));
+    assertEquals(events.size(), unpacked.size());
+    for (int i = 0; i < events.size(); ++i) {
+      assertArrayEquals(events.get(i), unpacked.get(i));
+    }
+  }
+
+  private static void assertUnpackFails(final Map<String, String> attributes, final byte[] data) {
+    try {
+      PackedMessages.unpack(attributes, data);
+      fail();
+    } catch (final IOException expected) {
+    }
+  }
+
+  private static byte[] bytes(final String value) {
+    try {
+      return value.getBytes("UTF-8");
+    } catch (final IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package io.imaravic.log4j.pubsub;
+
+import com.google.api.client.util.Base64;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PublishRequestContentTest {
+  @Test
+  public void testBodyIsPublishRequestJson() throws Exception {
+    final PublishRequestContent content =
+        new PublishRequestContent(Arrays.asList("LogMsg1".getBytes("UTF-8"),
+                                                "LogMsg2".getBytes("UTF-8")));
+
+    assertEquals("{\"messages\":[" +
+                 "{\"data\":\"" + Base64.encodeBase64String("LogMsg1".getBytes("UTF-8")) + "\"}," +
+                 "{\"data\":\"" + Base64.encodeBase64String("LogMsg2".getBytes("UTF-8")) + "\"}" +
+                 "]}",
+                 writeToString(content));
+    assertEquals("application/json; charset=UTF-8", content.getType());
+    assertTrue(content.retrySupported());
+  }
+
+  @Test
+  public void testAttributesAreRendered() throws Exception {
+    final List<Map<String, String>> attributes = new ArrayList<Map<String, String>>();
+    attributes.add(Collections.singletonMap("codec", "ndjson"));
+    attributes.add(null);
+    final PublishRequestContent content =
+        new PublishRequestContent(Arrays.asList("LogMsg1".getBytes("UTF-8"),
+                                                "LogMsg2".getBytes("UTF-8")),
+                                  attributes);
+
+    final String body = writeToString(content);
+    assertEquals("{\"messages\":[" +
+                 "{\"data\":\"" + Base64.encodeBase64String("LogMsg1".getBytes("UTF-8")) +
+                 "\",\"attributes\":{\"codec\":\"ndjson\"}}," +
+                 "{\"data\":\"" + Base64.encodeBase64String("LogMsg2".getBytes("UTF-8")) + "\"}" +
+                 "]}",
+                 body);
+    assertEquals(content.getLength(), body.length());
+  }
+
+  @Test
+  public void testEmptyBatch() throws Exception {
+    final PublishRequestContent content =
+        new PublishRequestContent(Collections.<byte[]>emptyList());
+
+    assertEquals("{\"messages\":[]}", writeToString(content));
+    assertEquals(content.getLength(), writeToString(content).length());
+  }
+
+  @Test
+  public void testBase64MatchesForEveryPadding() throws Exception {
+    final Random random = new Random(42);
+    for (int size = 0; size < 10; ++size) {
+      final byte[] data = new byte[size];
+      random.nextBytes(data);
+      final PublishRequestContent content = new PublishRequestContent(Arrays.asList(data));
+
+      final String body = writeToString(content);
+      assertEquals(content.getLength(), body.length());
+      final String encoded = body.substring("{\"messages\":[{\"data\":\"".length(),
+                                            body.length() - "\"}]}".length());
+      assertEquals(Base64.encodeBase64String(data), encoded);
+    }
+  }
+
+  @Test
+  public void testMessagesLargerThanTheBufferAreStreamedInChunks() throws Exception {
+    final Random random = new Random(42);
+    final List<byte[]> messages = new ArrayList<byte[]>();
+    for (int i = 0; i < 5; ++i) {
+      final byte[] data = new byte[20000 + i];
+      random.nextBytes(data);
+      messages.add(data);
+    }
+    final PublishRequestContent content = new PublishRequestContent(messages);
+
+    final String body = writeToString(content);
+    assertEquals(content.getLength(), body.length());
+    final String[] encoded = body.substring("{\"messages\":[".length(), body.length() - "]}".length())
+        .split(",");
+    assertEquals(messages.size(), encoded.length);
+    for (int i = 0; i < messages.size(); ++i) {
+      final String data = encoded[i].substring("{\"data\":\"".length(),
+                                               encoded[i].length() - "\"}".length());
+      assertArrayEquals(messages.get(i), Base64.decodeBase64(data));
+    }
+  }
+
+  @Test
+  public void testBodyCanBeWrittenAgainForRetries() throws Exception {
+    final PublishRequestContent content =
+        new PublishRequestContent(Arrays.asList("LogMsg".getBytes("UTF-8")));
+
+    assertEquals(writeToString(content), writeToString(content));
+  }
+
+  private static String writeToString(final PublishRequestContent content) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    content.writeTo(out);
+    return out.toString("US-ASCII");
+  }
+}
@@ -1,6 +1,11 @@
 package io.imaravic.log4j.stackdriver;
 
+import io.imaravic.log4j.util.AsyncSettings;
+import io.imaravic.log4j.util.BatchSettings;
 import io.imaravic.log4j.util.GoogleCloudCredentials;
+import io.imaravic.log4j.util.PublishSettings;
+import io.imaravic.log4j.util.SpoolSettings;
+import io.imaravic.log4j.util.TransportSettings;
 import org.apache.logging.log4j.core.LogEvent;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -8,6 +13,8 @@ import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import java.util.Map;
+
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.mock;
@@ -35,7 +42,13 @@ public class GoogleCloudStackdriverAppenderTest {
         any(GoogleCloudCredentials.class),
         anyString(),
         anyString(),
-        anyInt())).thenReturn(googleCloudStackdriverManager);
+        any(Map.class),
+        any(StackdriverPayload.class),
+        any(BatchSettings.class),
+        any(AsyncSettings.class),
+        any(PublishSettings.class),
+        any(SpoolSettings.class),
+        any(TransportSettings.class))).thenReturn(googleCloudStackdriverManager);
     
     final GoogleCloudStackdriverAppender appender = GoogleCloudStackdriverAppender.newBuilder().build();
     
@@ -52,7 +65,13 @@ public class GoogleCloudStackdriverAppenderTest {
         any(GoogleCloudCredentials.class),
         anyString(),
         anyString(),
-        anyInt())).thenThrow(new RuntimeException("TEST"));
+        any(Map.class),
+        any(StackdriverPayload.class),
+        any(BatchSettings.class),
+        any(AsyncSettings.class),
+        any(PublishSettings.class),
+        any(SpoolSettings.class),
+        any(TransportSettings.class))).thenThrow(new RuntimeException("TEST"));
     
     final GoogleCloudStackdriverAppender appender = GoogleCloudStackdriverAppender.newBuilder().build();
     assertEquals(null, appender);
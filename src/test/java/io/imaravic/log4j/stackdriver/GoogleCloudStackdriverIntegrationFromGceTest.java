@@ -1,6 +1,11 @@
 package io.imaravic.log4j.stackdriver;
 
+import io.imaravic.log4j.util.AsyncSettings;
+import io.imaravic.log4j.util.BatchSettings;
 import io.imaravic.log4j.util.GoogleCloudCredentials;
+import io.imaravic.log4j.util.PublishSettings;
+import io.imaravic.log4j.util.SpoolSettings;
+import io.imaravic.log4j.util.TransportSettings;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -11,6 +16,10 @@ import org.powermock.modules.junit4.PowerMockRunner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.mock;
@@ -32,7 +41,13 @@ public class GoogleCloudStackdriverIntegrationFromGceTest {
                                              any(GoogleCloudCredentials.class),
                                              anyString(),
                                              anyString(),
-                                             anyInt())).thenReturn(googleCloudStackdriverManager);
+                                             any(Map.class),
+                                             any(StackdriverPayload.class),
+                                             any(BatchSettings.class),
+                                             any(AsyncSettings.class),
+                                             any(PublishSettings.class),
+                                             any(SpoolSettings.class),
+                                             any(TransportSettings.class))).thenReturn(googleCloudStackdriverManager);
   }
 
   @Test
@@ -41,13 +56,21 @@ public class GoogleCloudStackdriverIntegrationFromGceTest {
     
     ArgumentCaptor<GoogleCloudCredentials> credentialsCaptor =
         ArgumentCaptor.forClass(GoogleCloudCredentials.class);
+    ArgumentCaptor<Map> labelsCaptor = ArgumentCaptor.forClass(Map.class);
 
     verifyStatic();
     GoogleCloudStackdriverManager.getManager(eq("gcloud_stack_logging_from_gce"),
                                         credentialsCaptor.capture(),
                                         anyString(),
                                         anyString(),
-                                        anyInt());
+                                        labelsCaptor.capture(),
+                                        eq(StackdriverPayload.JSON),
+                                        any(BatchSettings.class),
+                                        any(AsyncSettings.class),
+                                        any(PublishSettings.class),
+                                        any(SpoolSettings.class),
+                                        any(TransportSettings.class));
     assertTrue(credentialsCaptor.getValue().usingComputeCredentials());
+    assertEquals(Collections.singletonMap("env", "test"), labelsCaptor.getValue());
   }
 }
@@ -1,7 +1,13 @@
 package io.imaravic.log4j.stackdriver;
 
 import io.imaravic.log4j.pubsub.GoogleCloudPubsubManager;
+import io.imaravic.log4j.util.AsyncSettings;
+import io.imaravic.log4j.util.BatchSettings;
 import io.imaravic.log4j.util.GoogleCloudCredentials;
+import io.imaravic.log4j.util.NetHttpTransportFactory;
+import io.imaravic.log4j.util.PublishSettings;
+import io.imaravic.log4j.util.SpoolSettings;
+import io.imaravic.log4j.util.TransportSettings;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -11,8 +17,11 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.slf4j.LoggerFactory;
 
+import java.util.Map;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -31,7 +40,13 @@ public class GoogleCloudStackdriverIntegrationNotFromGceTest {
                                              any(GoogleCloudCredentials.class),
                                              anyString(),
                                              anyString(),
-                                             anyInt())).thenReturn(googleCloudStackdriverManager);
+                                             any(Map.class),
+                                             any(StackdriverPayload.class),
+                                             any(BatchSettings.class),
+                                             any(AsyncSettings.class),
+                                             any(PublishSettings.class),
+                                             any(SpoolSettings.class),
+                                             any(TransportSettings.class))).thenReturn(googleCloudStackdriverManager);
   }
 
   @Test
@@ -39,13 +54,22 @@ public class GoogleCloudStackdriverIntegrationNotFromGceTest {
     LoggerFactory.getLogger("gcloud_stack_logging_not_from_gce");
     ArgumentCaptor<GoogleCloudCredentials> credentialsCaptor =
         ArgumentCaptor.forClass(GoogleCloudCredentials.class);
+    ArgumentCaptor<TransportSettings> transportSettingsCaptor =
+        ArgumentCaptor.forClass(TransportSettings.class);
 
     verifyStatic();
     GoogleCloudStackdriverManager.getManager(eq("gcloud_stack_logging_not_from_gce"),
                                         credentialsCaptor.capture(),
                                         anyString(),
                                         anyString(),
-                                        anyInt());
+                                        any(Map.class),
+                                        any(StackdriverPayload.class),
+                                        any(BatchSettings.class),
+                                        any(AsyncSettings.class),
+                                        any(PublishSettings.class),
+                                        any(SpoolSettings.class),
+                                        transportSettingsCaptor.capture());
+    assertTrue(transportSettingsCaptor.getValue().getTransportFactory() instanceof NetHttpTransportFactory);
     assertFalse(credentialsCaptor.getValue().usingComputeCredentials());
     assertEquals("service2Id@developer.gserviceaccount.com",
                  credentialsCaptor.getValue().getServiceAccountId());
@@ -1,19 +1,33 @@
 package io.imaravic.log4j.stackdriver;
 
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.util.DateTime;
 import com.google.api.services.logging.v2.Logging;
 import com.google.api.services.logging.v2.model.LogEntry;
 import com.google.api.services.logging.v2.model.WriteLogEntriesRequest;
+import io.imaravic.log4j.util.AsyncSettings;
+import io.imaravic.log4j.util.BatchSettings;
+import io.imaravic.log4j.util.DropReason;
 import io.imaravic.log4j.util.GoogleCloudCredentials;
+import io.imaravic.log4j.util.GoogleCloudMetadata;
+import io.imaravic.log4j.util.PublishSettings;
+import io.imaravic.log4j.util.SpoolSettings;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.impl.ContextDataFactory;
 import org.apache.logging.log4j.core.impl.Log4jLogEvent;
 import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.ParameterizedMessage;
 import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.StringMap;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
@@ -23,11 +37,17 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.*;
 
 
@@ -41,6 +61,9 @@ import static org.mockito.Mockito.*;
 @PrepareForTest({GoogleCloudStackdriverManager.class})
 @PowerMockIgnore({"javax.management.*", "javax.crypto.*"})
 public class GoogleCloudStackdriverManagerTest {
+  @Rule
+  public TemporaryFolder spoolFolder = new TemporaryFolder();
+
   @Mock
   HttpTransport httpTransport;
 
@@ -50,6 +73,14 @@ public class GoogleCloudStackdriverManagerTest {
   @Mock
   Logging stackdriverLoggingClient;
 
+  BatchSettings batchSettings = BatchSettings.newBuilder()
+      .withMaxLingerMillis(0)
+      .build();
+
+  AsyncSettings asyncSettings = AsyncSettings.newBuilder().build();
+  PublishSettings publishSettings = PublishSettings.newBuilder().build();
+  SpoolSettings spoolSettings = SpoolSettings.newBuilder().build();
+
   @Before
   public void setup() throws Exception {
     PowerMockito.spy(GoogleCloudStackdriverManager.class);
@@ -57,9 +88,7 @@ public class GoogleCloudStackdriverManagerTest {
     PowerMockito.doReturn(stackdriverLoggingClient).when(GoogleCloudStackdriverManager.class,
         "createStackdriverLoggingClient",
         any(HttpTransport.class),
-        any(GoogleCloudCredentials.class),
-//        anyString(),anyString(),
-        anyInt());
+        any(Credential.class));
 //    PowerMockito.doReturn("THIS WAS INTERCEPTED yay").when(GoogleCloudStackdriverManager.class,
 //      "testInterception");
     
@@ -79,8 +108,14 @@ public class GoogleCloudStackdriverManagerTest {
             httpTransport,
             googleCloudCredentials,
             "gce",
+            null,
             "projects/[PROJECT_ID]/logs/[LOG_ID]",
-            1));
+            null,
+            StackdriverPayload.TEXT,
+            batchSettings,
+            asyncSettings,
+            publishSettings,
+            spoolSettings));
 
     doNothing().when(googleCloudStackdriverManager)
         .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
@@ -100,6 +135,137 @@ public class GoogleCloudStackdriverManagerTest {
     assertEquals("The messages should be equal", "LogMsg\n", entries.get(0).getTextPayload());
   }
 
+  @Test
+  public void testJsonPayloadIsBuiltFromEvent() throws Exception {
+    GoogleCloudStackdriverManager googleCloudStackdriverManager =
+        PowerMockito.spy(new GoogleCloudStackdriverManager("name",
+            httpTransport,
+            googleCloudCredentials,
+            "gce",
+            null,
+            "projects/[PROJECT_ID]/logs/[LOG_ID]",
+            null,
+            StackdriverPayload.JSON,
+            batchSettings,
+            asyncSettings,
+            publishSettings,
+            spoolSettings));
+
+    doNothing().when(googleCloudStackdriverManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    final StringMap contextData = ContextDataFactory.createContextData();
+    contextData.putValue("requestId", "42");
+    LogEvent event = Log4jLogEvent.newBuilder().setLoggerName("loggerName")
+        .setLevel(Level.WARN)
+        .setMessage(new ParameterizedMessage("User {} took {} ms", "bob", 42))
+        .setThreadName("worker-1")
+        .setThrown(new IllegalStateException("boom"))
+        .setContextData(contextData)
+        .setEndOfBatch(true)
+        .build();
+
+    googleCloudStackdriverManager.write(event, PatternLayout.newBuilder()
+        .withPattern("%m")
+        .withAlwaysWriteExceptions(false)
+        .build());
+
+    ArgumentCaptor<WriteLogEntriesRequest> writeLogEntriesRequestArgumentCaptor =
+        ArgumentCaptor.forClass(WriteLogEntriesRequest.class);
+    verify(googleCloudStackdriverManager).writeToGoogleCloudLogging(writeLogEntriesRequestArgumentCaptor.capture());
+
+    final LogEntry entry = writeLogEntriesRequestArgumentCaptor.getValue().getEntries().get(0);
+    final Map<String, Object> jsonPayload = entry.getJsonPayload();
+    assertNull(entry.getTextPayload());
+    assertEquals("WARNING", entry.getSeverity());
+    assertEquals("User bob took 42 ms", jsonPayload.get(GoogleCloudStackdriverManager.MESSAGE_FIELD));
+    assertEquals("loggerName", jsonPayload.get(GoogleCloudStackdriverManager.LOGGER_FIELD));
+    assertEquals("worker-1", jsonPayload.get(GoogleCloudStackdriverManager.THREAD_FIELD));
+    assertTrue(((String) jsonPayload.get(GoogleCloudStackdriverManager.EXCEPTION_FIELD))
+                   .startsWith("java.lang.IllegalStateException: boom"));
+    assertEquals(Collections.singletonMap("requestId", "42"),
+                 jsonPayload.get(GoogleCloudStackdriverManager.CONTEXT_FIELD));
+    assertEquals(Arrays.<Object>asList("bob", 42),
+                 jsonPayload.get(GoogleCloudStackdriverManager.PARAMETERS_FIELD));
+  }
+
+  @Test
+  public void testRequestsShareResourceLogNameAndLabels() throws Exception {
+    GoogleCloudStackdriverManager googleCloudStackdriverManager =
+        PowerMockito.spy(new GoogleCloudStackdriverManager("name",
+            httpTransport,
+            googleCloudCredentials,
+            "gce",
+            null,
+            "projects/[PROJECT_ID]/logs/[LOG_ID]",
+            Collections.singletonMap("env", "prod"),
+            StackdriverPayload.TEXT,
+            batchSettings,
+            asyncSettings,
+            publishSettings,
+            spoolSettings));
+
+    doNothing().when(googleCloudStackdriverManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    for (int i = 0; i < 2; ++i) {
+      LogEvent event = buildLogEvent("LogMsg", "2015-04-06T18:38:24.000Z", Level.INFO);
+      event.setEndOfBatch(true);
+      googleCloudStackdriverManager.write(event, PatternLayout.createDefaultLayout());
+    }
+
+    ArgumentCaptor<WriteLogEntriesRequest> writeLogEntriesRequestArgumentCaptor =
+        ArgumentCaptor.forClass(WriteLogEntriesRequest.class);
+    verify(googleCloudStackdriverManager, times(2))
+        .writeToGoogleCloudLogging(writeLogEntriesRequestArgumentCaptor.capture());
+
+    final WriteLogEntriesRequest first = writeLogEntriesRequestArgumentCaptor.getAllValues().get(0);
+    final WriteLogEntriesRequest second = writeLogEntriesRequestArgumentCaptor.getAllValues().get(1);
+    assertEquals("gce", first.getResource().getType());
+    assertEquals("projects/[PROJECT_ID]/logs/[LOG_ID]", first.getLogName());
+    assertEquals(Collections.singletonMap("env", "prod"), first.getLabels());
+    assertSame(first.getResource(), second.getResource());
+    assertSame(first.getLabels(), second.getLabels());
+
+    final LogEntry entry = first.getEntries().get(0);
+    assertNull(entry.getResource());
+    assertNull(entry.getLogName());
+    assertNull(entry.getLabels());
+  }
+
+  @Test
+  public void testSeverityOfStandardAndCustomLevels() {
+    assertEquals("DEBUG", GoogleCloudStackdriverManager.toSeverity(Level.ALL));
+    assertEquals("DEBUG", GoogleCloudStackdriverManager.toSeverity(Level.TRACE));
+    assertEquals("DEBUG", GoogleCloudStackdriverManager.toSeverity(Level.DEBUG));
+    assertEquals("INFO", GoogleCloudStackdriverManager.toSeverity(Level.INFO));
+    assertEquals("WARNING", GoogleCloudStackdriverManager.toSeverity(Level.WARN));
+    assertEquals("ERROR", GoogleCloudStackdriverManager.toSeverity(Level.ERROR));
+    assertEquals("CRITICAL", GoogleCloudStackdriverManager.toSeverity(Level.FATAL));
+    assertEquals("CRITICAL", GoogleCloudStackdriverManager.toSeverity(Level.OFF));
+    assertEquals("INFO", GoogleCloudStackdriverManager.toSeverity(Level.forName("DETAIL", 450)));
+    assertEquals("WARNING", GoogleCloudStackdriverManager.toSeverity(Level.forName("NOTICE", 350)));
+    assertEquals("CRITICAL", GoogleCloudStackdriverManager.toSeverity(Level.forName("ALERT", 150)));
+  }
+
+  @Test
+  public void testResourceLabelsComeFromMetadata() {
+    final GoogleCloudMetadata metadata = mock(GoogleCloudMetadata.class);
+    when(metadata.getIfPresent(GoogleCloudMetadata.PROJECT_ID)).thenReturn("project_id");
+    when(metadata.getIfPresent(GoogleCloudMetadata.INSTANCE_ID)).thenReturn("1234");
+    when(metadata.getIfPresent(GoogleCloudMetadata.ZONE)).thenReturn("projects/123/zones/europe-west1-b");
+    when(metadata.getIfPresent(GoogleCloudMetadata.CLUSTER_NAME)).thenReturn("cluster");
+
+    final Map<String, String> gce = GoogleCloudStackdriverManager.getResourceLabels("gce_instance", metadata);
+    assertEquals(3, gce.size());
+    assertEquals("project_id", gce.get("project_id"));
+    assertEquals("1234", gce.get("instance_id"));
+    assertEquals("europe-west1-b", gce.get("zone"));
+    assertEquals("cluster",
+                 GoogleCloudStackdriverManager.getResourceLabels("gke_container", metadata).get("cluster_name"));
+    assertTrue(GoogleCloudStackdriverManager.getResourceLabels("global", metadata).isEmpty());
+  }
+
   @Test
   public void testBatchingFromManager() throws Exception {
 
@@ -108,8 +274,14 @@ public class GoogleCloudStackdriverManagerTest {
             httpTransport,
             googleCloudCredentials,
             "gce",
+            null,
             "projects/[PROJECT_ID]/logs/[LOG_ID]",
-            1));
+            null,
+            StackdriverPayload.TEXT,
+            batchSettings,
+            asyncSettings,
+            publishSettings,
+            spoolSettings));
 
 
     doNothing().when(googleCloudStackdriverManager)
@@ -139,13 +311,23 @@ public class GoogleCloudStackdriverManagerTest {
 
   @Test(expected = AppenderLoggingException.class)
   public void testExceptionIsThrownOnExceptionFromLoggingClient() throws Exception {
+    publishSettings = PublishSettings.newBuilder()
+        .withMaxRetryTimeMillis(0)
+        .build();
+
     GoogleCloudStackdriverManager googleCloudStackdriverManager =
         PowerMockito.spy(new GoogleCloudStackdriverManager("name",
             httpTransport,
             googleCloudCredentials,
             "gce",
+            null,
             "projects/[PROJECT_ID]/logs/[LOG_ID]",
-            1));
+            null,
+            StackdriverPayload.TEXT,
+            batchSettings,
+            asyncSettings,
+            publishSettings,
+            spoolSettings));
   
   
     doThrow(new IOException("TEST")).when(googleCloudStackdriverManager)
@@ -157,6 +339,122 @@ public class GoogleCloudStackdriverManagerTest {
     googleCloudStackdriverManager.write(event, PatternLayout.createDefaultLayout());
   }
 
+  @Test
+  public void testOnlyFailedEntriesAreSpooledAfterPartialSuccess() throws Exception {
+    spoolSettings = SpoolSettings.newBuilder()
+        .withDirectory(spoolFolder.getRoot().getPath())
+        .build();
+
+    GoogleCloudStackdriverManager googleCloudStackdriverManager =
+        PowerMockito.spy(new GoogleCloudStackdriverManager("name",
+            httpTransport,
+            googleCloudCredentials,
+            "gce",
+            null,
+            "projects/[PROJECT_ID]/logs/[LOG_ID]",
+            null,
+            StackdriverPayload.TEXT,
+            batchSettings,
+            asyncSettings,
+            publishSettings,
+            spoolSettings));
+
+    // The first entry is invalid and the third one was throttled.
+    doThrow(new HttpResponseException.Builder(400, "Bad Request", new HttpHeaders())
+                .setContent(partialErrors("\"0\":{\"code\":3,\"message\":\"Log entry too large\"}," +
+                                          "\"2\":{\"code\":14,\"message\":\"Unavailable\"}"))
+                .build())
+        .doNothing()
+        .when(googleCloudStackdriverManager).writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    for (int i = 0; i < 3; ++i) {
+      LogEvent event = buildLogEvent("LogMsg" + i, "2015-04-06T18:38:24.000Z", Level.INFO);
+      event.setEndOfBatch(i == 2);
+      // Does not throw, the failed entry goes to the spool.
+      googleCloudStackdriverManager.write(event, PatternLayout.createDefaultLayout());
+    }
+
+    ArgumentCaptor<WriteLogEntriesRequest> writeLogEntriesRequestArgumentCaptor =
+        ArgumentCaptor.forClass(WriteLogEntriesRequest.class);
+    verify(googleCloudStackdriverManager, timeout(5000).times(2))
+        .writeToGoogleCloudLogging(writeLogEntriesRequestArgumentCaptor.capture());
+
+    final WriteLogEntriesRequest written = writeLogEntriesRequestArgumentCaptor.getAllValues().get(0);
+    assertEquals(Boolean.TRUE, written.getPartialSuccess());
+    assertEquals(3, written.getEntries().size());
+    final List<LogEntry> replayed = writeLogEntriesRequestArgumentCaptor.getAllValues().get(1).getEntries();
+    assertEquals(1, replayed.size());
+    assertEquals("LogMsg2\n", replayed.get(0).getTextPayload());
+    assertEquals(1, googleCloudStackdriverManager.getDroppedEvents(DropReason.REJECTED));
+
+    assertTrue(googleCloudStackdriverManager.stop(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testRejectedEntriesAreNotCountedAsPublished() throws Exception {
+    spoolSettings = SpoolSettings.newBuilder()
+        .withDirectory(spoolFolder.getRoot().getPath())
+        .build();
+
+    GoogleCloudStackdriverManager googleCloudStackdriverManager =
+        PowerMockito.spy(new GoogleCloudStackdriverManager("name",
+            httpTransport,
+            googleCloudCredentials,
+            "gce",
+            null,
+            "projects/[PROJECT_ID]/logs/[LOG_ID]",
+            null,
+            StackdriverPayload.TEXT,
+            batchSettings,
+            asyncSettings,
+            publishSettings,
+            spoolSettings));
+
+    doThrow(new HttpResponseException.Builder(400, "Bad Request", new HttpHeaders())
+                .setContent(partialErrors("\"0\":{\"code\":3,\"message\":\"Invalid label\"}," +
+                                          "\"1\":{\"code\":3,\"message\":\"Invalid label\"}"))
+                .build())
+        .when(googleCloudStackdriverManager).writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    for (int i = 0; i < 2; ++i) {
+      LogEvent event = buildLogEvent("LogMsg" + i, "2015-04-06T18:38:24.000Z", Level.INFO);
+      event.setEndOfBatch(i == 1);
+      googleCloudStackdriverManager.write(event, PatternLayout.createDefaultLayout());
+    }
+
+    verify(googleCloudStackdriverManager, timeout(5000))
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+    assertTrue(googleCloudStackdriverManager.stop(5, TimeUnit.SECONDS));
+
+    // Nothing was spooled, so nothing is sent again.
+    verify(googleCloudStackdriverManager, times(1))
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+    assertEquals(2, googleCloudStackdriverManager.getDroppedEvents(DropReason.REJECTED));
+    assertEquals(0, googleCloudStackdriverManager.getMetrics().getEventsPublished());
+  }
+
+  @Test
+  public void testEntryErrorsAreParsed() {
+    final Map<Integer, GoogleCloudStackdriverManager.EntryError> entryErrors =
+        GoogleCloudStackdriverManager.parseEntryErrors(
+            partialErrors("\"1\":{\"code\":3,\"message\":\"Invalid label\"},\"7\":{}"));
+    assertEquals(2, entryErrors.size());
+    assertEquals(3, entryErrors.get(1).getCode());
+    assertEquals("Invalid label", entryErrors.get(1).getMessage());
+    assertEquals(2, entryErrors.get(7).getCode());
+
+    assertTrue(GoogleCloudStackdriverManager.parseEntryErrors(null).isEmpty());
+    assertTrue(GoogleCloudStackdriverManager.parseEntryErrors("Bad Request").isEmpty());
+    assertTrue(GoogleCloudStackdriverManager.parseEntryErrors(
+        "{\"error\":{\"code\":400,\"message\":\"Invalid log name\"}}").isEmpty());
+  }
+
+  private static String partialErrors(final String logEntryErrors) {
+    return "{\"error\":{\"code\":400,\"message\":\"Log entry too large\",\"details\":[" +
+        "{\"@type\":\"type.googleapis.com/google.logging.v2.WriteLogEntriesPartialErrors\"," +
+        "\"logEntryErrors\":{" + logEntryErrors + "}}]}}";
+  }
+
   @Test
   public void testBootstrappingManagerNotFromGCE() throws Exception {
     when(googleCloudCredentials.usingComputeCredentials())
@@ -169,8 +467,14 @@ public class GoogleCloudStackdriverManagerTest {
             httpTransport,
             googleCloudCredentials,
             "gce",
+            null,
             "projects/[PROJECT_ID]/logs/[LOG_ID]",
-            1));
+            null,
+            StackdriverPayload.TEXT,
+            batchSettings,
+            asyncSettings,
+            publishSettings,
+            spoolSettings));
   
   
     doNothing().when(googleCloudStackdriverManager)
@@ -191,6 +495,44 @@ public class GoogleCloudStackdriverManagerTest {
     assertEquals("LogMsg\n", entries.get(0).getTextPayload());
   }
   
+  @Test
+  public void testAsyncWritesArePublishedBySender() throws Exception {
+    asyncSettings = AsyncSettings.newBuilder()
+        .withAsync(true)
+        .build();
+
+    GoogleCloudStackdriverManager googleCloudStackdriverManager =
+        PowerMockito.spy(new GoogleCloudStackdriverManager("name",
+            httpTransport,
+            googleCloudCredentials,
+            "gce",
+            null,
+            "projects/[PROJECT_ID]/logs/[LOG_ID]",
+            null,
+            StackdriverPayload.TEXT,
+            batchSettings,
+            asyncSettings,
+            publishSettings,
+            spoolSettings));
+
+    doNothing().when(googleCloudStackdriverManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    googleCloudStackdriverManager.write(
+        buildLogEvent("LogMsg", "2015-04-06T18:38:24.000Z", Level.WARN),
+        PatternLayout.createDefaultLayout());
+
+    ArgumentCaptor<WriteLogEntriesRequest> writeLogEntriesRequestArgumentCaptor =
+        ArgumentCaptor.forClass(WriteLogEntriesRequest.class);
+    verify(googleCloudStackdriverManager, timeout(5000))
+        .writeToGoogleCloudLogging(writeLogEntriesRequestArgumentCaptor.capture());
+
+    List<LogEntry> entries = writeLogEntriesRequestArgumentCaptor.getValue().getEntries();
+    assertEquals(1, entries.size());
+    assertEquals("WARNING", entries.get(0).getSeverity());
+    googleCloudStackdriverManager.stop(5, TimeUnit.SECONDS);
+  }
+  
   private static Log4jLogEvent buildLogEvent(final String logMsg,
                                              final String timestamp,
                                              final Level level) {
@@ -0,0 +1,360 @@
+package io.imaravic.log4j.util;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.core.util.Constants;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class AbstractGoogleCloudManagerTest {
+  @Test
+  public void testRequestsBelowThresholdAreNotCompressed() throws Exception {
+    final TestManager manager = new TestManager(PublishSettings.newBuilder()
+                                                    .withCompressionLevel(Deflater.BEST_SPEED)
+                                                    .withCompressionThresholdBytes(100)
+                                                    .build());
+
+    assertNull(manager.getRequestEncoding(99));
+    assertTrue(manager.getRequestEncoding(100) instanceof GzipEncoding);
+    assertEquals(Deflater.BEST_SPEED,
+                 ((GzipEncoding) manager.getRequestEncoding(100)).getLevel());
+    manager.stop(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testCompressionCanBeTurnedOff() throws Exception {
+    final TestManager manager = new TestManager(PublishSettings.newBuilder()
+                                                    .withCompressRequests(false)
+                                                    .build());
+
+    assertNull(manager.getRequestEncoding(Long.MAX_VALUE));
+    manager.stop(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testSteadyStateAppendDoesNotAllocate() throws Exception {
+    final com.sun.management.ThreadMXBean threadMXBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+    assumeTrue(Constants.ENABLE_THREADLOCALS);
+    threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+    final TestManager manager = new TestManager(AsyncSettings.newBuilder()
+                                                    .withAsync(true)
+                                                    .withQueueCapacity(1024)
+                                                    .build(),
+                                                PublishSettings.newBuilder().build());
+    final PatternLayout layout = PatternLayout.newBuilder()
+        .withPattern("%p %c - %m%n")
+        .build();
+    final LogEvent event = Log4jLogEvent.newBuilder()
+        .setLoggerName("logger")
+        .setLevel(Level.INFO)
+        .setMessage(new SimpleMessage("LogMsg"))
+        .build();
+    final int appends = 20000;
+
+    // Warms up the encoders and grows every ring buffer slot.
+    for (int i = 0; i < appends; ++i) {
+      manager.write(event, layout);
+    }
+    final long threadId = Thread.currentThread().getId();
+    final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < appends; ++i) {
+      manager.write(event, layout);
+    }
+    final long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+    manager.stop(1, TimeUnit.SECONDS);
+
+    assertTrue(allocated + " bytes allocated by " + appends + " appends", allocated < appends);
+  }
+
+  @Test
+  public void testTransientFailureIsRetriedInBackground() throws Exception {
+    final FlakyManager manager = new FlakyManager(PublishSettings.newBuilder()
+                                                      .withInitialRetryDelayMillis(1)
+                                                      .build(),
+                                                  1);
+
+    manager.write(endOfBatchEvent(), PatternLayout.createDefaultLayout());
+
+    assertTrue(manager.published.await(5, TimeUnit.SECONDS));
+    assertEquals(2, manager.attempts.get());
+    manager.stop(1, TimeUnit.SECONDS);
+    assertEquals(0, manager.getDroppedEvents());
+    assertEquals(1, manager.getMetrics().getRetries());
+    assertEquals(1, manager.getMetrics().getFailures());
+    assertEquals(1, manager.getMetrics().getEventsPublished());
+  }
+
+  @Test
+  public void testMetricsAreRegisteredAsMBean() throws Exception {
+    final TestManager manager = new TestManager(PublishSettings.newBuilder().build());
+    final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName("io.imaravic.log4j:type=TestManager,name=\"test\"");
+
+    final PatternLayout layout = PatternLayout.newBuilder().withPattern("%m").build();
+    manager.write(Log4jLogEvent.newBuilder()
+                      .setMessage(new SimpleMessage("LogMsg"))
+                      .build(),
+                  layout);
+    manager.write(endOfBatchEvent(), layout);
+
+    assertEquals(2L, mbeanServer.getAttribute(name, "EventsAppended"));
+    assertEquals(12L, mbeanServer.getAttribute(name, "BytesSerialized"));
+    assertEquals(1L, mbeanServer.getAttribute(name, "BatchesSent"));
+    assertEquals(2.0, mbeanServer.getAttribute(name, "MeanBatchSize"));
+    assertEquals(1, ((long[]) mbeanServer.getAttribute(name, "BatchSizeCounts"))[1]);
+    assertEquals(0, mbeanServer.getAttribute(name, "QueueDepth"));
+    assertEquals("CLOSED", mbeanServer.getAttribute(name, "CircuitState"));
+
+    manager.stop(1, TimeUnit.SECONDS);
+    assertFalse(mbeanServer.isRegistered(name));
+  }
+
+  @Test
+  public void testLatenciesAreRecorded() throws Exception {
+    final TestManager manager = new TestManager(PublishSettings.newBuilder().build());
+    final long loggedMillis = System.currentTimeMillis() - 5000;
+
+    manager.write(Log4jLogEvent.newBuilder()
+                      .setMessage(new SimpleMessage("LogMsg"))
+                      .setTimeMillis(loggedMillis)
+                      .build(),
+                  PatternLayout.createDefaultLayout());
+    manager.write(endOfBatchEvent(), PatternLayout.createDefaultLayout());
+
+    final ManagerMetrics metrics = manager.getMetrics();
+    assertEquals(2L, (long) metrics.getSerializationMicros().get("count"));
+    assertEquals(1L, (long) metrics.getPublishRoundTripMicros().get("count"));
+    assertEquals(2L, (long) metrics.getEventToAckLagMillis().get("count"));
+    assertTrue(metrics.getEventToAckLagMillis().get("max") >= 5000);
+    assertTrue(metrics.getEventToAckLagMillis().get("p50") < 5000);
+    manager.stop(1, TimeUnit.SECONDS);
+  }
+
+  @Test(expected = AppenderLoggingException.class)
+  public void testFailureIsThrownWithoutRetryBudget() throws Exception {
+    final FlakyManager manager = new FlakyManager(PublishSettings.newBuilder()
+                                                      .withRetryBudgetRatio(0)
+                                                      .withMinRetriesPerSecond(0)
+                                                      .build(),
+                                                  1);
+    try {
+      manager.write(endOfBatchEvent(), PatternLayout.createDefaultLayout());
+    } finally {
+      assertEquals(1, manager.attempts.get());
+      manager.stop(1, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test(expected = AppenderLoggingException.class)
+  public void testRetriesOverRateLimitAreGivenUp() throws Exception {
+    final FlakyManager manager = new FlakyManager(PublishSettings.newBuilder()
+                                                      .withMaxRequestsPerSecond(1)
+                                                      .build(),
+                                                  1);
+    try {
+      manager.write(endOfBatchEvent(), PatternLayout.createDefaultLayout());
+    } finally {
+      assertEquals(1, manager.attempts.get());
+      manager.stop(1, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void testBatchesOverRateLimitAreDroppedWithoutWaiting() throws Exception {
+    final FlakyManager manager = new FlakyManager(PublishSettings.newBuilder()
+                                                      .withMaxRequestsPerSecond(1)
+                                                      .build(),
+                                                  0);
+    final long startNanos = System.nanoTime();
+    for (int i = 0; i < 3; ++i) {
+      manager.write(endOfBatchEvent(), PatternLayout.createDefaultLayout());
+    }
+
+    assertTrue(System.nanoTime() - startNanos < TimeUnit.MILLISECONDS.toNanos(500));
+    assertEquals(1, manager.attempts.get());
+    assertEquals(2, manager.getDroppedEvents(DropReason.RATE_LIMITED));
+    manager.stop(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testBatchIsDroppedOnceOutOfRetryTime() throws Exception {
+    final FlakyManager manager = new FlakyManager(PublishSettings.newBuilder()
+                                                      .withMaxRetryTimeMillis(50)
+                                                      .withInitialRetryDelayMillis(1)
+                                                      .withMaxRetryDelayMillis(10)
+                                                      .build(),
+                                                  Integer.MAX_VALUE);
+
+    manager.write(endOfBatchEvent(), PatternLayout.createDefaultLayout());
+
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (manager.getDroppedEvents(DropReason.PUBLISH_FAILED) == 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, manager.getDroppedEvents(DropReason.PUBLISH_FAILED));
+    assertTrue(manager.attempts.get() > 1);
+    manager.stop(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testOpenCircuitDropsBatchesWithoutPublishing() throws Exception {
+    final FlakyManager manager = new FlakyManager(PublishSettings.newBuilder()
+                                                      .withMaxRetryTimeMillis(0)
+                                                      .withCircuitBreakerWindowSize(2)
+                                                      .withCircuitBreakerOpenMillis(60000)
+                                                      .build(),
+                                                  Integer.MAX_VALUE);
+    for (int i = 0; i < 2; ++i) {
+      try {
+        manager.write(endOfBatchEvent(), PatternLayout.createDefaultLayout());
+        fail();
+      } catch (final AppenderLoggingException e) {
+        // Expected, the circuit is still closed.
+      }
+    }
+    assertEquals(CircuitState.OPEN, manager.getCircuitState());
+
+    manager.write(endOfBatchEvent(), PatternLayout.createDefaultLayout());
+
+    assertEquals(2, manager.attempts.get());
+    assertEquals(1, manager.getDroppedEvents(DropReason.CIRCUIT_OPEN));
+    assertEquals(1, manager.getCircuitTransitions(CircuitState.OPEN));
+    assertEquals(Long.valueOf(1), manager.getMetrics().getCircuitTransitions().get("OPEN"));
+    manager.stop(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testAdaptiveBatchesGrowWithFastPublishes() throws Exception {
+    final TestManager manager = new TestManager(BatchSettings.newBuilder()
+                                                    .withAdaptive(true)
+                                                    .withMinBatchMessages(1)
+                                                    .withMaxBatchMessages(21)
+                                                    .build(),
+                                                AsyncSettings.newBuilder().build(),
+                                                PublishSettings.newBuilder().build());
+    assertEquals(1, manager.getBatchMessageLimit());
+
+    manager.write(endOfBatchEvent(), PatternLayout.createDefaultLayout());
+
+    assertEquals(2, manager.getBatchMessageLimit());
+    manager.stop(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testRetryDelayIsJitteredUpToExponentialBackoff() throws Exception {
+    final TestManager manager = new TestManager(PublishSettings.newBuilder()
+                                                    .withInitialRetryDelayMillis(100)
+                                                    .withMaxRetryDelayMillis(1000)
+                                                    .build());
+
+    for (int i = 0; i < 100; ++i) {
+      assertTrue(manager.retryDelayMillis(0) < 100);
+      assertTrue(manager.retryDelayMillis(2) < 400);
+      final long capped = manager.retryDelayMillis(40);
+      assertTrue(capped >= 0 && capped < 1000);
+    }
+    manager.stop(1, TimeUnit.SECONDS);
+  }
+
+  private static LogEvent endOfBatchEvent() {
+    return Log4jLogEvent.newBuilder()
+        .setLoggerName("logger")
+        .setLevel(Level.INFO)
+        .setMessage(new SimpleMessage("LogMsg"))
+        .setEndOfBatch(true)
+        .build();
+  }
+
+  /**
+   * Manager publishing nowhere.
+   */
+  static class TestManager extends AbstractGoogleCloudManager<byte[]> {
+    TestManager(final PublishSettings publishSettings) throws IOException {
+      this(AsyncSettings.newBuilder().build(), publishSettings);
+    }
+
+    TestManager(final AsyncSettings asyncSettings,
+                final PublishSettings publishSettings) throws IOException {
+      this(BatchSettings.newBuilder().build(), asyncSettings, publishSettings);
+    }
+
+    TestManager(final BatchSettings batchSettings,
+                final AsyncSettings asyncSettings,
+                final PublishSettings publishSettings) throws IOException {
+      super("test",
+            batchSettings,
+            asyncSettings,
+            publishSettings,
+            SpoolSettings.newBuilder().build());
+    }
+
+    @Override
+    protected byte[] toBatchEntry(final QueuedEvent event) {
+      return event.copyData();
+    }
+
+    @Override
+    protected void publish(final List<byte[]> batch) throws IOException {
+    }
+
+    @Override
+    protected byte[] toSpoolRecord(final byte[] entry) {
+      return entry;
+    }
+
+    @Override
+    protected byte[] fromSpoolRecord(final byte[] record) {
+      return record;
+    }
+
+    @Override
+    protected String getDestination() {
+      return "nowhere";
+    }
+  }
+
+  /**
+   * Manager failing its first publishes with an I/O error.
+   */
+  static class FlakyManager extends TestManager {
+    final AtomicInteger attempts = new AtomicInteger();
+    final CountDownLatch published = new CountDownLatch(1);
+    private final int failures;
+
+    FlakyManager(final PublishSettings publishSettings, final int failures) throws IOException {
+      super(publishSettings);
+      this.failures = failures;
+    }
+
+    @Override
+    protected void publish(final List<byte[]> batch) throws IOException {
+      if (attempts.incrementAndGet() <= failures) {
+        throw new IOException("TEST");
+      }
+      published.countDown();
+    }
+  }
+}
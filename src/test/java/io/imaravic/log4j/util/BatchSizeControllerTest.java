@@ -0,0 +1,67 @@
+package io.imaravic.log4j.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchSizeControllerTest {
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long SLOW = TimeUnit.SECONDS.toNanos(1);
+
+  private final BatchSizeController controller = new BatchSizeController(
+      BatchSettings.newBuilder()
+          .withAdaptive(true)
+          .withMinBatchMessages(10)
+          .withMaxBatchMessages(210)
+          .withMinLingerMillis(10)
+          .withMaxLingerMillis(110)
+          .withTargetPublishLatencyMillis(100)
+          .build());
+
+  @Test
+  public void testStartsFromMinimum() throws Exception {
+    assertEquals(10, controller.getBatchMessages());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(10), controller.getLingerNanos());
+  }
+
+  @Test
+  public void testGrowsWhilePublishesAreFast() throws Exception {
+    controller.onPublished(System.nanoTime(), FAST, false);
+    assertEquals(20, controller.getBatchMessages());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(15), controller.getLingerNanos());
+
+    for (int i = 0; i < 100; ++i) {
+      controller.onPublished(System.nanoTime(), FAST, false);
+    }
+    assertEquals(210, controller.getBatchMessages());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(110), controller.getLingerNanos());
+  }
+
+  @Test
+  public void testHalvesOncePerRoundOnSlowOrFailedPublishes() throws Exception {
+    for (int i = 0; i < 100; ++i) {
+      controller.onPublished(System.nanoTime(), FAST, false);
+    }
+    final long sentNanos = System.nanoTime();
+
+    controller.onPublished(sentNanos, SLOW, false);
+    assertEquals(105, controller.getBatchMessages());
+    // Sent before the decrease, so it says nothing new.
+    controller.onPublished(sentNanos, FAST, true);
+    assertEquals(105, controller.getBatchMessages());
+
+    controller.onPublished(System.nanoTime(), FAST, true);
+    assertEquals(52, controller.getBatchMessages());
+  }
+
+  @Test
+  public void testNeverShrinksBelowMinimum() throws Exception {
+    for (int i = 0; i < 10; ++i) {
+      controller.onPublished(System.nanoTime(), SLOW, true);
+    }
+    assertEquals(10, controller.getBatchMessages());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(10), controller.getLingerNanos());
+  }
+}
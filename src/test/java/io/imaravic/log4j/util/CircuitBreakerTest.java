@@ -0,0 +1,80 @@
+package io.imaravic.log4j.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+  private final RetryBudgetTest.FakeTicker ticker = new RetryBudgetTest.FakeTicker();
+  private final CircuitBreaker circuitBreaker = new CircuitBreaker(0.5, 4, 1000, ticker);
+
+  @Test
+  public void testOpensOnceFailureRateIsReached() throws Exception {
+    assertTrue(circuitBreaker.tryAcquire());
+    assertFalse(circuitBreaker.onFailure());
+    assertFalse(circuitBreaker.onFailure());
+    assertFalse(circuitBreaker.onSuccess());
+    assertEquals(CircuitState.CLOSED, circuitBreaker.getState());
+
+    assertTrue(circuitBreaker.onFailure());
+    assertEquals(CircuitState.OPEN, circuitBreaker.getState());
+    assertTrue(circuitBreaker.isOpen());
+    assertFalse(circuitBreaker.tryAcquire());
+  }
+
+  @Test
+  public void testOldOutcomesLeaveTheWindow() throws Exception {
+    circuitBreaker.onFailure();
+    for (int i = 0; i < 10; ++i) {
+      circuitBreaker.onSuccess();
+    }
+    circuitBreaker.onFailure();
+
+    assertEquals(CircuitState.CLOSED, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testSuccessfulProbeClosesCircuit() throws Exception {
+    openCircuit();
+
+    ticker.advance(999, TimeUnit.MILLISECONDS);
+    assertFalse(circuitBreaker.tryAcquire());
+    ticker.advance(1, TimeUnit.MILLISECONDS);
+    assertFalse(circuitBreaker.isOpen());
+    assertTrue(circuitBreaker.tryAcquire());
+    assertEquals(CircuitState.HALF_OPEN, circuitBreaker.getState());
+    // Only one probe at a time.
+    assertFalse(circuitBreaker.tryAcquire());
+
+    assertTrue(circuitBreaker.onSuccess());
+    assertEquals(CircuitState.CLOSED, circuitBreaker.getState());
+    assertTrue(circuitBreaker.tryAcquire());
+    assertEquals(1, circuitBreaker.getTransitions(CircuitState.OPEN));
+    assertEquals(1, circuitBreaker.getTransitions(CircuitState.HALF_OPEN));
+    assertEquals(1, circuitBreaker.getTransitions(CircuitState.CLOSED));
+  }
+
+  @Test
+  public void testFailedProbeOpensCircuitAgain() throws Exception {
+    openCircuit();
+
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertTrue(circuitBreaker.tryAcquire());
+    assertTrue(circuitBreaker.onFailure());
+
+    assertEquals(CircuitState.OPEN, circuitBreaker.getState());
+    assertFalse(circuitBreaker.tryAcquire());
+    assertEquals(2, circuitBreaker.getTransitions(CircuitState.OPEN));
+  }
+
+  private void openCircuit() {
+    for (int i = 0; i < 4; ++i) {
+      circuitBreaker.onFailure();
+    }
+    assertEquals(CircuitState.OPEN, circuitBreaker.getState());
+  }
+}
@@ -0,0 +1,153 @@
+package io.imaravic.log4j.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskSpoolTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testRecordsAreReadUntilCommitted() throws Exception {
+    final DiskSpool spool = new DiskSpool(folder.getRoot(), 1024, 4096);
+    assertTrue(spool.isEmpty());
+    assertTrue(spool.append(record("first")));
+    assertTrue(spool.append(record("second")));
+    assertTrue(spool.append(record("third")));
+
+    DiskSpool.Batch batch = spool.read(2, Long.MAX_VALUE);
+    assertEquals(2, batch.getRecords().size());
+    assertArrayEquals(record("first"), batch.getRecords().get(0));
+    assertEquals(2, spool.read(2, Long.MAX_VALUE).getRecords().size());
+
+    spool.commit(batch);
+    batch = spool.read(2, Long.MAX_VALUE);
+    assertEquals(1, batch.getRecords().size());
+    assertArrayEquals(record("third"), batch.getRecords().get(0));
+
+    spool.commit(batch);
+    assertTrue(spool.isEmpty());
+    assertNull(spool.read(2, Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testReadIsBoundedByBytes() throws Exception {
+    final DiskSpool spool = new DiskSpool(folder.getRoot(), 1024, 4096);
+    spool.append(new byte[100]);
+    spool.append(new byte[100]);
+    spool.append(new byte[100]);
+
+    assertEquals(2, spool.read(10, 250).getRecords().size());
+    // A single record larger than the limit is still returned.
+    assertEquals(1, spool.read(10, 50).getRecords().size());
+  }
+
+  @Test
+  public void testUnreplayedRecordsSurviveReopen() throws Exception {
+    DiskSpool spool = new DiskSpool(folder.getRoot(), 1024, 4096);
+    spool.append(record("replayed"));
+    spool.append(record("pending"));
+    spool.commit(spool.read(1, Long.MAX_VALUE));
+    spool.close();
+
+    spool = new DiskSpool(folder.getRoot(), 1024, 4096);
+    assertEquals(1, spool.getPendingRecords());
+    final DiskSpool.Batch batch = spool.read(10, Long.MAX_VALUE);
+    assertEquals(1, batch.getRecords().size());
+    assertArrayEquals(record("pending"), batch.getRecords().get(0));
+
+    spool.append(record("new"));
+    spool.commit(batch);
+    assertArrayEquals(record("new"), spool.read(10, Long.MAX_VALUE).getRecords().get(0));
+  }
+
+  @Test
+  public void testEmptyRecordsAreReplayedAndRecovered() throws Exception {
+    DiskSpool spool = new DiskSpool(folder.getRoot(), 1024, 4096);
+    spool.append(new byte[0]);
+    spool.append(record("after"));
+    spool.close();
+
+    spool = new DiskSpool(folder.getRoot(), 1024, 4096);
+    assertEquals(2, spool.getPendingRecords());
+    final DiskSpool.Batch batch = spool.read(10, Long.MAX_VALUE);
+    assertEquals(2, batch.getRecords().size());
+    assertEquals(0, batch.getRecords().get(0).length);
+    assertArrayEquals(record("after"), batch.getRecords().get(1));
+
+    spool.commit(batch);
+    assertTrue(spool.isEmpty());
+    assertNull(spool.read(10, Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testRecoveryStopsAtCorruptedRecord() throws Exception {
+    DiskSpool spool = new DiskSpool(folder.getRoot(), 1024, 4096);
+    spool.append(record("intact"));
+    spool.append(record("corrupted"));
+    spool.append(record("after"));
+    spool.close();
+
+    final File[] segments = folder.getRoot().listFiles();
+    assertEquals(1, segments.length);
+    final RandomAccessFile segment = new RandomAccessFile(segments[0], "rw");
+    try {
+      final int secondPayload = 2 * DiskSpool.RECORD_HEADER_BYTES + record("intact").length;
+      segment.seek(secondPayload);
+      segment.write('X');
+    } finally {
+      segment.close();
+    }
+
+    spool = new DiskSpool(folder.getRoot(), 1024, 4096);
+    assertEquals(1, spool.getPendingRecords());
+    assertArrayEquals(record("intact"), spool.read(10, Long.MAX_VALUE).getRecords().get(0));
+  }
+
+  @Test
+  public void testOldestSegmentIsDroppedOverSizeCap() throws Exception {
+    final DiskSpool spool = new DiskSpool(folder.getRoot(), 128, 256);
+    // Two records of 50 bytes fill a segment of 128 bytes.
+    for (int i = 0; i < 6; ++i) {
+      assertTrue(spool.append(new byte[50 - DiskSpool.RECORD_HEADER_BYTES]));
+    }
+
+    assertEquals(2, folder.getRoot().listFiles().length);
+    assertEquals(4, spool.getPendingRecords());
+    assertEquals(2, spool.getDroppedRecords());
+  }
+
+  @Test
+  public void testReplayedSegmentsAreDeleted() throws Exception {
+    final DiskSpool spool = new DiskSpool(folder.getRoot(), 128, 1024);
+    for (int i = 0; i < 3; ++i) {
+      spool.append(new byte[50 - DiskSpool.RECORD_HEADER_BYTES]);
+    }
+    assertEquals(2, folder.getRoot().listFiles().length);
+
+    spool.commit(spool.read(10, Long.MAX_VALUE));
+    assertEquals(1, folder.getRoot().listFiles().length);
+    assertFalse(spool.isEmpty());
+  }
+
+  @Test
+  public void testRecordLargerThanSegmentIsRejected() throws Exception {
+    final DiskSpool spool = new DiskSpool(folder.getRoot(), 128, 1024);
+    assertFalse(spool.append(new byte[128]));
+    assertTrue(spool.isEmpty());
+  }
+
+  private static byte[] record(final String value) throws Exception {
+    return value.getBytes("UTF-8");
+  }
+}
@@ -0,0 +1,143 @@
+package io.imaravic.log4j.util;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GoogleCloudMetadataTest {
+  private static final String METADATA =
+      "{\"project\":{\"projectId\":\"project_id\",\"numericProjectId\":123}," +
+      "\"instance\":{\"id\":4520031799277581759,\"zone\":\"projects/123/zones/europe-west1-b\"," +
+      "\"attributes\":{\"cluster-name\":\"cluster\"}}}";
+
+  @Test
+  public void testMetadataIsPrefetchedOnceWithTimeouts() throws Exception {
+    final StandInServer server = new StandInServer(METADATA);
+    final String baseUrl = GoogleCloudMetadata.getBaseUrl("metadata.prefetched.test");
+    final GoogleCloudMetadata metadata = new GoogleCloudMetadata(server, baseUrl);
+
+    assertEquals("project_id", metadata.fetchFromPath(GoogleCloudMetadata.PROJECT_ID));
+    assertEquals("4520031799277581759", metadata.getIfPresent(GoogleCloudMetadata.INSTANCE_ID));
+    assertEquals("projects/123/zones/europe-west1-b", metadata.getIfPresent(GoogleCloudMetadata.ZONE));
+    assertEquals("cluster", new GoogleCloudMetadata(server, baseUrl)
+        .fetchFromPath(GoogleCloudMetadata.CLUSTER_NAME));
+
+    assertEquals(1, server.urls.size());
+    assertEquals(baseUrl + "?recursive=true", server.urls.get(0));
+    assertEquals(GoogleCloudMetadata.CONNECT_TIMEOUT_MILLIS, server.connectTimeout);
+    assertEquals(GoogleCloudMetadata.READ_TIMEOUT_MILLIS, server.readTimeout);
+  }
+
+  @Test
+  public void testOtherPathsAreFetchedOnDemandAndCached() throws Exception {
+    final StandInServer server = new StandInServer(METADATA);
+    final String baseUrl = GoogleCloudMetadata.getBaseUrl("metadata.on-demand.test");
+    final GoogleCloudMetadata metadata = new GoogleCloudMetadata(server, baseUrl);
+
+    assertNull(metadata.getIfPresent("instance/hostname"));
+    metadata.fetchFromPath("instance/hostname");
+    metadata.fetchFromPath("instance/hostname");
+    assertEquals(2, server.urls.size());
+    assertEquals(baseUrl + "instance/hostname", server.urls.get(1));
+  }
+
+  @Test
+  public void testFailedPrefetchIsNotRepeated() throws Exception {
+    final StandInServer server = new StandInServer(null);
+    final GoogleCloudMetadata metadata =
+        new GoogleCloudMetadata(server, GoogleCloudMetadata.getBaseUrl("metadata.missing.test"));
+
+    for (int i = 0; i < 2; ++i) {
+      try {
+        metadata.fetchFromPath(GoogleCloudMetadata.PROJECT_ID);
+        fail("Expected IOException");
+      } catch (final IOException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+    }
+    assertNull(metadata.getIfPresent(GoogleCloudMetadata.ZONE));
+    assertEquals(1, server.urls.size());
+  }
+
+  @Test
+  public void testFailedPrefetchIsRepeatedAfterItExpires() throws Exception {
+    final StandInServer server = new StandInServer(null);
+    final RetryBudgetTest.FakeTicker ticker = new RetryBudgetTest.FakeTicker();
+    final GoogleCloudMetadata metadata =
+        new GoogleCloudMetadata(server, GoogleCloudMetadata.getBaseUrl("metadata.recovered.test"), ticker);
+
+    try {
+      metadata.fetchFromPath(GoogleCloudMetadata.PROJECT_ID);
+      fail("Expected IOException");
+    } catch (final IOException e) {
+      // The server is still starting.
+    }
+    server.metadata = METADATA;
+    assertNull(metadata.getIfPresent(GoogleCloudMetadata.PROJECT_ID));
+
+    ticker.advance(GoogleCloudMetadata.FAILURE_TTL_MILLIS, TimeUnit.MILLISECONDS);
+    assertEquals("project_id", metadata.fetchFromPath(GoogleCloudMetadata.PROJECT_ID));
+    ticker.advance(1, TimeUnit.DAYS);
+    assertEquals("project_id", metadata.fetchFromPath(GoogleCloudMetadata.PROJECT_ID));
+    assertEquals(2, server.urls.size());
+  }
+
+  @Test
+  public void testMetadataHostCanBeOverridden() {
+    assertEquals("http://169.254.169.254/computeMetadata/v1/", GoogleCloudMetadata.getBaseUrl(null));
+    assertEquals("http://localhost:8080/computeMetadata/v1/",
+                 GoogleCloudMetadata.getBaseUrl("localhost:8080"));
+  }
+
+  /**
+   * Answers every request with the given metadata, or fails it to connect
+   * when there is none.
+   */
+  private static class StandInServer extends MockHttpTransport {
+    private String metadata;
+    private final List<String> urls = new ArrayList<String>();
+    private int connectTimeout;
+    private int readTimeout;
+
+    StandInServer(final String metadata) {
+      this.metadata = metadata;
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(final String method, final String url) {
+      urls.add(url);
+      return new MockLowLevelHttpRequest(url) {
+        @Override
+        public void setTimeout(final int connectTimeout, final int readTimeout) {
+          StandInServer.this.connectTimeout = connectTimeout;
+          StandInServer.this.readTimeout = readTimeout;
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          assertEquals("Google", getFirstHeaderValue("Metadata-Flavor"));
+          if (metadata == null) {
+            throw new IOException("connect timed out");
+          }
+          return new MockLowLevelHttpResponse()
+              .setContentType(Json.MEDIA_TYPE)
+              .setContent(metadata);
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package io.imaravic.log4j.util;
+
+import com.google.api.client.util.StreamingContent;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GzipEncodingTest {
+  private static final byte[] LOG_LINES = repeat("2015-04-06T18:38:24.000Z INFO LogMsg\n", 1000);
+
+  @Test
+  public void testContentIsGzipped() throws Exception {
+    final GzipEncoding encoding = new GzipEncoding(Deflater.DEFAULT_COMPRESSION);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    encoding.encode(content(LOG_LINES), out);
+
+    assertEquals("gzip", encoding.getName());
+    assertTrue(out.size() < LOG_LINES.length / 5);
+    assertArrayEquals(LOG_LINES, gunzip(out.toByteArray()));
+  }
+
+  @Test
+  public void testLevelIsUsed() throws Exception {
+    final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+    new GzipEncoding(Deflater.NO_COMPRESSION).encode(content(LOG_LINES), stored);
+    new GzipEncoding(Deflater.BEST_COMPRESSION).encode(content(LOG_LINES), compressed);
+
+    assertTrue(stored.size() > LOG_LINES.length);
+    assertTrue(compressed.size() < LOG_LINES.length / 5);
+    assertArrayEquals(LOG_LINES, gunzip(stored.toByteArray()));
+  }
+
+  @Test
+  public void testRequestStreamIsLeftOpen() throws Exception {
+    final boolean[] closed = new boolean[1];
+    final OutputStream out = new ByteArrayOutputStream() {
+      @Override
+      public void close() throws IOException {
+        closed[0] = true;
+      }
+    };
+
+    new GzipEncoding(Deflater.DEFAULT_COMPRESSION).encode(content(LOG_LINES), out);
+
+    assertFalse(closed[0]);
+  }
+
+  private static StreamingContent content(final byte[] data) {
+    return new StreamingContent() {
+      @Override
+      public void writeTo(final OutputStream out) throws IOException {
+        out.write(data);
+      }
+    };
+  }
+
+  private static byte[] gunzip(final byte[] data) throws IOException {
+    final InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] repeat(final String line, final int times) {
+    final StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < times; ++i) {
+      builder.append(line);
+    }
+    return builder.toString().getBytes();
+  }
+}
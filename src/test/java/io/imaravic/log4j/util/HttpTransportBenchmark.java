@@ -0,0 +1,178 @@
+package io.imaravic.log4j.util;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.Json;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares requests per second and latency percentiles of the built-in
+ * {@link HttpTransportFactory} implementations, publishing to a local stub
+ * of the Pub/Sub publish endpoint as the number of concurrent requests
+ * grows.
+ *
+ * Not a unit test, run it with
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *     -Dexec.mainClass=io.imaravic.log4j.util.HttpTransportBenchmark
+ */
+public class HttpTransportBenchmark {
+  private static final String[] FACTORIES = {HttpTransportFactories.JAVA_NET, HttpTransportFactories.APACHE};
+  private static final int[] CONCURRENCY = {1, 4, 16, 64};
+  private static final long WARMUP_MILLIS = 1000;
+  private static final long MEASURE_MILLIS = 3000;
+  private static final int MAX_SAMPLES_PER_THREAD = 1 << 20;
+  private static final byte[] RESPONSE = "{\"messageIds\":[\"1\"]}".getBytes();
+  private static final byte[] BODY = new byte[4096];
+
+  static {
+    final byte[] message = "{\"messages\":[{\"data\":\"".getBytes();
+    Arrays.fill(BODY, (byte) 'A');
+    System.arraycopy(message, 0, BODY, 0, message.length);
+    BODY[BODY.length - 4] = '"';
+    BODY[BODY.length - 3] = '}';
+    BODY[BODY.length - 2] = ']';
+    BODY[BODY.length - 1] = '}';
+  }
+
+  public static void main(final String[] args) throws Exception {
+    // The stub writes the response headers and body separately, with Nagle
+    // on that stalls every response for a delayed ACK of the client.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+    final ExecutorService serverThreads = Executors.newCachedThreadPool();
+    server.createContext("/", new PublishHandler());
+    server.setExecutor(serverThreads);
+    server.start();
+    final GenericUrl url = new GenericUrl("http://127.0.0.1:" + server.getAddress().getPort() +
+                                          "/v1/projects/project/topics/topic:publish");
+    try {
+      System.out.printf("%9s %8s %12s %10s %10s%n", "transport", "requests", "requests/s", "p50 (ms)", "p99 (ms)");
+      for (final String factory : FACTORIES) {
+        for (final int concurrency : CONCURRENCY) {
+          final HttpTransport transport = HttpTransportFactories.forName(factory)
+              .create(TransportSettings.newBuilder()
+                          .withMaxConnectionsPerRoute(concurrency)
+                          .build());
+          try {
+            final Result result = measure(transport.createRequestFactory(), url, concurrency);
+            System.out.printf("%9s %8d %12.0f %10.3f %10.3f%n",
+                              factory,
+                              concurrency,
+                              result.requestsPerSecond,
+                              result.percentileMillis(0.50),
+                              result.percentileMillis(0.99));
+          } finally {
+            transport.shutdown();
+          }
+        }
+      }
+    } finally {
+      server.stop(0);
+      serverThreads.shutdownNow();
+    }
+  }
+
+  private static Result measure(final HttpRequestFactory requestFactory,
+                                final GenericUrl url,
+                                final int concurrency) throws InterruptedException {
+    final long[][] samples = new long[concurrency][];
+    final int[] sampleCounts = new int[concurrency];
+    final CountDownLatch done = new CountDownLatch(concurrency);
+    final long warmupEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WARMUP_MILLIS);
+    final long measureEnd = warmupEnd + TimeUnit.MILLISECONDS.toNanos(MEASURE_MILLIS);
+
+    for (int t = 0; t < concurrency; ++t) {
+      final int thread = t;
+      samples[thread] = new long[MAX_SAMPLES_PER_THREAD];
+      final Thread client = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          long start;
+          try {
+            while ((start = System.nanoTime()) < measureEnd) {
+              requestFactory.buildPostRequest(url, new ByteArrayContent(Json.MEDIA_TYPE, BODY))
+                  .execute()
+                  .ignore();
+              if (start >= warmupEnd && sampleCounts[thread] < MAX_SAMPLES_PER_THREAD) {
+                samples[thread][sampleCounts[thread]++] = System.nanoTime() - start;
+              }
+            }
+          } catch (final IOException e) {
+            e.printStackTrace();
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+      client.setDaemon(true);
+      client.start();
+    }
+    done.await();
+
+    int total = 0;
+    for (final int count : sampleCounts) {
+      total += count;
+    }
+    final long[] latencies = new long[total];
+    int offset = 0;
+    for (int t = 0; t < concurrency; ++t) {
+      System.arraycopy(samples[t], 0, latencies, offset, sampleCounts[t]);
+      offset += sampleCounts[t];
+    }
+    Arrays.sort(latencies);
+    return new Result(total * 1000.0 / MEASURE_MILLIS, latencies);
+  }
+
+  private static class Result {
+    private final double requestsPerSecond;
+    private final long[] sortedLatencies;
+
+    Result(final double requestsPerSecond, final long[] sortedLatencies) {
+      this.requestsPerSecond = requestsPerSecond;
+      this.sortedLatencies = sortedLatencies;
+    }
+
+    double percentileMillis(final double percentile) {
+      if (sortedLatencies.length == 0) {
+        return Double.NaN;
+      }
+      final int index = Math.min(sortedLatencies.length - 1, (int) (percentile * sortedLatencies.length));
+      return sortedLatencies[index] / 1e6;
+    }
+  }
+
+  /**
+   * Reads the whole body like the real endpoint and answers with a
+   * publish response, keeping the connection alive.
+   */
+  private static class PublishHandler implements HttpHandler {
+    @Override
+    public void handle(final HttpExchange exchange) throws IOException {
+      final InputStream body = exchange.getRequestBody();
+      final byte[] buffer = new byte[8192];
+      while (body.read(buffer) >= 0) {
+        // Discarded.
+      }
+      body.close();
+      exchange.getResponseHeaders().set("Content-Type", Json.MEDIA_TYPE);
+      exchange.sendResponseHeaders(200, RESPONSE.length);
+      final OutputStream response = exchange.getResponseBody();
+      response.write(RESPONSE);
+      response.close();
+    }
+  }
+}
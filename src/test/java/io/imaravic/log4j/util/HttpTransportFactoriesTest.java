@@ -0,0 +1,41 @@
+package io.imaravic.log4j.util;
+
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.routing.HttpRoute;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpTransportFactoriesTest {
+  @Test
+  public void testBuiltInFactories() {
+    assertTrue(HttpTransportFactories.forName(null) instanceof NetHttpTransportFactory);
+    assertTrue(HttpTransportFactories.forName("Apache") instanceof ApacheHttpTransportFactory);
+    assertTrue(HttpTransportFactories.forName("javanet") instanceof NetHttpTransportFactory);
+  }
+
+  @Test
+  public void testFactoryIsLoadedByClassName() {
+    assertTrue(HttpTransportFactories.forName(SharedHttpTransportsTest.MockTransportFactory.class.getName())
+                   instanceof SharedHttpTransportsTest.MockTransportFactory);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownFactoryIsRejected() {
+    HttpTransportFactories.forName("com.example.NoSuchFactory");
+  }
+
+  @Test
+  public void testApachePoolIsSizedPerRoute() throws Exception {
+    final ApacheHttpTransport transport = (ApacheHttpTransport) new ApacheHttpTransportFactory().create(
+        TransportSettings.newBuilder()
+            .withMaxConnectionsPerRoute(7)
+            .build());
+    assertEquals(7, ConnManagerParams.getMaxConnectionsPerRoute(transport.getHttpClient().getParams())
+        .getMaxForRoute(new HttpRoute(new HttpHost("pubsub.googleapis.com", 443, "https"))));
+    transport.shutdown();
+  }
+}
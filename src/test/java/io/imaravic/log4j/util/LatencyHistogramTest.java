@@ -0,0 +1,56 @@
+package io.imaravic.log4j.util;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+  private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  private final LatencyHistogram histogram = new LatencyHistogram(WINDOW_NANOS, 0);
+
+  @Test
+  public void testSmallValuesAreExact() throws Exception {
+    for (long value = 0; value < 64; ++value) {
+      assertEquals(value, LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(value)));
+    }
+  }
+
+  @Test
+  public void testLargeValuesAreWithinThreePercent() throws Exception {
+    for (long value = 64; value < 1L << 40; value = value * 3 + 7) {
+      final long reported = LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(value));
+      assertTrue(reported >= value);
+      assertTrue(reported <= value + value / 32);
+    }
+  }
+
+  @Test
+  public void testPercentiles() throws Exception {
+    for (long value = 1; value <= 1000; ++value) {
+      histogram.record(value, 0);
+    }
+
+    final Map<String, Long> summary = histogram.summary(0);
+    assertEquals(1000L, (long) summary.get("count"));
+    assertEquals(500, summary.get("p50"), 500 / 32);
+    assertEquals(900, summary.get("p90"), 900 / 32);
+    assertEquals(990, summary.get("p99"), 990 / 32);
+    assertEquals(1000, summary.get("max"), 1000 / 32);
+    assertEquals(0, new LatencyHistogram(WINDOW_NANOS, 0).getValueAtPercentile(50, 0));
+  }
+
+  @Test
+  public void testOldWindowsAreForgotten() throws Exception {
+    histogram.record(1000, 0);
+    histogram.record(10, WINDOW_NANOS);
+
+    assertEquals(2L, (long) histogram.summary(WINDOW_NANOS).get("count"));
+    assertEquals(10, histogram.getValueAtPercentile(100, 2 * WINDOW_NANOS));
+    assertEquals(0L, (long) histogram.summary(4 * WINDOW_NANOS).get("count"));
+  }
+}
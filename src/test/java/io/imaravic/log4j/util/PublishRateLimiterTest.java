@@ -0,0 +1,73 @@
+package io.imaravic.log4j.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class PublishRateLimiterTest {
+  private final RetryBudgetTest.FakeTicker ticker = new RetryBudgetTest.FakeTicker();
+
+  @Test
+  public void testRequestsAreLimited() throws Exception {
+    final PublishRateLimiter rateLimiter = new PublishRateLimiter(2, 0, ticker);
+
+    assertEquals(0, rateLimiter.tryAcquire(1, 1000));
+    assertEquals(0, rateLimiter.tryAcquire(1, 1000));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(500), rateLimiter.tryAcquire(1, 1000));
+
+    ticker.advance(500, TimeUnit.MILLISECONDS);
+    assertEquals(0, rateLimiter.tryAcquire(1, 1000));
+  }
+
+  @Test
+  public void testBytesAreLimited() throws Exception {
+    final PublishRateLimiter rateLimiter = new PublishRateLimiter(0, 1000, ticker);
+
+    assertEquals(0, rateLimiter.tryAcquire(1, 600));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(200), rateLimiter.tryAcquire(1, 600));
+
+    ticker.advance(200, TimeUnit.MILLISECONDS);
+    assertEquals(0, rateLimiter.tryAcquire(1, 600));
+  }
+
+  @Test
+  public void testLargeRequestGoesIntoDebt() throws Exception {
+    final PublishRateLimiter rateLimiter = new PublishRateLimiter(0, 1000, ticker);
+
+    assertEquals(0, rateLimiter.tryAcquire(1, 3000));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(2001), rateLimiter.tryAcquire(1, 1));
+  }
+
+  @Test
+  public void testDeniedRequestTakesNoTokens() throws Exception {
+    final PublishRateLimiter rateLimiter = new PublishRateLimiter(1, 1000, ticker);
+
+    assertEquals(0, rateLimiter.tryAcquire(0, 1000));
+    // Bytes are missing, so the request token stays.
+    assertEquals(TimeUnit.SECONDS.toNanos(1), rateLimiter.tryAcquire(1, 1000));
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertEquals(0, rateLimiter.tryAcquire(1, 1000));
+  }
+
+  @Test
+  public void testChargedRequestsGoIntoDebt() throws Exception {
+    final PublishRateLimiter rateLimiter = new PublishRateLimiter(2, 0, ticker);
+
+    rateLimiter.charge(3, 0);
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), rateLimiter.tryAcquire(1, 0));
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertEquals(0, rateLimiter.tryAcquire(1, 0));
+  }
+
+  @Test
+  public void testCheckingAvailabilityTakesNoTokens() throws Exception {
+    final PublishRateLimiter rateLimiter = new PublishRateLimiter(1, 0, ticker);
+
+    assertEquals(0, rateLimiter.nanosUntilAvailable(1, 0));
+    assertEquals(0, rateLimiter.nanosUntilAvailable(1, 0));
+    assertEquals(0, rateLimiter.tryAcquire(1, 0));
+    assertEquals(TimeUnit.SECONDS.toNanos(1), rateLimiter.nanosUntilAvailable(1, 0));
+  }
+}
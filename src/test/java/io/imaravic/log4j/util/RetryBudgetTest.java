@@ -0,0 +1,62 @@
+package io.imaravic.log4j.util;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryBudgetTest {
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void testRetriesAreLimitedToShareOfRequests() throws Exception {
+    final RetryBudget retryBudget = new RetryBudget(0.5, 0, ticker);
+
+    assertFalse(retryBudget.tryWithdraw());
+    retryBudget.deposit();
+    assertFalse(retryBudget.tryWithdraw());
+    retryBudget.deposit();
+    assertTrue(retryBudget.tryWithdraw());
+    assertFalse(retryBudget.tryWithdraw());
+  }
+
+  @Test
+  public void testMinRetriesAreRefilledEverySecond() throws Exception {
+    final RetryBudget retryBudget = new RetryBudget(0, 2, ticker);
+
+    assertTrue(retryBudget.tryWithdraw());
+    assertTrue(retryBudget.tryWithdraw());
+    assertFalse(retryBudget.tryWithdraw());
+
+    ticker.advance(500, TimeUnit.MILLISECONDS);
+    assertTrue(retryBudget.tryWithdraw());
+    assertFalse(retryBudget.tryWithdraw());
+  }
+
+  @Test
+  public void testReserveIsCapped() throws Exception {
+    final RetryBudget retryBudget = new RetryBudget(0, 1, ticker);
+
+    ticker.advance(1, TimeUnit.HOURS);
+    for (int i = 0; i < RetryBudget.MAX_RESERVE_SECONDS; ++i) {
+      assertTrue(retryBudget.tryWithdraw());
+    }
+    assertFalse(retryBudget.tryWithdraw());
+  }
+
+  static class FakeTicker extends Ticker {
+    private long nanos = 0;
+
+    void advance(final long duration, final TimeUnit unit) {
+      nanos += unit.toNanos(duration);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package io.imaravic.log4j.util;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ReusableByteBufferDestinationTest {
+  private final PatternLayout layout = PatternLayout.newBuilder().withPattern("%m").build();
+
+  @Test
+  public void testEventIsEncodedIntoReusedBuffer() throws Exception {
+    final ReusableByteBufferDestination destination = new ReusableByteBufferDestination(64, 1024);
+
+    destination.encode(event("LogMsg"), layout);
+    final byte[] array = destination.getArray();
+    assertEquals("LogMsg", new String(array, 0, destination.getLength(), "UTF-8"));
+
+    destination.reset();
+    destination.encode(event("Other"), layout);
+    assertSame(array, destination.getArray());
+    assertEquals("Other", new String(array, 0, destination.getLength(), "UTF-8"));
+  }
+
+  @Test
+  public void testBufferGrowsForLargeEventsAndShrinksAfterThem() throws Exception {
+    final ReusableByteBufferDestination destination = new ReusableByteBufferDestination(64, 1024);
+    final char[] large = new char[10000];
+    Arrays.fill(large, 'x');
+
+    destination.encode(event(new String(large)), layout);
+    assertEquals(new String(large),
+                 new String(destination.getArray(), 0, destination.getLength(), "UTF-8"));
+
+    destination.reset();
+    assertEquals(64, destination.getByteBuffer().capacity());
+  }
+
+  private static LogEvent event(final String message) {
+    return Log4jLogEvent.newBuilder()
+        .setLevel(Level.INFO)
+        .setMessage(new SimpleMessage(message))
+        .build();
+  }
+}
@@ -0,0 +1,116 @@
+package io.imaravic.log4j.util;
+
+import com.google.api.client.util.Lists;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares appends per second of the old synchronized buffer swap with
+ * {@link RingBuffer} as the number of producer threads grows.
+ *
+ * Not a unit test, run it with
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *     -Dexec.mainClass=io.imaravic.log4j.util.RingBufferContentionBenchmark
+ */
+public class RingBufferContentionBenchmark {
+  private static final int[] PRODUCER_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+  private static final long WARMUP_MILLIS = 500;
+  private static final long MEASURE_MILLIS = 2000;
+  private static final byte[] PAYLOAD = new byte[128];
+
+  interface Sink {
+    void append(byte[] data);
+
+    void drain();
+  }
+
+  static class SynchronizedListSink implements Sink {
+    private List<byte[]> buffer = Lists.newArrayList();
+
+    @Override
+    public synchronized void append(final byte[] data) {
+      buffer.add(data);
+    }
+
+    @Override
+    public void drain() {
+      synchronized (this) {
+        buffer = Lists.newArrayList();
+      }
+    }
+  }
+
+  static class RingBufferSink implements Sink {
+    private final RingBuffer<QueuedEvent> ringBuffer =
+        new RingBuffer<QueuedEvent>(1 << 16, QueuedEvent.FACTORY);
+    private final RingBuffer.Handler<QueuedEvent> handler = new RingBuffer.Handler<QueuedEvent>() {
+      @Override
+      public boolean onEvent(final QueuedEvent event) {
+        event.clear();
+        return true;
+      }
+    };
+
+    @Override
+    public void append(final byte[] data) {
+      long sequence;
+      while ((sequence = ringBuffer.tryNext()) < 0) {
+        Thread.yield();
+      }
+      ringBuffer.get(sequence).set(data, null, null, 0, 0);
+      ringBuffer.publish(sequence);
+    }
+
+    @Override
+    public void drain() {
+      ringBuffer.drain(handler, Integer.MAX_VALUE);
+    }
+  }
+
+  public static void main(final String[] args) throws Exception {
+    System.out.printf("%9s %22s %22s%n", "producers", "synchronized (ops/s)", "ring buffer (ops/s)");
+    for (final int producers : PRODUCER_COUNTS) {
+      final double synchronizedRate = measure(new SynchronizedListSink(), producers);
+      final double ringBufferRate = measure(new RingBufferSink(), producers);
+      System.out.printf("%9d %22.0f %22.0f%n", producers, synchronizedRate, ringBufferRate);
+    }
+  }
+
+  private static double measure(final Sink sink, final int producers) throws Exception {
+    final AtomicLong appends = new AtomicLong();
+    final CountDownLatch done = new CountDownLatch(producers);
+    final long warmupEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WARMUP_MILLIS);
+    final long measureEnd = warmupEnd + TimeUnit.MILLISECONDS.toNanos(MEASURE_MILLIS);
+
+    for (int p = 0; p < producers; ++p) {
+      final Thread producer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          long count = 0;
+          long now;
+          while ((now = System.nanoTime()) < measureEnd) {
+            for (int i = 0; i < 100; ++i) {
+              sink.append(PAYLOAD);
+            }
+            if (now >= warmupEnd) {
+              count += 100;
+            }
+          }
+          appends.addAndGet(count);
+          done.countDown();
+        }
+      });
+      producer.setDaemon(true);
+      producer.start();
+    }
+
+    while (!done.await(1, TimeUnit.MILLISECONDS)) {
+      sink.drain();
+    }
+    sink.drain();
+    return appends.get() * 1000.0 / MEASURE_MILLIS;
+  }
+}
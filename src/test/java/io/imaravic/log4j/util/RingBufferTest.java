@@ -0,0 +1,161 @@
+package io.imaravic.log4j.util;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.api.client.util.Lists;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTest {
+  private static final RingBuffer.Factory<long[]> FACTORY = new RingBuffer.Factory<long[]>() {
+    @Override
+    public long[] newInstance() {
+      return new long[1];
+    }
+  };
+
+  @Test
+  public void testCapacityIsRoundedUpToPowerOfTwo() throws Exception {
+    assertEquals(1, RingBuffer.capacityFor(1));
+    assertEquals(8, RingBuffer.capacityFor(8));
+    assertEquals(16, RingBuffer.capacityFor(9));
+    assertEquals(8192, RingBuffer.capacityFor(5000));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCapacityMustBePowerOfTwo() throws Exception {
+    new RingBuffer<long[]>(6, FACTORY);
+  }
+
+  @Test
+  public void testClaimFailsWhenFullAndSucceedsAfterDrain() throws Exception {
+    final RingBuffer<long[]> ringBuffer = new RingBuffer<long[]>(4, FACTORY);
+    for (int i = 0; i < 4; ++i) {
+      final long sequence = ringBuffer.tryNext();
+      assertEquals(i, sequence);
+      ringBuffer.get(sequence)[0] = i;
+      ringBuffer.publish(sequence);
+    }
+    assertEquals(-1, ringBuffer.tryNext());
+    assertEquals(4, ringBuffer.size());
+
+    final List<Long> drained = Lists.newArrayList();
+    assertEquals(2, ringBuffer.drain(collectInto(drained), 2));
+    assertEquals(2, ringBuffer.size());
+
+    final long sequence = ringBuffer.tryNext();
+    assertEquals(4, sequence);
+    ringBuffer.get(sequence)[0] = 4;
+    ringBuffer.publish(sequence);
+
+    assertEquals(3, ringBuffer.drain(collectInto(drained), Integer.MAX_VALUE));
+    assertEquals(5, drained.size());
+    for (int i = 0; i < drained.size(); ++i) {
+      assertEquals(i, drained.get(i).longValue());
+    }
+    assertTrue(ringBuffer.isEmpty());
+  }
+
+  @Test
+  public void testDrainStopsAtUnpublishedSlot() throws Exception {
+    final RingBuffer<long[]> ringBuffer = new RingBuffer<long[]>(4, FACTORY);
+    final long first = ringBuffer.tryNext();
+    final long second = ringBuffer.tryNext();
+    ringBuffer.publish(second);
+
+    assertTrue(ringBuffer.isEmpty());
+    assertEquals(0, ringBuffer.drain(collectInto(Lists.<Long>newArrayList()), 4));
+
+    ringBuffer.publish(first);
+    assertFalse(ringBuffer.isEmpty());
+    assertEquals(2, ringBuffer.drain(collectInto(Lists.<Long>newArrayList()), 4));
+  }
+
+  @Test
+  public void testDrainLeavesRejectedSlotInBuffer() throws Exception {
+    final RingBuffer<long[]> ringBuffer = new RingBuffer<long[]>(4, FACTORY);
+    for (int i = 0; i < 3; ++i) {
+      final long sequence = ringBuffer.tryNext();
+      ringBuffer.get(sequence)[0] = i;
+      ringBuffer.publish(sequence);
+    }
+
+    final AtomicInteger accepted = new AtomicInteger();
+    assertEquals(1, ringBuffer.drain(new RingBuffer.Handler<long[]>() {
+      @Override
+      public boolean onEvent(long[] event) {
+        return accepted.incrementAndGet() < 2;
+      }
+    }, 4));
+    assertEquals(2, ringBuffer.size());
+  }
+
+  @Test
+  public void testConcurrentProducersDoNotLoseEvents() throws Exception {
+    final int producers = 8;
+    final int eventsPerProducer = 100000;
+    final RingBuffer<long[]> ringBuffer = new RingBuffer<long[]>(1024, FACTORY);
+    final CountDownLatch start = new CountDownLatch(1);
+
+    final Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; ++p) {
+      threads[p] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < eventsPerProducer; ++i) {
+            long sequence;
+            while ((sequence = ringBuffer.tryNext()) < 0) {
+              Thread.yield();
+            }
+            ringBuffer.get(sequence)[0] = 1;
+            ringBuffer.publish(sequence);
+          }
+        }
+      });
+      threads[p].start();
+    }
+
+    final long[] sum = new long[1];
+    final RingBuffer.Handler<long[]> summer = new RingBuffer.Handler<long[]>() {
+      @Override
+      public boolean onEvent(long[] event) {
+        sum[0] += event[0];
+        event[0] = 0;
+        return true;
+      }
+    };
+
+    start.countDown();
+    long consumed = 0;
+    while (consumed < (long) producers * eventsPerProducer) {
+      consumed += ringBuffer.drain(summer, 256);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals((long) producers * eventsPerProducer, sum[0]);
+    assertTrue(ringBuffer.isEmpty());
+  }
+
+  private static RingBuffer.Handler<long[]> collectInto(final List<Long> values) {
+    return new RingBuffer.Handler<long[]>() {
+      @Override
+      public boolean onEvent(long[] event) {
+        values.add(event[0]);
+        return true;
+      }
+    };
+  }
+}
@@ -0,0 +1,137 @@
+package io.imaravic.log4j.util;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.logging.v2.LoggingScopes;
+import com.google.api.services.pubsub.PubsubScopes;
+import org.apache.logging.log4j.LogManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class SharedCredentialsTest {
+  private final List<FakeCredential> built = new ArrayList<FakeCredential>();
+
+  @Before
+  public void setup() {
+    // Appenders of the test configuration hold credentials as well.
+    LogManager.getContext(false);
+  }
+
+  @Test
+  public void testCredentialIsSharedPerAccountAndScopes() throws Exception {
+    final int shared = SharedCredentials.size();
+    final GoogleCloudCredentials account = serviceAccountCredentials();
+    final Credential accountPubsub = account.acquireCredential(PubsubScopes.all());
+    final Credential samePubsub = serviceAccountCredentials().acquireCredential(PubsubScopes.all());
+    final Credential accountLogging = account.acquireCredential(LoggingScopes.all());
+
+    assertSame(accountPubsub, samePubsub);
+    assertNotSame(accountPubsub, accountLogging);
+    assertEquals(shared + 2, SharedCredentials.size());
+
+    account.releaseCredential(accountPubsub);
+    assertEquals(shared + 2, SharedCredentials.size());
+    account.releaseCredential(samePubsub);
+    account.releaseCredential(accountLogging);
+    account.releaseCredential(null);
+    assertEquals(shared, SharedCredentials.size());
+  }
+
+  @Test
+  public void testComputeCredentialIsSharedAcrossScopes() throws Exception {
+    final GoogleCloudCredentials compute = computeCredentials();
+    final Credential pubsub = compute.acquireCredential(PubsubScopes.all());
+    final Credential logging = computeCredentials().acquireCredential(LoggingScopes.all());
+    try {
+      // Compute Engine tokens don't depend on the scopes asked for.
+      assertSame(pubsub, logging);
+    } finally {
+      compute.releaseCredential(pubsub);
+      compute.releaseCredential(logging);
+    }
+  }
+
+  @Test
+  public void testTokenIsRefreshedInTheBackground() throws Exception {
+    final GoogleCloudCredentials account = serviceAccountCredentials();
+    final Credential credential = account.acquireCredential(PubsubScopes.all());
+    try {
+      final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+      while (credential.getAccessToken() == null && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals("token-1", credential.getAccessToken());
+      assertEquals(3600, credential.getExpiresInSeconds(), 5);
+      // Handed to the managers, it never went to the token server itself.
+      assertEquals(2, built.size());
+      assertEquals(0, ((FakeCredential) credential).refreshes);
+    } finally {
+      account.releaseCredential(credential);
+    }
+  }
+
+  @Test
+  public void testRefreshIsScheduledAheadOfExpiry() {
+    assertEquals(TimeUnit.MINUTES.toMillis(55), SharedCredentials.refreshDelayMillis(3600));
+    assertEquals(SharedCredentials.RETRY_DELAY_MILLIS, SharedCredentials.refreshDelayMillis(60));
+  }
+
+  private GoogleCloudCredentials computeCredentials() {
+    return new StubCredentials(true, null, null);
+  }
+
+  private GoogleCloudCredentials serviceAccountCredentials() {
+    return new StubCredentials(false,
+                               "serviceId@developer.gserviceaccount.com",
+                               new File("file.p12"));
+  }
+
+  /**
+   * Builds fake credentials instead of going to the token server.
+   */
+  private class StubCredentials extends GoogleCloudCredentials {
+    StubCredentials(final boolean useComputeCredentials,
+                    final String serviceAccountId,
+                    final File serviceAccountPrivateKeyP12File) {
+      super(useComputeCredentials, serviceAccountId, serviceAccountPrivateKeyP12File);
+    }
+
+    @Override
+    public Credential getCredential(final HttpTransport transport,
+                                    final JacksonFactory jacksonFactory,
+                                    final Collection<String> serviceAccountScopes) {
+      final FakeCredential credential = new FakeCredential();
+      built.add(credential);
+      return credential;
+    }
+  }
+
+  private static class FakeCredential extends Credential {
+    private volatile int refreshes = 0;
+
+    FakeCredential() {
+      super(BearerToken.authorizationHeaderAccessMethod());
+    }
+
+    @Override
+    protected TokenResponse executeRefreshToken() {
+      ++refreshes;
+      return new TokenResponse()
+          .setAccessToken("token-" + refreshes)
+          .setExpiresInSeconds(3600L);
+    }
+  }
+}
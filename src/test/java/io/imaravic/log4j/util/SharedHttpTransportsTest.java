@@ -0,0 +1,89 @@
+package io.imaravic.log4j.util;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.testing.http.MockHttpTransport;
+import org.apache.logging.log4j.LogManager;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SharedHttpTransportsTest {
+  private static final String PUBSUB = "https://pubsub.example.com/";
+  private static final String LOGGING = "https://logging.example.com/";
+
+  @Test
+  public void testTransportIsSharedPerEndpointAndSettings() throws Exception {
+    // Appenders of the test configuration hold transports as well.
+    LogManager.getContext(false);
+    final int shared = SharedHttpTransports.size();
+    final TransportSettings settings = TransportSettings.newBuilder().build();
+    final HttpTransport first = SharedHttpTransports.acquire(PUBSUB, settings);
+    final HttpTransport second = SharedHttpTransports.acquire(PUBSUB, TransportSettings.newBuilder().build());
+    final HttpTransport logging = SharedHttpTransports.acquire(LOGGING, settings);
+    final HttpTransport tuned = SharedHttpTransports.acquire(PUBSUB, TransportSettings.newBuilder()
+        .withMaxConnectionsPerRoute(4)
+        .build());
+
+    assertSame(first, second);
+    assertNotSame(first, logging);
+    assertNotSame(first, tuned);
+    assertEquals(shared + 3, SharedHttpTransports.size());
+
+    SharedHttpTransports.release(first);
+    assertSame(first, SharedHttpTransports.acquire(PUBSUB, settings));
+    SharedHttpTransports.release(first);
+    SharedHttpTransports.release(second);
+    SharedHttpTransports.release(logging);
+    SharedHttpTransports.release(tuned);
+    assertEquals(shared, SharedHttpTransports.size());
+
+    // Released for good, the next manager gets a new transport.
+    final HttpTransport next = SharedHttpTransports.acquire(PUBSUB, settings);
+    assertNotSame(first, next);
+    SharedHttpTransports.release(next);
+  }
+
+  @Test
+  public void testReleasingUnknownTransportIsIgnored() throws Exception {
+    final HttpTransport transport = SharedHttpTransports.acquire(PUBSUB, TransportSettings.newBuilder()
+        .withKeepAliveMillis(1000)
+        .build());
+    final int shared = SharedHttpTransports.size();
+    SharedHttpTransports.release(new ApacheHttpTransport());
+    SharedHttpTransports.release(null);
+    assertEquals(shared, SharedHttpTransports.size());
+    SharedHttpTransports.release(transport);
+    assertEquals(shared - 1, SharedHttpTransports.size());
+  }
+
+  @Test
+  public void testTransportIsCreatedByFactoryOfSettings() throws Exception {
+    final TransportSettings settings = TransportSettings.newBuilder()
+        .withTransportFactory(new MockTransportFactory())
+        .build();
+    final HttpTransport transport = SharedHttpTransports.acquire(PUBSUB, settings);
+    assertTrue(transport instanceof MockHttpTransport);
+    // Factories of the same class share the transport.
+    assertSame(transport, SharedHttpTransports.acquire(PUBSUB, TransportSettings.newBuilder()
+        .withTransportFactory(new MockTransportFactory())
+        .build()));
+    SharedHttpTransports.release(transport);
+    SharedHttpTransports.release(transport);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxConnectionsPerRouteMustBePositive() {
+    TransportSettings.newBuilder().withMaxConnectionsPerRoute(0).build();
+  }
+
+  public static class MockTransportFactory implements HttpTransportFactory {
+    @Override
+    public HttpTransport create(final TransportSettings settings) {
+      return new MockHttpTransport();
+    }
+  }
+}